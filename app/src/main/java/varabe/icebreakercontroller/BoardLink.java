@@ -0,0 +1,291 @@
+package varabe.icebreakercontroller;
+
+import varabe.icebreakercontroller.bluetooth.DeviceConnector;
+import varabe.icebreakercontroller.bluetooth.ResponseFramer;
+
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_CLOSE;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_ONE_SECOND_BLINK;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_OPEN;
+
+/*
+ * One relay board of the ConnectionPool: its connector, if connected, and the state of its
+ * channels, which outlives the connectors. Every board has its own connector and with it its own
+ * reading and writing threads, a write only queues the frame, so boards never wait for each other.
+ *
+ * Frames go into the connector's lanes by what they carry: blink keepalives into LANE_KEEPALIVE,
+ * applyState into LANE_BULK, the rest into LANE_CONTROL; LANE_EMERGENCY is for emergencyStop()
+ */
+public class BoardLink {
+    // Outcome of a command for this board
+    public static final int STATUS_NOT_ADDRESSED = 0;
+    public static final int STATUS_SENT = 1;
+    // The command changes nothing on the board, it wasn't sent
+    public static final int STATUS_SUPPRESSED = 2;
+    // The board is reconnecting, the command goes out if the link comes back in time
+    public static final int STATUS_BUFFERED = 3;
+    public static final int STATUS_NOT_CONNECTED = 4;
+    // The board doesn't keep up with the commands, its queue is full
+    public static final int STATUS_QUEUE_FULL = 5;
+    // An interlock rule forbids the command now, see InterlockTable
+    public static final int STATUS_INTERLOCKED = 6;
+    // The command waits for an interlock and is sent by the SequenceEngine
+    public static final int STATUS_SEQUENCED = 7;
+    // The command closes something and was issued before an emergency stop, it wasn't sent
+    public static final int STATUS_STOPPED = 8;
+
+    // Stop generation of a command issued right now, see emergencyStop
+    public static final int GENERATION_NOW = -1;
+
+    // Emergency stop: every channel opened, one line per channel so that any firmware knows it
+    private static final byte[] ALL_OPEN_FRAME = RelayProtocol.getMultiChannelFrame(RelayStateStore.ALL_CHANNELS_MASK, COMMAND_OPEN);
+    // Changes nothing, only firmware that knows set mask echoes it
+    private static final byte[] SET_MASK_PROBE = RelayProtocol.getSetMaskFrame(0, 0);
+
+    private final int boardId;
+    // The one place that knows what every channel should be and what the board has confirmed
+    private final RelayStateStore stateStore = new RelayStateStore();
+    private volatile DeviceConnector connector;
+    // Detected on every connect: the board echoes a no-op set mask probe only if it knows the command
+    private volatile boolean setMaskSupported;
+    // Echo lines are parsed on the connector's reading thread only
+    private final byte[] echoLine = new byte[RelayProtocol.SET_MASK_LINE_LENGTH];
+    // Taken by everything that changes the intended state and queues frames for it, so that an
+    // emergency stop can't fall between the two. Always taken before the connector's monitor,
+    // the connector calls its listeners outside of it
+    private final Object stopLock = new Object();
+    // Generation of the last emergency stop, guarded by stopLock
+    private int stopGeneration;
+
+    public BoardLink(int boardId) {
+        this.boardId = boardId;
+    }
+
+    public int getBoardId() {
+        return boardId;
+    }
+
+    public RelayStateStore getStateStore() {
+        return stateStore;
+    }
+
+    public DeviceConnector getConnector() {
+        return connector;
+    }
+
+    public boolean isSetMaskSupported() {
+        return setMaskSupported;
+    }
+
+    public boolean isConnected() {
+        DeviceConnector connector = this.connector;
+        return connector != null && connector.getState() == DeviceConnector.STATE_CONNECTED;
+    }
+
+    // Takes over the connector and connects it, the previous one is stopped
+    public synchronized void attach(final DeviceConnector connector) {
+        detach();
+        connector.setConnectionListener(new DeviceConnector.ConnectionListener() {
+            @Override
+            public void onConnected(DeviceConnector connector, boolean reconnected) {
+                BoardLink.this.onConnected(connector, reconnected);
+            }
+        });
+        connector.setAckListener(new DeviceConnector.AckListener() {
+            @Override
+            public void onAcknowledged(ResponseFramer.Line line) {
+                BoardLink.this.onAcknowledged(line);
+            }
+        });
+        connector.setHeartbeatSource(new DeviceConnector.HeartbeatSource() {
+            @Override
+            public boolean sendHeartbeat(DeviceConnector connector) {
+                return BoardLink.this.sendHeartbeat(connector);
+            }
+        });
+        stateStore.invalidateConfirmed();
+        this.connector = connector;
+        connector.connect();
+    }
+
+    public synchronized void detach() {
+        DeviceConnector connector = this.connector;
+        if (connector == null) return;
+        this.connector = null;
+        connector.stop();
+    }
+
+    // Hot path for buttons: the frame comes from the pre-encoded table, nothing is allocated
+    public int sendCommand(int channelIndex, int command) {
+        return sendCommand(channelIndex, command, GENERATION_NOW);
+    }
+
+    // generation: ConnectionPool.getStopGeneration() when the sender decided on the command
+    public int sendCommand(int channelIndex, int command, int generation) {
+        synchronized (stopLock) {
+            if (isStale(command, generation)) return STATUS_STOPPED;
+            if (stateStore.apply(1 << channelIndex, command) == 0) return STATUS_SUPPRESSED;
+            return write(RelayProtocol.getCommandFrame(channelIndex, command), getLane(command));
+        }
+    }
+
+    // Sends the command to every channel of the mask that needs it, as a single frame
+    public int sendCommandToChannels(int channelMask, int command) {
+        return sendCommandToChannels(channelMask, command, GENERATION_NOW);
+    }
+
+    public int sendCommandToChannels(int channelMask, int command, int generation) {
+        if (channelMask == 0) return STATUS_NOT_ADDRESSED;
+        synchronized (stopLock) {
+            if (isStale(command, generation)) return STATUS_STOPPED;
+            int neededMask = stateStore.apply(channelMask, command);
+            if (neededMask == 0) return STATUS_SUPPRESSED;
+            return write(RelayProtocol.getMultiChannelFrame(neededMask, command), getLane(command));
+        }
+    }
+
+    /**
+     * Opens every channel at once, ahead of anything queued for the board: the frames waiting in
+     * the other lanes are discarded, so nothing stale follows the stop. The intended state becomes
+     * all open, a board that is reconnecting gets it restored when it's back.
+     * From now on commands that close something and carry an older generation are refused with
+     * STATUS_STOPPED: a keepalive tick or a sequence step that decided on its command before the
+     * stop can't close a channel after it
+     */
+    public int emergencyStop(int generation) {
+        synchronized (stopLock) {
+            if (generation > stopGeneration) stopGeneration = generation;
+            DeviceConnector connector = this.connector;
+            int status = STATUS_NOT_CONNECTED;
+            if (connector != null) {
+                connector.discardQueued(DeviceConnector.LANE_CONTROL);
+                status = write(ALL_OPEN_FRAME, DeviceConnector.LANE_EMERGENCY);
+            }
+            stateStore.apply(RelayStateStore.ALL_CHANNELS_MASK, COMMAND_OPEN);
+            return status;
+        }
+    }
+
+    // Drops queued keepalives and bulk updates, e.g. before everything is opened
+    public void discardQueued(int fromLane) {
+        DeviceConnector connector = this.connector;
+        if (connector != null) connector.discardQueued(fromLane);
+    }
+
+    /**
+     * Sets every channel of the mask to closed (its bit in values is set) or open, so that they
+     * switch together. Only channels that need a change are sent: as one set mask command if the
+     * firmware has it, otherwise as per-channel commands in a single write, opening first
+     */
+    public int applyState(int channelMask, int values) {
+        synchronized (stopLock) {
+            return applyStateLocked(channelMask, values);
+        }
+    }
+
+    private int applyStateLocked(int channelMask, int values) {
+        int closeMask = channelMask & values;
+        int openMask = channelMask & ~values;
+        if (closeMask != 0) closeMask = stateStore.apply(closeMask, COMMAND_CLOSE);
+        if (openMask != 0) openMask = stateStore.apply(openMask, COMMAND_OPEN);
+        int changeMask = closeMask | openMask;
+        if (changeMask == 0) return STATUS_SUPPRESSED;
+
+        if (setMaskSupported) {
+            return write(RelayProtocol.getSetMaskFrame(changeMask, closeMask), DeviceConnector.LANE_BULK);
+        } else if (openMask == 0) {
+            return write(RelayProtocol.getMultiChannelFrame(closeMask, COMMAND_CLOSE), DeviceConnector.LANE_BULK);
+        } else if (closeMask == 0) {
+            return write(RelayProtocol.getMultiChannelFrame(openMask, COMMAND_OPEN), DeviceConnector.LANE_BULK);
+        } else {
+            byte[] opening = RelayProtocol.getMultiChannelFrame(openMask, COMMAND_OPEN);
+            byte[] closing = RelayProtocol.getMultiChannelFrame(closeMask, COMMAND_CLOSE);
+            byte[] frame = new byte[opening.length + closing.length];
+            System.arraycopy(opening, 0, frame, 0, opening.length);
+            System.arraycopy(closing, 0, frame, opening.length, closing.length);
+            return write(frame, DeviceConnector.LANE_BULK);
+        }
+    }
+
+    // Bypasses the state store. While the connector is reconnecting, it buffers the frame for a short while
+    public int write(byte[] frame) {
+        return write(frame, DeviceConnector.LANE_CONTROL);
+    }
+
+    public int write(byte[] frame, int lane) {
+        DeviceConnector connector = this.connector;
+        if (connector == null) return STATUS_NOT_CONNECTED;
+        boolean buffered = connector.isReconnecting();
+        if (!connector.write(frame, lane)) {
+            return (connector.getState() == DeviceConnector.STATE_CONNECTED) ? STATUS_QUEUE_FULL : STATUS_NOT_CONNECTED;
+        }
+        return buffered ? STATUS_BUFFERED : STATUS_SENT;
+    }
+
+    /**
+     * The board answers only commands it executes. Newer firmware gets the no-op set mask probe,
+     * older firmware the command a channel should have now, open or close: it changes nothing.
+     * It is built and queued under the stop lock, so no command for the channel can come in
+     * between, and its echo confirms what is intended. Blinking channels are left out, their
+     * keepalives are answered anyway. Runs on the connector's timer, which holds none of the
+     * connector's locks, so the stop lock comes first here as everywhere else
+     */
+    private boolean sendHeartbeat(DeviceConnector connector) {
+        if (setMaskSupported) return connector.writeProbe(SET_MASK_PROBE);
+        synchronized (stopLock) {
+            long snapshot = stateStore.getSnapshot();
+            int steadyMask = RelayStateStore.ALL_CHANNELS_MASK & ~RelayStateStore.getIntendedBlinkingMask(snapshot);
+            if (steadyMask == 0) return false;
+            int channelIndex = Integer.numberOfTrailingZeros(steadyMask);
+            boolean closed = (RelayStateStore.getIntendedClosedMask(snapshot) & (1 << channelIndex)) != 0;
+            return connector.writeProbe(RelayProtocol.getCommandFrame(channelIndex, closed ? COMMAND_CLOSE : COMMAND_OPEN));
+        }
+    }
+
+    // Opening is never stale, it can only agree with the stop
+    private boolean isStale(int command, int generation) {
+        return command != COMMAND_OPEN && generation != GENERATION_NOW && generation < stopGeneration;
+    }
+
+    // Blinks are sent again and again while a channel is held, they give way to other commands
+    private static int getLane(int command) {
+        return (command == COMMAND_ONE_SECOND_BLINK) ? DeviceConnector.LANE_KEEPALIVE : DeviceConnector.LANE_CONTROL;
+    }
+
+    // The board may have been power cycled or missed commands while the link was down,
+    // so the whole intended state is sent regardless of what was confirmed before
+    private void restoreIntendedState(DeviceConnector connector) {
+        synchronized (stopLock) {
+            stateStore.invalidateConfirmed();
+            long snapshot = stateStore.getSnapshot();
+            int closedMask = RelayStateStore.getIntendedClosedMask(snapshot);
+            int blinkingMask = RelayStateStore.getIntendedBlinkingMask(snapshot);
+            // Opening goes first, a channel must never stay closed by mistake
+            int openMask = RelayStateStore.ALL_CHANNELS_MASK & ~closedMask & ~blinkingMask;
+            if (openMask != 0) connector.write(RelayProtocol.getMultiChannelFrame(openMask, COMMAND_OPEN));
+            if (closedMask != 0) connector.write(RelayProtocol.getMultiChannelFrame(closedMask, COMMAND_CLOSE));
+            if (blinkingMask != 0) connector.write(RelayProtocol.getMultiChannelFrame(blinkingMask, COMMAND_ONE_SECOND_BLINK));
+        }
+    }
+
+    private void onConnected(DeviceConnector connector, boolean reconnected) {
+        setMaskSupported = false;
+        connector.write(SET_MASK_PROBE);
+        if (reconnected) restoreIntendedState(connector);
+    }
+
+    // Board echoes confirm the state of the channels
+    private void onAcknowledged(ResponseFramer.Line line) {
+        if (line.length() == 2) {
+            int channelIndex = RelayProtocol.getChannelIndex(line.byteAt(0));
+            int command = line.byteAt(1) - '0';
+            if (channelIndex >= 0 && command >= COMMAND_ONE_SECOND_BLINK && command <= COMMAND_CLOSE)
+                stateStore.confirm(channelIndex, command);
+        } else if (line.length() == echoLine.length) {
+            line.copyTo(echoLine, 0);
+            int setMask = RelayProtocol.parseSetMask(echoLine, 0, echoLine.length);
+            if (setMask < 0) return;
+            setMaskSupported = true;
+            stateStore.confirmState(setMask >>> 8, setMask & 0xFF);
+        }
+    }
+}
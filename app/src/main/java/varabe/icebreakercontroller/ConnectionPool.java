@@ -0,0 +1,311 @@
+package varabe.icebreakercontroller;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import varabe.icebreakercontroller.bluetooth.DeviceConnector;
+
+import static varabe.icebreakercontroller.RelayAddress.MAX_ADDRESSES;
+import static varabe.icebreakercontroller.RelayAddress.MAX_BOARDS;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_OPEN;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_SWITCH;
+
+/*
+ * The relay boards the app controls, by board id. Each board is connected independently through
+ * its own DeviceConnector; commands are routed by RelayAddress. A group command is split into
+ * one frame per board and each frame only goes into that board's queue, so a slow or lost board
+ * doesn't hold up the others. The result tells how the command went on every board.
+ *
+ * Every command is checked against the InterlockTable first. Commands that close nothing or only
+ * address channels without rules go straight through, the others are checked and sent under the
+ * table's lock, so two threads can't close excluding channels at the same time.
+ *
+ * Senders that decide on a command ahead of sending it, such as keepalive ticks and sequence
+ * steps, pass the stop generation they saw: after an emergency stop their closing commands are
+ * refused, see BoardLink.emergencyStop
+ */
+public class ConnectionPool {
+    private static final String TAG = "ConnectionPool";
+
+    private final BoardLink[] boards = new BoardLink[MAX_BOARDS];
+    private final InterlockTable interlocks = new InterlockTable();
+    // Sends the commands held back by POLICY_SEQUENCE interlocks
+    private final SequenceEngine sequenceEngine = new SequenceEngine(this);
+    // The sequence holding back a command for each address, until a later command supersedes it.
+    // Guarded by interlocks
+    private final SequenceEngine.Run[] pendingRuns = new SequenceEngine.Run[MAX_ADDRESSES];
+    private long pendingGroup;
+    // Counts emergency stops
+    private final AtomicInteger stopGeneration = new AtomicInteger();
+
+    // Outcome of a group command, one BoardLink.STATUS_* per board
+    public static class FanOutResult {
+        private final int[] statuses = new int[MAX_BOARDS];
+
+        public int getStatus(int boardId) {
+            return statuses[boardId];
+        }
+
+        // True if no addressed board failed: every one sent, buffered or didn't need the command
+        public boolean isDelivered() {
+            for (int status : statuses) {
+                if (status == BoardLink.STATUS_NOT_CONNECTED || status == BoardLink.STATUS_QUEUE_FULL
+                        || status == BoardLink.STATUS_INTERLOCKED || status == BoardLink.STATUS_STOPPED) return false;
+            }
+            return true;
+        }
+    }
+
+    public ConnectionPool() {
+        // Created up front, the state of a board outlives its connections
+        for (int boardId = 0; boardId < MAX_BOARDS; boardId++) {
+            boards[boardId] = new BoardLink(boardId);
+        }
+    }
+
+    public InterlockTable getInterlocks() {
+        return interlocks;
+    }
+
+    public SequenceEngine getSequenceEngine() {
+        return sequenceEngine;
+    }
+
+    // Changes with every emergency stop
+    public int getStopGeneration() {
+        return stopGeneration.get();
+    }
+
+    public BoardLink getBoard(int boardId) {
+        return boards[boardId];
+    }
+
+    public void connect(int boardId, DeviceConnector connector) {
+        boards[boardId].attach(connector);
+    }
+
+    public void disconnect(int boardId) {
+        boards[boardId].detach();
+    }
+
+    public void disconnectAll() {
+        for (BoardLink board : boards) {
+            board.detach();
+        }
+    }
+
+    // Lowest id without a connector, -1 if every board is taken
+    public int getFreeBoardId() {
+        for (BoardLink board : boards) {
+            if (board.getConnector() == null) return board.getBoardId();
+        }
+        return -1;
+    }
+
+    public int getConnectedCount() {
+        int count = 0;
+        for (BoardLink board : boards) {
+            if (board.isConnected()) count++;
+        }
+        return count;
+    }
+
+    public boolean hasConnector() {
+        for (BoardLink board : boards) {
+            if (board.getConnector() != null) return true;
+        }
+        return false;
+    }
+
+    public int sendCommand(int address, int command) {
+        return sendCommand(address, command, BoardLink.GENERATION_NOW);
+    }
+
+    public int sendCommand(int address, int command, int generation) {
+        return sendCommand(address, command, generation, null);
+    }
+
+    /**
+     * A step of the given sequence. A cancelled sequence sends nothing more to addresses with
+     * rules, STATUS_STOPPED: a command that superseded its held back one can't be overtaken by it
+     */
+    int sendCommand(int address, int command, int generation, SequenceEngine.Run run) {
+        BoardLink board = boards[RelayAddress.getBoardId(address)];
+        int channelIndex = RelayAddress.getChannelIndex(address);
+        if (!interlocks.isConstrained(address)) return board.sendCommand(channelIndex, command, generation);
+        synchronized (interlocks) {
+            if (run != null && run.isCancelled()) return BoardLink.STATUS_STOPPED;
+            long group = 1L << address;
+            cancelPending(group, run);
+            long closedGroup = getIntendedClosedGroup();
+            long closing = getClosingGroup(group, command, closedGroup);
+            long opening = getOpeningGroup(group, command, closedGroup);
+            long now = System.nanoTime();
+            if (getInterlocked(closing, opening, closedGroup, now) != 0) return onInterlocked(address, command, generation, closedGroup, now);
+            int status = board.sendCommand(channelIndex, command, generation);
+            interlocks.onOpened(opening, now);
+            return status;
+        }
+    }
+
+    /**
+     * Addresses an interlock rule doesn't let close now are left out, their boards report
+     * STATUS_INTERLOCKED. Held back commands are only sequenced for single addresses, a group
+     * command is all or nothing per channel
+     */
+    public FanOutResult sendCommandToGroup(long group, int command) {
+        return sendCommandToGroup(group, command, BoardLink.GENERATION_NOW);
+    }
+
+    public FanOutResult sendCommandToGroup(long group, int command, int generation) {
+        FanOutResult result = new FanOutResult();
+        if ((group & interlocks.getConstrainedGroup()) == 0) {
+            sendToGroup(group, command, generation, result);
+            return result;
+        }
+        synchronized (interlocks) {
+            cancelPending(group, null);
+            long closedGroup = getIntendedClosedGroup();
+            long opening = getOpeningGroup(group, command, closedGroup);
+            long now = System.nanoTime();
+            long rejected = getInterlocked(getClosingGroup(group, command, closedGroup), opening, closedGroup, now);
+            sendToGroup(group & ~rejected, command, generation, result);
+            interlocks.onOpened(opening, now);
+            setInterlocked(result, rejected);
+        }
+        return result;
+    }
+
+    /**
+     * Opens every channel of every connected board ahead of anything queued for it, see
+     * BoardLink.emergencyStop. Running sequences are cancelled, and a step a sequence is sending
+     * right now is refused by the new stop generation. Interlocks are skipped, the stop closes
+     * nothing, but their release timeouts start
+     */
+    public FanOutResult emergencyStop() {
+        int generation = stopGeneration.incrementAndGet();
+        sequenceEngine.cancelAll();
+        long closedGroup = getIntendedClosedGroup();
+        FanOutResult result = new FanOutResult();
+        for (BoardLink board : boards) {
+            int status = board.emergencyStop(generation);
+            // Boards without a connector only have their intended state reset
+            if (board.getConnector() != null) result.statuses[board.getBoardId()] = status;
+        }
+        interlocks.onOpened(closedGroup, System.nanoTime());
+        return result;
+    }
+
+    // See BoardLink.discardQueued, for every board
+    public void discardQueued(int fromLane) {
+        for (BoardLink board : boards) {
+            board.discardQueued(fromLane);
+        }
+    }
+
+    // Group form of BoardLink.applyState: addresses of the group are closed if set in values
+    public FanOutResult applyState(long group, long values) {
+        FanOutResult result = new FanOutResult();
+        if ((group & interlocks.getConstrainedGroup()) == 0) {
+            applyToGroup(group, values, result);
+            return result;
+        }
+        synchronized (interlocks) {
+            cancelPending(group, null);
+            long closedGroup = getIntendedClosedGroup();
+            long opening = group & ~values & closedGroup;
+            long now = System.nanoTime();
+            long rejected = getInterlocked(group & values & ~closedGroup, opening, closedGroup, now);
+            // A rejected address keeps its state, it isn't opened instead
+            applyToGroup(group & ~rejected, values, result);
+            interlocks.onOpened(opening, now);
+            setInterlocked(result, rejected);
+        }
+        return result;
+    }
+
+    private void sendToGroup(long group, int command, int generation, FanOutResult result) {
+        for (int boardId = 0; boardId < MAX_BOARDS; boardId++) {
+            int channelMask = RelayAddress.getChannelMask(group, boardId);
+            if (channelMask != 0) result.statuses[boardId] = boards[boardId].sendCommandToChannels(channelMask, command, generation);
+        }
+    }
+
+    private void applyToGroup(long group, long values, FanOutResult result) {
+        for (int boardId = 0; boardId < MAX_BOARDS; boardId++) {
+            int channelMask = RelayAddress.getChannelMask(group, boardId);
+            if (channelMask != 0) {
+                result.statuses[boardId] = boards[boardId].applyState(channelMask, RelayAddress.getChannelMask(values, boardId));
+            }
+        }
+    }
+
+    // Boards with a rejected address report it, even if their other addresses went out
+    private static void setInterlocked(FanOutResult result, long rejected) {
+        for (int boardId = 0; boardId < MAX_BOARDS; boardId++) {
+            if (RelayAddress.getChannelMask(rejected, boardId) != 0) result.statuses[boardId] = BoardLink.STATUS_INTERLOCKED;
+        }
+    }
+
+    // A later command for an address supersedes the one held back for it, unless it is that one
+    private void cancelPending(long group, SequenceEngine.Run sender) {
+        for (long rest = group & pendingGroup; rest != 0; rest &= rest - 1) {
+            int address = Long.numberOfTrailingZeros(rest);
+            if (pendingRuns[address] != sender) pendingRuns[address].cancel();
+            pendingRuns[address] = null;
+        }
+        pendingGroup &= ~group;
+    }
+
+    // Closed or blinking channels as the boards were last told, across all boards
+    private long getIntendedClosedGroup() {
+        long group = 0;
+        for (int boardId = 0; boardId < MAX_BOARDS; boardId++) {
+            long snapshot = boards[boardId].getStateStore().getSnapshot();
+            int closedMask = RelayStateStore.getIntendedClosedMask(snapshot) | RelayStateStore.getIntendedBlinkingMask(snapshot);
+            group |= RelayAddress.toGroup(boardId, closedMask);
+        }
+        return group;
+    }
+
+    // Channels the command newly closes, a channel that is already closed stays so
+    private static long getClosingGroup(long group, int command, long closedGroup) {
+        return (command == COMMAND_OPEN) ? 0 : group & ~closedGroup;
+    }
+
+    private static long getOpeningGroup(long group, int command, long closedGroup) {
+        return (command == COMMAND_OPEN || command == COMMAND_SWITCH) ? group & closedGroup : 0;
+    }
+
+    // Closing addresses that conflict with what is closed afterwards or were excluded too recently
+    private long getInterlocked(long closing, long opening, long closedGroup, long now) {
+        long closedAfter = (closedGroup & ~opening) | closing;
+        long rejected = 0;
+        for (long rest = closing & interlocks.getConstrainedGroup(); rest != 0; rest &= rest - 1) {
+            int address = Long.numberOfTrailingZeros(rest);
+            if ((interlocks.getExclusions(address) & closedAfter) != 0 || interlocks.getRemainingReleaseMs(address, now) > 0)
+                rejected |= 1L << address;
+        }
+        return rejected;
+    }
+
+    private int onInterlocked(int address, int command, int generation, long closedGroup, long now) {
+        if (interlocks.getPolicy(address) == InterlockTable.POLICY_REJECT) {
+            Log.w(TAG, "Command " + command + " to address " + address + " refused by an interlock");
+            return BoardLink.STATUS_INTERLOCKED;
+        }
+        // A sequence started now would carry the stale command past the stop
+        if (generation != BoardLink.GENERATION_NOW && generation != stopGeneration.get()) return BoardLink.STATUS_STOPPED;
+        // Open what is in the way, wait for the release and send the command then
+        long conflicts = interlocks.getExclusions(address) & closedGroup;
+        Sequence sequence = new Sequence("Interlock " + address);
+        for (long rest = conflicts; rest != 0; rest &= rest - 1) {
+            sequence.command(Long.numberOfTrailingZeros(rest), COMMAND_OPEN);
+        }
+        long waitMs = (conflicts != 0) ? interlocks.getReleaseTimeoutMs(address) : interlocks.getRemainingReleaseMs(address, now);
+        pendingRuns[address] = sequenceEngine.start(sequence.waitMs(waitMs).command(address, command), null);
+        pendingGroup |= 1L << address;
+        return BoardLink.STATUS_SEQUENCED;
+    }
+}
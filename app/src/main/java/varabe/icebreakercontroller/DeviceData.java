@@ -2,29 +2,33 @@ package varabe.icebreakercontroller;
 
 import java.util.ArrayList;
 
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.os.ParcelUuid;
 
 import varabe.icebreakercontroller.bluetooth.BluetoothUtils;
 
 
+// Class and UUIDs are looked up on first use, connecting only needs the name and address
 public class DeviceData {
+    private final BluetoothDevice device;
     private String name;
     private String address;
     private int bondState = BluetoothDevice.BOND_NONE;
     private ArrayList<ParcelUuid> uuids;
-    private final int deviceClass;
-    private final int majorDeviceClass;
+    private BluetoothClass bluetoothClass;
 
     public DeviceData(BluetoothDevice device, String emptyName) {
+        this.device = device;
         name = device.getName();
         address = device.getAddress();
         bondState = device.getBondState();
 
         if (name == null || name.isEmpty()) name = emptyName;
-        deviceClass = device.getBluetoothClass().getDeviceClass();
-        majorDeviceClass = device.getBluetoothClass().getMajorDeviceClass();
-        uuids = BluetoothUtils.getDeviceUuids(device);
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
     }
 
     public String getName() {
@@ -40,11 +44,11 @@ public class DeviceData {
     }
 
     public int getDeviceClass() {
-        return deviceClass;
+        return getBluetoothClass().getDeviceClass();
     }
 
     public int getMajorDeviceClass() {
-        return majorDeviceClass;
+        return getBluetoothClass().getMajorDeviceClass();
     }
 
     public void setBondState(int state) {
@@ -52,10 +56,16 @@ public class DeviceData {
     }
 
     public ArrayList<ParcelUuid> getUuids() {
+        if (uuids == null) uuids = BluetoothUtils.getDeviceUuids(device);
         return uuids;
     }
 
     public int getBondState() {
         return bondState;
     }
+
+    private BluetoothClass getBluetoothClass() {
+        if (bluetoothClass == null) bluetoothClass = device.getBluetoothClass();
+        return bluetoothClass;
+    }
 }
@@ -0,0 +1,60 @@
+package varabe.icebreakercontroller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Devices of the device list by address. Discovery results are merged in as they arrive and
+ * snapshot() gives the rows to show: optionally only SPP-capable devices, strongest signal first.
+ * Not thread-safe, DeviceListActivity uses it on its discovery thread only
+ */
+public class DeviceListModel {
+    // Strongest signal first, devices without RSSI last. Then the board connected most recently
+    public static final Comparator<DeviceRecord> RANKING = new Comparator<DeviceRecord>() {
+        @Override
+        public int compare(DeviceRecord first, DeviceRecord second) {
+            if (first.rssi != second.rssi) return (first.rssi > second.rssi) ? -1 : 1;
+            if (first.lastSuccessAt != second.lastSuccessAt) return (first.lastSuccessAt > second.lastSuccessAt) ? -1 : 1;
+            return first.address.compareTo(second.address);
+        }
+    };
+
+    private final Map<String, DeviceRecord> records = new HashMap<>();
+    private boolean sppOnly;
+
+    // Returns false if the record changes nothing that is shown
+    public boolean update(DeviceRecord record) {
+        DeviceRecord old = records.get(record.address);
+        if (old != null && !record.hasRssi() && old.hasRssi()) {
+            // Seen again without a signal reading, keep the last one
+            record = new DeviceRecord(record.address, record.name, old.rssi, record.sppCapable, record.lastSuccessAt);
+        }
+        records.put(record.address, record);
+        return old == null || !old.sameContents(record);
+    }
+
+    public void setSppOnly(boolean sppOnly) {
+        this.sppOnly = sppOnly;
+    }
+
+    public boolean isSppOnly() {
+        return sppOnly;
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    public List<DeviceRecord> snapshot() {
+        List<DeviceRecord> result = new ArrayList<>(records.size());
+        for (DeviceRecord record : records.values()) {
+            if (!sppOnly || record.sppCapable) result.add(record);
+        }
+        Collections.sort(result, RANKING);
+        return result;
+    }
+}
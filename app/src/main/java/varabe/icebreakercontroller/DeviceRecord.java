@@ -0,0 +1,32 @@
+package varabe.icebreakercontroller;
+
+// One row of the device list, built on the discovery thread and never changed afterwards
+public class DeviceRecord {
+    public static final int RSSI_UNKNOWN = Integer.MIN_VALUE;
+
+    public final String address;
+    public final String name;
+    // dBm of the last discovery, RSSI_UNKNOWN for cached and bonded devices not seen by it yet
+    public final int rssi;
+    public final boolean sppCapable;
+    // Wall clock time of the last successful connect, 0 if there was none
+    public final long lastSuccessAt;
+
+    public DeviceRecord(String address, String name, int rssi, boolean sppCapable, long lastSuccessAt) {
+        this.address = address;
+        this.name = name;
+        this.rssi = rssi;
+        this.sppCapable = sppCapable;
+        this.lastSuccessAt = lastSuccessAt;
+    }
+
+    public boolean hasRssi() {
+        return rssi != RSSI_UNKNOWN;
+    }
+
+    // Same as other for the user: the row doesn't need to be redrawn
+    public boolean sameContents(DeviceRecord other) {
+        return address.equals(other.address) && rssi == other.rssi && sppCapable == other.sppCapable
+                && (name == null ? other.name == null : name.equals(other.name));
+    }
+}
@@ -0,0 +1,101 @@
+package varabe.icebreakercontroller;
+
+import static varabe.icebreakercontroller.RelayAddress.MAX_ADDRESSES;
+
+/*
+ * Interlock rules compiled into tables indexed by RelayAddress: for every address the group of
+ * addresses that must be open before it may close, how long after they opened it may, and what
+ * happens to a command that comes too early. The ConnectionPool checks every command against it,
+ * whichever button, sequence or keepalive it comes from; checking one is a few array lookups.
+ * Addresses without rules are told apart by one bit test and skip the rest
+ */
+public class InterlockTable {
+    // The command isn't sent, BoardLink.STATUS_INTERLOCKED
+    public static final int POLICY_REJECT = 0;
+    // The conflicting channels are opened, after the release timeout the command is sent by the SequenceEngine.
+    // A later command for the address replaces it
+    public static final int POLICY_SEQUENCE = 1;
+
+    private final long[] exclusions = new long[MAX_ADDRESSES];
+    private final int[] releaseTimeoutsMs = new int[MAX_ADDRESSES];
+    private final int[] policies = new int[MAX_ADDRESSES];
+    // When each address was last opened, System.nanoTime. Valid for the addresses in openedGroup
+    private final long[] openedAt = new long[MAX_ADDRESSES];
+    private long openedGroup;
+    // Addresses with rules, read without the lock on every command
+    private volatile long constrainedGroup;
+
+    /**
+     * Every address of the group excludes the others: it may close only while they are open, and
+     * releaseTimeoutMs after the last of them opened. Rules add up, adding the same one again
+     * changes nothing
+     */
+    public void addExclusion(long group, int releaseTimeoutMs, int policy) {
+        addExclusion(group, group, releaseTimeoutMs, policy);
+    }
+
+    // One-way form: the addresses of closing may close only while those of excluded are open
+    public synchronized void addExclusion(long closing, long excluded, int releaseTimeoutMs, int policy) {
+        for (int address = 0; address < MAX_ADDRESSES; address++) {
+            if ((closing & (1L << address)) == 0) continue;
+            // The stricter policy wins
+            policies[address] = (exclusions[address] != 0) ? Math.min(policies[address], policy) : policy;
+            exclusions[address] |= excluded & ~(1L << address);
+            releaseTimeoutsMs[address] = Math.max(releaseTimeoutsMs[address], releaseTimeoutMs);
+        }
+        // Excluded addresses are tracked too, their opening starts the release timeout
+        constrainedGroup |= closing | excluded;
+    }
+
+    public synchronized void clear() {
+        for (int address = 0; address < MAX_ADDRESSES; address++) {
+            exclusions[address] = 0;
+            releaseTimeoutsMs[address] = 0;
+            policies[address] = POLICY_REJECT;
+        }
+        openedGroup = 0;
+        constrainedGroup = 0;
+    }
+
+    public long getConstrainedGroup() {
+        return constrainedGroup;
+    }
+
+    public boolean isConstrained(int address) {
+        return (constrainedGroup & (1L << address)) != 0;
+    }
+
+    public synchronized long getExclusions(int address) {
+        return exclusions[address];
+    }
+
+    public synchronized int getReleaseTimeoutMs(int address) {
+        return releaseTimeoutsMs[address];
+    }
+
+    public synchronized int getPolicy(int address) {
+        return policies[address];
+    }
+
+    // Milliseconds until the address may close after its excluded addresses opened, rounded up so
+    // that a wait of that long is never too short. 0 if it may now
+    public synchronized long getRemainingReleaseMs(int address, long now) {
+        long excluded = exclusions[address] & openedGroup;
+        long remainingNanos = 0;
+        for (long rest = excluded; rest != 0; rest &= rest - 1) {
+            int other = Long.numberOfTrailingZeros(rest);
+            long elapsed = now - openedAt[other];
+            remainingNanos = Math.max(remainingNanos, releaseTimeoutsMs[address] * 1000000L - elapsed);
+        }
+        return (remainingNanos + 999999) / 1000000;
+    }
+
+    // Called by the ConnectionPool for every address that opens
+    public synchronized void onOpened(long group, long now) {
+        group &= constrainedGroup;
+        for (long rest = group; rest != 0; rest &= rest - 1) {
+            openedAt[Long.numberOfTrailingZeros(rest)] = now;
+        }
+        openedGroup |= group;
+    }
+}
@@ -0,0 +1,153 @@
+package varabe.icebreakercontroller;
+
+import java.util.Arrays;
+
+/*
+ * Measures how long a button press takes to reach the board and come back. Every press is a span
+ * with a timestamp per stage: touch -> button activation -> RelayController.sendCommand ->
+ * queued in DeviceConnector -> written to the socket -> echo received from the board.
+ *
+ * Spans live in a preallocated ring, recording allocates nothing, and while the recorder is
+ * disabled every call returns after reading one volatile flag. Stages on the UI thread belong
+ * to the span that thread started last; the connector threads are told the span explicitly.
+ * The same path has android.os.Trace sections for systrace/Perfetto
+ */
+public final class LatencyRecorder {
+    public static final int STAGE_TOUCH = 0;
+    public static final int STAGE_ACTIVATE = 1;
+    public static final int STAGE_SEND_COMMAND = 2;
+    public static final int STAGE_ENQUEUE = 3;
+    public static final int STAGE_WIRE_WRITE = 4;
+    public static final int STAGE_REPLY = 5;
+    public static final int STAGE_COUNT = 6;
+    private static final String[] STAGE_NAMES = {"touch", "activate", "sendCommand", "enqueue", "wire write", "reply"};
+
+    public static final int DEFAULT_CAPACITY = 256;
+    public static final int NO_SPAN = -1;
+
+    private static final LatencyRecorder instance = new LatencyRecorder(DEFAULT_CAPACITY);
+
+    private final int capacity;
+    // [span % capacity][stage], 0 when the stage wasn't reached
+    private final long[] timestamps;
+    private volatile boolean enabled;
+    private int nextSpan;
+    private volatile int currentSpan = NO_SPAN;
+    private volatile Thread currentSpanThread;
+    private volatile int lastEnqueuedSpan = NO_SPAN;
+    private int lastWrittenSpan = NO_SPAN;
+
+    public LatencyRecorder(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        timestamps = new long[capacity * STAGE_COUNT];
+    }
+
+    public static LatencyRecorder getInstance() {
+        return instance;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Starts a span for the calling thread, the previous one of that thread is left as it is
+    public synchronized int begin() {
+        if (!enabled) return NO_SPAN;
+        int span = nextSpan++;
+        int row = (span % capacity) * STAGE_COUNT;
+        Arrays.fill(timestamps, row, row + STAGE_COUNT, 0);
+        timestamps[row + STAGE_TOUCH] = System.nanoTime();
+        currentSpanThread = Thread.currentThread();
+        currentSpan = span;
+        return span;
+    }
+
+    // The span the calling thread started, or NO_SPAN
+    public int currentSpan() {
+        if (!enabled || currentSpanThread != Thread.currentThread()) return NO_SPAN;
+        return currentSpan;
+    }
+
+    // Marks a stage of the calling thread's span
+    public void mark(int stage) {
+        if (!enabled) return;
+        mark(currentSpan(), stage, System.nanoTime());
+    }
+
+    // Only the first time a stage is reached counts
+    public void mark(int span, int stage, long now) {
+        if (!enabled || span == NO_SPAN || isOverwritten(span)) return;
+        int index = (span % capacity) * STAGE_COUNT + stage;
+        if (timestamps[index] == 0) timestamps[index] = now;
+    }
+
+    public void markEnqueued(int span) {
+        if (!enabled || span == NO_SPAN) return;
+        mark(span, STAGE_ENQUEUE, System.nanoTime());
+        lastEnqueuedSpan = span;
+    }
+
+    // The writer thread reads this before draining its queue, everything enqueued before is in the write
+    public int getLastEnqueuedSpan() {
+        return enabled ? lastEnqueuedSpan : NO_SPAN;
+    }
+
+    // Called by the writer thread once the spans up to lastEnqueuedSpan are on the wire
+    public void markWritten(int lastEnqueuedSpan, long now) {
+        if (!enabled || lastEnqueuedSpan == NO_SPAN) return;
+        int first = Math.max(lastWrittenSpan + 1, lastEnqueuedSpan - capacity + 1);
+        for (int span = first; span <= lastEnqueuedSpan; span++) {
+            mark(span, STAGE_WIRE_WRITE, now);
+        }
+        lastWrittenSpan = Math.max(lastWrittenSpan, lastEnqueuedSpan);
+    }
+
+    public synchronized void clear() {
+        Arrays.fill(timestamps, 0);
+        nextSpan = 0;
+        currentSpan = NO_SPAN;
+        lastEnqueuedSpan = NO_SPAN;
+        lastWrittenSpan = NO_SPAN;
+    }
+
+    // Time from touch to the stage for every recorded span that reached it, in nanoseconds
+    public synchronized long[] getStageLatencies(int stage) {
+        int spans = Math.min(nextSpan, capacity);
+        long[] latencies = new long[spans];
+        int count = 0;
+        for (int i = 0; i < spans; i++) {
+            long touch = timestamps[i * STAGE_COUNT + STAGE_TOUCH];
+            long reached = timestamps[i * STAGE_COUNT + stage];
+            if (touch != 0 && reached != 0) latencies[count++] = reached - touch;
+        }
+        return Arrays.copyOf(latencies, count);
+    }
+
+    // Summary per stage: how many spans reached it and the time since touch, in microseconds
+    public String dump() {
+        StringBuilder result = new StringBuilder("Latency since touch, us (p50 / p90 / max):");
+        for (int stage = STAGE_TOUCH + 1; stage < STAGE_COUNT; stage++) {
+            long[] latencies = getStageLatencies(stage);
+            result.append('\n').append(STAGE_NAMES[stage]).append(": n=").append(latencies.length);
+            if (latencies.length == 0) continue;
+            Arrays.sort(latencies);
+            result.append(", ").append(percentile(latencies, 50) / 1000)
+                    .append(" / ").append(percentile(latencies, 90) / 1000)
+                    .append(" / ").append(latencies[latencies.length - 1] / 1000);
+        }
+        return result.toString();
+    }
+
+    private boolean isOverwritten(int span) {
+        return nextSpan - span > capacity;
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+}
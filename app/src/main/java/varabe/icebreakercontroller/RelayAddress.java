@@ -0,0 +1,55 @@
+package varabe.icebreakercontroller;
+
+/*
+ * Address of a relay channel across several boards: boardId * CHANNELS_PER_BOARD + channelIndex.
+ * Board 0 addresses are plain channel indexes, so single-board code keeps working unchanged.
+ * A group of addresses is a long, bit i standing for address i, which covers MAX_BOARDS boards.
+ * In view tags a channel is written "C" (board 0) or "1:C" (board 1)
+ */
+public final class RelayAddress {
+    public static final int CHANNELS_PER_BOARD = RelayProtocol.SUPPORTED_CHANNELS.length;
+    public static final int MAX_BOARDS = 64 / CHANNELS_PER_BOARD;
+    public static final int MAX_ADDRESSES = MAX_BOARDS * CHANNELS_PER_BOARD;
+    public static final long ALL_ADDRESSES = -1L;
+    private static final int BOARD_CHANNELS_MASK = (1 << CHANNELS_PER_BOARD) - 1;
+
+    private RelayAddress() {
+    }
+
+    public static int of(int boardId, int channelIndex) {
+        return boardId * CHANNELS_PER_BOARD + channelIndex;
+    }
+
+    public static int getBoardId(int address) {
+        return address / CHANNELS_PER_BOARD;
+    }
+
+    public static int getChannelIndex(int address) {
+        return address % CHANNELS_PER_BOARD;
+    }
+
+    // The channels of one board in a group, as a RelayStateStore channel mask
+    public static int getChannelMask(long group, int boardId) {
+        return (int) (group >>> (boardId * CHANNELS_PER_BOARD)) & BOARD_CHANNELS_MASK;
+    }
+
+    public static long toGroup(int boardId, int channelMask) {
+        return ((long) channelMask & BOARD_CHANNELS_MASK) << (boardId * CHANNELS_PER_BOARD);
+    }
+
+    // "C" or "1:C", -1 if the board or the channel isn't supported
+    public static int parse(String relayChannel) {
+        int separator = relayChannel.indexOf(':');
+        int boardId = 0;
+        if (separator >= 0) {
+            try {
+                boardId = Integer.parseInt(relayChannel.substring(0, separator));
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+            if (boardId < 0 || boardId >= MAX_BOARDS) return -1;
+        }
+        int channelIndex = RelayProtocol.getChannelIndex(relayChannel.substring(separator + 1));
+        return (channelIndex < 0) ? -1 : of(boardId, channelIndex);
+    }
+}
@@ -7,76 +7,152 @@ import android.view.View;
 import java.lang.ref.WeakReference;
 
 import varabe.icebreakercontroller.activity.MainActivity;
+import varabe.icebreakercontroller.bluetooth.ConnectionProfiles;
+import varabe.icebreakercontroller.bluetooth.DeviceCache;
 import varabe.icebreakercontroller.bluetooth.DeviceConnector;
+import varabe.icebreakercontroller.relaybutton.KeepaliveScheduler;
 
 // The class handles command sending and connecting/disconnecting
 public class RelayController {
     private static final String TAG = "RelayController";
 
-    public static final String[] SUPPORTED_CHANNELS = new String[] {"A", "B", "C", "D", "E", "F", "H", "I"};
+    public static final String[] SUPPORTED_CHANNELS = RelayProtocol.SUPPORTED_CHANNELS;
 
     // Relay commands
-    public static final int COMMAND_ONE_SECOND_BLINK = 0;
-    public static final int COMMAND_SWITCH = 1;
-    public static final int COMMAND_INTERLOCK = 2;
-    public static final int COMMAND_OPEN = 3;
-    public static final int COMMAND_CLOSE = 4;
+    public static final int COMMAND_ONE_SECOND_BLINK = RelayProtocol.COMMAND_ONE_SECOND_BLINK;
+    public static final int COMMAND_SWITCH = RelayProtocol.COMMAND_SWITCH;
+    public static final int COMMAND_INTERLOCK = RelayProtocol.COMMAND_INTERLOCK;
+    public static final int COMMAND_OPEN = RelayProtocol.COMMAND_OPEN;
+    public static final int COMMAND_CLOSE = RelayProtocol.COMMAND_CLOSE;
 
     private WeakReference<MainActivity> activity;
-    private static DeviceConnector connector;
+    // Static like the connectors before it, connections outlive the activity
+    private static final ConnectionPool pool = new ConnectionPool();
 
     public RelayController(MainActivity activity) {
         this.activity = new WeakReference<>(activity);
     }
 
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    public SequenceEngine getSequenceEngine() {
+        return pool.getSequenceEngine();
+    }
+
+    // Interlock rules every command is checked against, whatever it comes from
+    public InterlockTable getInterlocks() {
+        return pool.getInterlocks();
+    }
+
+    // State of board 0
+    public RelayStateStore getStateStore() {
+        return pool.getBoard(0).getStateStore();
+    }
+
     public void sendCommand(View view, int command) {
         String relayChannelAssociatedWithView = view.getTag().toString();
         sendCommand(relayChannelAssociatedWithView, command);
     }
 
+    // relayChannel is "C" for board 0 or "1:C", see RelayAddress
     public void sendCommand(String relayChannel, int command) {
-        sendCommand(relayChannel + command);
+        int address = RelayAddress.parse(relayChannel);
+        if (address >= 0)
+            sendCommand(address, command);
+        else
+            sendCommand(relayChannel + command);
+    }
+
+    // Hot path for buttons: the frame comes from the pre-encoded table, nothing is allocated.
+    // The address is a RelayAddress, for board 0 simply the channel index. Returns a BoardLink.STATUS_*
+    public int sendCommand(int address, int command) {
+        LatencyRecorder.getInstance().mark(LatencyRecorder.STAGE_SEND_COMMAND);
+        return pool.sendCommand(address, command);
+    }
+
+    // Sends the command to every channel of board 0 whose bit (1 << channelIndex) is set, as a single frame.
+    // Channels where the command would change nothing are left out
+    public void sendCommandToChannels(int channelMask, int command) {
+        pool.getBoard(0).sendCommandToChannels(channelMask, command);
+    }
+
+    // Same for a group of addresses on any boards: one frame per board, queued on every board at once
+    public ConnectionPool.FanOutResult sendCommandToGroup(long group, int command) {
+        return pool.sendCommandToGroup(group, command);
+    }
+
+    // See BoardLink.applyState, for board 0
+    public void applyState(int channelMask, int values) {
+        pool.getBoard(0).applyState(channelMask, values);
+    }
+
+    public ConnectionPool.FanOutResult applyState(long group, long values) {
+        return pool.applyState(group, values);
+    }
+
+    public boolean isSetMaskSupported() {
+        return pool.getBoard(0).isSetMaskSupported();
     }
 
+    // Bypasses the state store, for channels the app doesn't know. Goes to board 0
     public void sendCommand(String commandString) {
-        if (!commandString.isEmpty() && isConnected()) {
-            final String COMMAND_ENDING = "\r\n";
-            byte[] command = (commandString + COMMAND_ENDING).getBytes();
-            connector.write(command);
+        if (!commandString.isEmpty()) {
+            pool.getBoard(0).write(RelayProtocol.encode(commandString));
         }
     }
+
+    // Queued keepalives and bulk updates would go out after the opens, they are dropped
     public void deactivateAllAvailibleRelayChannels() {
-        for (String channel : SUPPORTED_CHANNELS) {
-            sendCommand(channel, COMMAND_OPEN);
-        }
+        pool.discardQueued(DeviceConnector.LANE_KEEPALIVE);
+        pool.sendCommandToGroup(RelayAddress.ALL_ADDRESSES, COMMAND_OPEN);
+    }
+
+    // Opens everything on every board ahead of whatever is queued, held blinking channels are let go.
+    // How long the stop took to reach the wire: DeviceConnector.getEmergencyLatency
+    public ConnectionPool.FanOutResult emergencyStop() {
+        // Ahead of the stop, so that no keepalive tick sees both the channels and the new generation
+        KeepaliveScheduler.getInstance().unregisterAll();
+        ConnectionPool.FanOutResult result = pool.emergencyStop();
+        Log.w(TAG, "Emergency stop");
+        return result;
     }
 
     // Connector-related methods
     public void connect(BluetoothDevice connectedDevice) {
         stopConnection();
+        connect(0, connectedDevice);
+    }
+
+    // Connects one more board, keeping the others
+    public void connect(int boardId, BluetoothDevice connectedDevice) {
         MainActivity activity = this.activity.get();
         if (activity != null) {
             try {
                 String name = activity.getString(R.string.unknown_device_name);
                 DeviceData data = new DeviceData(connectedDevice, name);
-                connector = new DeviceConnector(data, activity.handler);
-                connector.connect();
+                pool.connect(boardId, new DeviceConnector(data, ConnectionProfiles.getInstance(activity),
+                        DeviceCache.getInstance(activity), MainActivity.getEventBus()));
             } catch (IllegalArgumentException e) {
                 Log.d(TAG, "setupConnector failed: " + e.getMessage());
             }
         }
     }
 
+    // Connected to at least one board
     public boolean isConnected() {
-        return (connector != null) && (connector.getState() == DeviceConnector.STATE_CONNECTED);
+        return pool.getConnectedCount() > 0;
     }
 
     public void stopConnection() {
+        LatencyRecorder recorder = LatencyRecorder.getInstance();
+        if (recorder.isEnabled()) Log.i(TAG, recorder.dump());
+        pool.getSequenceEngine().cancelAll();
         MainActivity activity = this.activity.get();
-        if (connector != null && activity != null) {
-            connector.stop();
-            connector = null;
+        if (pool.hasConnector() && activity != null) {
+            pool.disconnectAll();
             activity.setDeviceName(null);
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,142 @@
+package varabe.icebreakercontroller;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Wire format of the relay board: "<channel><command>\r\n", e.g. "A3\r\n" opens channel A.
+ * Plain Java on purpose, so the encoding can be benchmarked and simulated off the device.
+ * RelayController re-exports the channel and command constants
+ */
+public final class RelayProtocol {
+    public static final String[] SUPPORTED_CHANNELS = new String[] {"A", "B", "C", "D", "E", "F", "H", "I"};
+
+    // Relay commands
+    public static final int COMMAND_ONE_SECOND_BLINK = 0;
+    public static final int COMMAND_SWITCH = 1;
+    public static final int COMMAND_INTERLOCK = 2;
+    public static final int COMMAND_OPEN = 3;
+    public static final int COMMAND_CLOSE = 4;
+
+    // Bulk command of newer firmware, "M<mask><values>\r\n" with two hex digits each: every channel
+    // of the mask is closed if its bit in values is set and opened otherwise, all at once.
+    // Older firmware ignores the line and doesn't echo it
+    public static final byte SET_MASK_COMMAND = 'M';
+    public static final int SET_MASK_LINE_LENGTH = 5;
+
+    public static final String COMMAND_ENDING = "\r\n";
+    public static final Charset COMMAND_CHARSET = Charset.forName("US-ASCII");
+    // "<channel><command>\r\n" for every supported channel and command, indexed [channel][command]
+    private static final byte[][][] COMMAND_FRAMES = encodeCommandFrames();
+    // Frames for several channels at once, indexed by (channelMask * command count + command).
+    // Filled in lazily, there are only a few masks in use at any time
+    private static final AtomicReferenceArray<byte[]> MULTI_CHANNEL_FRAMES =
+            new AtomicReferenceArray<>((1 << SUPPORTED_CHANNELS.length) * (COMMAND_CLOSE + 1));
+
+    private RelayProtocol() {}
+
+    // Encodes an arbitrary command line, allocates a new frame every time
+    public static byte[] encode(String commandString) {
+        return (commandString + COMMAND_ENDING).getBytes(COMMAND_CHARSET);
+    }
+
+    // Returns index of the channel in SUPPORTED_CHANNELS or -1 if it isn't supported
+    public static int getChannelIndex(String relayChannel) {
+        for (int i = 0; i < SUPPORTED_CHANNELS.length; i++) {
+            if (SUPPORTED_CHANNELS[i].equals(relayChannel))
+                return i;
+        }
+        return -1;
+    }
+
+    // Same for the channel letter as it appears on the wire
+    public static int getChannelIndex(byte channel) {
+        for (int i = 0; i < SUPPORTED_CHANNELS.length; i++) {
+            if (SUPPORTED_CHANNELS[i].charAt(0) == channel)
+                return i;
+        }
+        return -1;
+    }
+
+    // The returned array is shared and must not be modified
+    public static byte[] getCommandFrame(int channelIndex, int command) {
+        if (channelIndex < 0 || channelIndex >= COMMAND_FRAMES.length)
+            throw new IllegalArgumentException("Unsupported channel index: " + channelIndex);
+        if (command < COMMAND_ONE_SECOND_BLINK || command > COMMAND_CLOSE)
+            throw new IllegalArgumentException("Unsupported command: " + command);
+        return COMMAND_FRAMES[channelIndex][command];
+    }
+
+    // The returned array is shared and must not be modified
+    public static byte[] getMultiChannelFrame(int channelMask, int command) {
+        if (channelMask <= 0 || channelMask >= (1 << SUPPORTED_CHANNELS.length))
+            throw new IllegalArgumentException("Unsupported channel mask: " + channelMask);
+        if (command < COMMAND_ONE_SECOND_BLINK || command > COMMAND_CLOSE)
+            throw new IllegalArgumentException("Unsupported command: " + command);
+        int index = channelMask * (COMMAND_CLOSE + 1) + command;
+        byte[] frame = MULTI_CHANNEL_FRAMES.get(index);
+        if (frame == null) {
+            int length = 0;
+            for (int channelIndex = 0; channelIndex < SUPPORTED_CHANNELS.length; channelIndex++) {
+                if ((channelMask & (1 << channelIndex)) != 0)
+                    length += COMMAND_FRAMES[channelIndex][command].length;
+            }
+            frame = new byte[length];
+            int offset = 0;
+            for (int channelIndex = 0; channelIndex < SUPPORTED_CHANNELS.length; channelIndex++) {
+                if ((channelMask & (1 << channelIndex)) != 0) {
+                    byte[] part = COMMAND_FRAMES[channelIndex][command];
+                    System.arraycopy(part, 0, frame, offset, part.length);
+                    offset += part.length;
+                }
+            }
+            // Racing threads build identical frames, whichever is stored first wins
+            if (!MULTI_CHANNEL_FRAMES.compareAndSet(index, null, frame))
+                frame = MULTI_CHANNEL_FRAMES.get(index);
+        }
+        return frame;
+    }
+
+    // Allocates a new frame every time, there are too many combinations to keep
+    public static byte[] getSetMaskFrame(int channelMask, int values) {
+        if (channelMask < 0 || channelMask >= (1 << SUPPORTED_CHANNELS.length))
+            throw new IllegalArgumentException("Unsupported channel mask: " + channelMask);
+        byte[] frame = new byte[SET_MASK_LINE_LENGTH + 2];
+        frame[0] = SET_MASK_COMMAND;
+        writeHexByte(frame, 1, channelMask);
+        writeHexByte(frame, 3, values & channelMask);
+        frame[5] = '\r';
+        frame[6] = '\n';
+        return frame;
+    }
+
+    // Parses a set mask line without "\r\n". Returns (mask << 8 | values) or -1 if it isn't one
+    public static int parseSetMask(byte[] line, int offset, int length) {
+        if (length != SET_MASK_LINE_LENGTH || line[offset] != SET_MASK_COMMAND) return -1;
+        int result = 0;
+        for (int i = 1; i < SET_MASK_LINE_LENGTH; i++) {
+            int digit = Character.digit(line[offset + i], 16);
+            if (digit < 0) return -1;
+            result = (result << 4) | digit;
+        }
+        int channelMask = result >>> 8;
+        if (channelMask >= (1 << SUPPORTED_CHANNELS.length)) return -1;
+        return result;
+    }
+
+    private static void writeHexByte(byte[] destination, int offset, int value) {
+        destination[offset] = (byte) Character.toUpperCase(Character.forDigit((value >>> 4) & 0xF, 16));
+        destination[offset + 1] = (byte) Character.toUpperCase(Character.forDigit(value & 0xF, 16));
+    }
+
+    private static byte[][][] encodeCommandFrames() {
+        byte[][][] frames = new byte[SUPPORTED_CHANNELS.length][COMMAND_CLOSE + 1][];
+        for (int channelIndex = 0; channelIndex < SUPPORTED_CHANNELS.length; channelIndex++) {
+            for (int command = COMMAND_ONE_SECOND_BLINK; command <= COMMAND_CLOSE; command++) {
+                String frame = SUPPORTED_CHANNELS[channelIndex] + command + COMMAND_ENDING;
+                frames[channelIndex][command] = frame.getBytes(COMMAND_CHARSET);
+            }
+        }
+        return frames;
+    }
+}
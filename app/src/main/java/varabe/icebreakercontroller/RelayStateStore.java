@@ -0,0 +1,156 @@
+package varabe.icebreakercontroller;
+
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_CLOSE;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_INTERLOCK;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_ONE_SECOND_BLINK;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_OPEN;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_SWITCH;
+import static varabe.icebreakercontroller.RelayProtocol.SUPPORTED_CHANNELS;
+
+/*
+ * State of every relay channel as bitsets, bit i stands for SUPPORTED_CHANNELS[i]:
+ * - intended: what the operator asked for (open, closed or blinking)
+ * - confirmed: what the board has acknowledged by echoing the commands, valid for known channels
+ * Every command passes through apply(), which drops it for channels where it would change
+ * nothing: the intended state stays the same and the board has already confirmed it.
+ * Blinks are keepalives and always pass, the board opens the channel if they stop.
+ *
+ * The whole state fits into a long, so snapshots are free and can be compared with diff()
+ */
+public class RelayStateStore {
+    public static final int ALL_CHANNELS_MASK = (1 << SUPPORTED_CHANNELS.length) - 1;
+    private static final int FIELD_WIDTH = SUPPORTED_CHANNELS.length;
+    private static final int FIELD_COUNT = 5;
+
+    private int intendedClosedMask;
+    private int intendedBlinkingMask;
+    private int confirmedClosedMask;
+    private int confirmedBlinkingMask;
+    private int knownMask;
+    private long suppressedCount;
+
+    // Records the intent and returns the channels the command still has to be sent to, 0 if none
+    public synchronized int apply(int channelMask, int command) {
+        int closedBefore = intendedClosedMask;
+        int blinkingBefore = intendedBlinkingMask;
+        intendedClosedMask = closedAfter(closedBefore, blinkingBefore, channelMask, command);
+        intendedBlinkingMask = blinkingAfter(blinkingBefore, channelMask, command);
+        if (command == COMMAND_ONE_SECOND_BLINK || command == COMMAND_SWITCH) return channelMask;
+
+        int changed = (closedBefore ^ intendedClosedMask) | (blinkingBefore ^ intendedBlinkingMask);
+        int needed = changed | getUnconfirmedMask();
+        // Interlock also opens the other channels, it's redundant only if none of them changes
+        if (command != COMMAND_INTERLOCK) needed &= channelMask;
+        if (needed == 0) {
+            suppressedCount++;
+            return 0;
+        }
+        return (command == COMMAND_INTERLOCK) ? channelMask : needed;
+    }
+
+    // The board has echoed the command
+    public synchronized void confirm(int channelIndex, int command) {
+        int channelMask = 1 << channelIndex;
+        confirmedClosedMask = closedAfter(confirmedClosedMask, confirmedBlinkingMask, channelMask, command);
+        confirmedBlinkingMask = blinkingAfter(confirmedBlinkingMask, channelMask, command);
+        knownMask |= (command == COMMAND_INTERLOCK) ? ALL_CHANNELS_MASK : 1 << channelIndex;
+    }
+
+    // The board has echoed a set mask command: channels of the mask are closed or open as in values
+    public synchronized void confirmState(int channelMask, int values) {
+        confirmedClosedMask = (confirmedClosedMask & ~channelMask) | (values & channelMask);
+        confirmedBlinkingMask &= ~channelMask;
+        knownMask |= channelMask;
+    }
+
+    // The board state is unknown again, e.g. after the connection was lost
+    public synchronized void invalidateConfirmed() {
+        knownMask = 0;
+        confirmedClosedMask = 0;
+        confirmedBlinkingMask = 0;
+    }
+
+    public synchronized int getIntendedClosedMask() {
+        return intendedClosedMask;
+    }
+
+    public synchronized int getIntendedBlinkingMask() {
+        return intendedBlinkingMask;
+    }
+
+    // Channels whose confirmed state is unknown or differs from the intended one
+    public synchronized int getUnconfirmedMask() {
+        int different = (intendedClosedMask ^ confirmedClosedMask) | (intendedBlinkingMask ^ confirmedBlinkingMask);
+        return (different | ~knownMask) & ALL_CHANNELS_MASK;
+    }
+
+    // Commands that weren't sent because they would have changed nothing
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    public synchronized long getSnapshot() {
+        return pack(intendedClosedMask, 0) | pack(intendedBlinkingMask, 1) | pack(confirmedClosedMask, 2)
+                | pack(confirmedBlinkingMask, 3) | pack(knownMask, 4);
+    }
+
+    public static int getIntendedClosedMask(long snapshot) {
+        return unpack(snapshot, 0);
+    }
+
+    public static int getIntendedBlinkingMask(long snapshot) {
+        return unpack(snapshot, 1);
+    }
+
+    public static int getConfirmedClosedMask(long snapshot) {
+        return unpack(snapshot, 2);
+    }
+
+    // Channels whose intended or confirmed state differs between the two snapshots
+    public static int diff(long before, long after) {
+        long changes = before ^ after;
+        int mask = 0;
+        for (int field = 0; field < FIELD_COUNT; field++) {
+            mask |= unpack(changes, field);
+        }
+        return mask;
+    }
+
+    // Closed channels after the board executes the command
+    private static int closedAfter(int closedMask, int blinkingMask, int channelMask, int command) {
+        switch (command) {
+            case COMMAND_ONE_SECOND_BLINK:
+            case COMMAND_OPEN:
+                return closedMask & ~channelMask;
+            case COMMAND_SWITCH:
+                // A blinking channel is closed, so switching opens it
+                return closedMask ^ (channelMask & ~blinkingMask);
+            case COMMAND_INTERLOCK:
+                // The board executes the channels in order, the last one stays closed
+                return Integer.highestOneBit(channelMask);
+            case COMMAND_CLOSE:
+                return closedMask | channelMask;
+            default:
+                throw new IllegalArgumentException("Unsupported command: " + command);
+        }
+    }
+
+    private static int blinkingAfter(int blinkingMask, int channelMask, int command) {
+        switch (command) {
+            case COMMAND_ONE_SECOND_BLINK:
+                return blinkingMask | channelMask;
+            case COMMAND_INTERLOCK:
+                return 0;
+            default:
+                return blinkingMask & ~channelMask;
+        }
+    }
+
+    private static long pack(int mask, int field) {
+        return ((long) mask & ALL_CHANNELS_MASK) << (field * FIELD_WIDTH);
+    }
+
+    private static int unpack(long snapshot, int field) {
+        return (int) (snapshot >>> (field * FIELD_WIDTH)) & ALL_CHANNELS_MASK;
+    }
+}
@@ -0,0 +1,102 @@
+package varabe.icebreakercontroller;
+
+import java.util.ArrayList;
+
+/*
+ * A declared list of timed relay steps, e.g. "enable, wait 2 s, crank the starter for 3 s, open",
+ * run by the SequenceEngine. A wait is counted from the time its step was scheduled for, not from
+ * when it actually ran, so a step that fires late doesn't shift the rest of the sequence.
+ * Addresses are RelayAddresses
+ */
+public class Sequence {
+    public static final int STEP_COMMAND = 0;
+    public static final int STEP_WAIT = 1;
+    // Waits until the board has echoed the commands sent to the address, the sequence fails if it doesn't in time
+    public static final int STEP_WAIT_FOR_ACK = 2;
+    // Goes back to an earlier step a given number of times
+    public static final int STEP_REPEAT = 3;
+    // From this step on the sequence stops as soon as one of its boards is disconnected
+    public static final int STEP_ABORT_ON_DISCONNECT = 4;
+
+    static class Step {
+        final int type;
+        final int address;
+        final int command;
+        final long durationMs;
+        final int target;
+        final int count;
+
+        Step(int type, int address, int command, long durationMs, int target, int count) {
+            this.type = type;
+            this.address = address;
+            this.command = command;
+            this.durationMs = durationMs;
+            this.target = target;
+            this.count = count;
+        }
+    }
+
+    private final String name;
+    private final ArrayList<Step> steps = new ArrayList<>();
+
+    public Sequence(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getStepCount() {
+        return steps.size();
+    }
+
+    Step getStep(int index) {
+        return steps.get(index);
+    }
+
+    public Sequence command(int address, int command) {
+        return add(new Step(STEP_COMMAND, checkAddress(address), command, 0, 0, 0));
+    }
+
+    public Sequence waitMs(long durationMs) {
+        if (durationMs < 0) throw new IllegalArgumentException("Negative wait: " + durationMs);
+        return add(new Step(STEP_WAIT, 0, 0, durationMs, 0, 0));
+    }
+
+    public Sequence waitForAck(int address, long timeoutMs) {
+        return add(new Step(STEP_WAIT_FOR_ACK, checkAddress(address), 0, timeoutMs, 0, 0));
+    }
+
+    // Runs the steps from fromStep up to here count more times
+    public Sequence repeat(int fromStep, int count) {
+        if (fromStep < 0 || fromStep >= steps.size())
+            throw new IllegalArgumentException("No step " + fromStep + " to repeat from");
+        return add(new Step(STEP_REPEAT, 0, 0, 0, fromStep, count));
+    }
+
+    public Sequence abortOnDisconnect() {
+        return add(new Step(STEP_ABORT_ON_DISCONNECT, 0, 0, 0, 0, 0));
+    }
+
+    // Boards the sequence sends to, bit i for board i
+    int getBoardMask() {
+        int boardMask = 0;
+        for (Step step : steps) {
+            if (step.type == STEP_COMMAND || step.type == STEP_WAIT_FOR_ACK)
+                boardMask |= 1 << RelayAddress.getBoardId(step.address);
+        }
+        return boardMask;
+    }
+
+    private Sequence add(Step step) {
+        steps.add(step);
+        return this;
+    }
+
+    private static int checkAddress(int address) {
+        if (address < 0 || address >= RelayAddress.MAX_ADDRESSES)
+            throw new IllegalArgumentException("Relay address " + address + " is not supported");
+        return address;
+    }
+}
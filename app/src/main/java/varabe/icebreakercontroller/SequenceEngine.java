@@ -0,0 +1,310 @@
+package varabe.icebreakercontroller;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.concurrent.locks.LockSupport;
+
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_OPEN;
+
+/*
+ * Runs Sequences on one high priority thread of its own, so starter and vibrator pulses don't
+ * depend on the main thread being free. Every step has an absolute deadline on System.nanoTime:
+ * a wait moves the deadline of the next step on from the previous deadline, so lateness doesn't
+ * add up over a sequence. The thread parks until shortly before a deadline and spins the rest,
+ * a park alone may oversleep by a scheduler tick.
+ *
+ * A sequence that is cancelled, loses a board, misses an ack or runs into an interlock opens every
+ * channel it left closed.
+ * How late each step fired is logged per step when the sequence ends
+ */
+public class SequenceEngine {
+    private static final String TAG = "SequenceEngine";
+
+    public static final int RESULT_COMPLETED = 0;
+    public static final int RESULT_CANCELLED = 1;
+    public static final int RESULT_DISCONNECTED = 2;
+    public static final int RESULT_ACK_TIMEOUT = 3;
+    // A command was refused by an interlock rule
+    public static final int RESULT_INTERLOCKED = 4;
+
+    // Parks end this much before the deadline, the rest is spun
+    private static final long SPIN_NANOS = 500000;
+    // How often acks and connections are checked while a sequence waits for them
+    private static final long POLL_NANOS = 1000000;
+    private static final long CONNECTION_CHECK_NANOS = 10000000;
+
+    // Called on the engine thread
+    public interface Listener {
+        void onFinished(Run run, int result);
+    }
+
+    private final ConnectionPool pool;
+    // Guarded by this
+    private final ArrayList<Run> runs = new ArrayList<>();
+    private Run[] active = new Run[4];
+    private Thread thread;
+
+    public SequenceEngine(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    public synchronized Run start(Sequence sequence, Listener listener) {
+        Run run = new Run(sequence, listener, System.nanoTime());
+        runs.add(run);
+        if (thread == null) {
+            thread = new EngineThread();
+            thread.start();
+        } else {
+            LockSupport.unpark(thread);
+        }
+        return run;
+    }
+
+    public synchronized void cancelAll() {
+        for (Run run : runs) {
+            run.cancel();
+        }
+    }
+
+    public synchronized int getRunningCount() {
+        return runs.size();
+    }
+
+    private synchronized void wakeUp() {
+        if (thread != null) LockSupport.unpark(thread);
+    }
+
+    public class Run {
+        private final Sequence sequence;
+        private final Listener listener;
+        private final int boardMask;
+        // Stop generation the run started in, its closing steps are refused after an emergency stop
+        private final int generation;
+        private volatile boolean cancelled;
+        private int result = -1;
+
+        // Engine thread only
+        private int stepIndex;
+        private long deadline;
+        private long ackDeadline;
+        private boolean waitingForAck;
+        private boolean watchingConnection;
+        private long closedGroup;
+        private final int[] repeatCounts;
+        // Lateness of every step: how many times it fired, in total and at most
+        private final int[] firedCounts;
+        private final long[] totalLateNanos;
+        private final long[] maxLateNanos;
+
+        Run(Sequence sequence, Listener listener, long startTime) {
+            this.sequence = sequence;
+            this.listener = listener;
+            this.boardMask = sequence.getBoardMask();
+            this.generation = pool.getStopGeneration();
+            this.deadline = startTime;
+            int stepCount = sequence.getStepCount();
+            repeatCounts = new int[stepCount];
+            firedCounts = new int[stepCount];
+            totalLateNanos = new long[stepCount];
+            maxLateNanos = new long[stepCount];
+        }
+
+        public Sequence getSequence() {
+            return sequence;
+        }
+
+        // Stops the sequence and opens the channels it closed, the listener is called as usual
+        public void cancel() {
+            cancelled = true;
+            wakeUp();
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        // RESULT_* once finished, -1 while running
+        public synchronized int getResult() {
+            return result;
+        }
+
+        public synchronized long getMaxLateNanos(int stepIndex) {
+            return maxLateNanos[stepIndex];
+        }
+
+        public synchronized int getFiredCount(int stepIndex) {
+            return firedCounts[stepIndex];
+        }
+
+        // Runs the steps that are due. Returns the time to be called again, or -1 with the result set
+        private long advance(long now) {
+            if (cancelled) return finish(RESULT_CANCELLED);
+            if (watchingConnection && !isConnected()) return finish(RESULT_DISCONNECTED);
+            if (waitingForAck) {
+                if (isAcknowledged(sequence.getStep(stepIndex).address)) {
+                    // The board's pace can't be made up for, the timeline goes on from the ack
+                    waitingForAck = false;
+                    deadline = now;
+                    stepIndex++;
+                } else if (now - ackDeadline >= 0) {
+                    return finish(RESULT_ACK_TIMEOUT);
+                } else {
+                    return nextCheck(now, Math.min(now + POLL_NANOS, ackDeadline));
+                }
+            }
+            while (stepIndex < sequence.getStepCount()) {
+                if (deadline - now > 0) return nextCheck(now, deadline);
+                recordLateness(stepIndex, now - deadline);
+                Sequence.Step step = sequence.getStep(stepIndex);
+                switch (step.type) {
+                    case Sequence.STEP_COMMAND:
+                        int status = pool.sendCommand(step.address, step.command, generation, this);
+                        // A refused command closed nothing, and opening its channel could undo a later command
+                        if (status == BoardLink.STATUS_INTERLOCKED) return finish(RESULT_INTERLOCKED);
+                        // An emergency stop or a cancel came after the cancelled check above
+                        if (status == BoardLink.STATUS_STOPPED) return finish(RESULT_CANCELLED);
+                        if (step.command == COMMAND_OPEN) closedGroup &= ~(1L << step.address);
+                        else closedGroup |= 1L << step.address;
+                        if (watchingConnection && (status == BoardLink.STATUS_NOT_CONNECTED
+                                || status == BoardLink.STATUS_QUEUE_FULL)) return finish(RESULT_DISCONNECTED);
+                        stepIndex++;
+                        break;
+                    case Sequence.STEP_WAIT:
+                        deadline += step.durationMs * 1000000;
+                        stepIndex++;
+                        break;
+                    case Sequence.STEP_WAIT_FOR_ACK:
+                        if (isAcknowledged(step.address)) {
+                            stepIndex++;
+                        } else {
+                            waitingForAck = true;
+                            ackDeadline = deadline + step.durationMs * 1000000;
+                            return nextCheck(now, Math.min(now + POLL_NANOS, ackDeadline));
+                        }
+                        break;
+                    case Sequence.STEP_REPEAT:
+                        if (repeatCounts[stepIndex] < step.count) {
+                            repeatCounts[stepIndex]++;
+                            stepIndex = step.target;
+                        } else {
+                            repeatCounts[stepIndex] = 0;
+                            stepIndex++;
+                        }
+                        break;
+                    case Sequence.STEP_ABORT_ON_DISCONNECT:
+                        watchingConnection = true;
+                        if (!isConnected()) return finish(RESULT_DISCONNECTED);
+                        stepIndex++;
+                        break;
+                }
+                now = System.nanoTime();
+            }
+            return finish(RESULT_COMPLETED);
+        }
+
+        private long nextCheck(long now, long wakeAt) {
+            if (watchingConnection) return Math.min(wakeAt, now + CONNECTION_CHECK_NANOS);
+            return wakeAt;
+        }
+
+        private long finish(int result) {
+            // Nothing the sequence closed may stay closed after it failed. The state store keeps
+            // the intent, so a board that is reconnecting gets the channels opened when it's back
+            if (result != RESULT_COMPLETED && closedGroup != 0) pool.sendCommandToGroup(closedGroup, COMMAND_OPEN);
+            synchronized (this) {
+                this.result = result;
+            }
+            return -1;
+        }
+
+        private synchronized void recordLateness(int stepIndex, long lateNanos) {
+            firedCounts[stepIndex]++;
+            totalLateNanos[stepIndex] += lateNanos;
+            if (lateNanos > maxLateNanos[stepIndex]) maxLateNanos[stepIndex] = lateNanos;
+        }
+
+        private boolean isConnected() {
+            for (int boardId = 0; boardId < RelayAddress.MAX_BOARDS; boardId++) {
+                if ((boardMask & (1 << boardId)) != 0 && !pool.getBoard(boardId).isConnected()) return false;
+            }
+            return true;
+        }
+
+        private boolean isAcknowledged(int address) {
+            RelayStateStore store = pool.getBoard(RelayAddress.getBoardId(address)).getStateStore();
+            return (store.getUnconfirmedMask() & (1 << RelayAddress.getChannelIndex(address))) == 0;
+        }
+
+        private synchronized String describeLateness() {
+            StringBuilder result = new StringBuilder(sequence.getName()).append(", late by, us (mean / max):");
+            for (int i = 0; i < firedCounts.length; i++) {
+                if (firedCounts[i] == 0) continue;
+                result.append(String.format(Locale.US, "\n  step %d x%d: %d / %d", i, firedCounts[i],
+                        totalLateNanos[i] / firedCounts[i] / 1000, maxLateNanos[i] / 1000));
+            }
+            return result.toString();
+        }
+    }
+
+    private class EngineThread extends Thread {
+        EngineThread() {
+            super("SequenceEngine");
+            setPriority(MAX_PRIORITY);
+        }
+
+        @Override
+        public void run() {
+            // Above the UI thread, pulses mustn't wait for a frame to be drawn
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            while (true) {
+                int count;
+                synchronized (SequenceEngine.this) {
+                    if (runs.isEmpty()) {
+                        thread = null;
+                        return;
+                    }
+                    count = runs.size();
+                    if (active.length < count) active = new Run[count * 2];
+                    runs.toArray(active);
+                }
+                long wakeAt = Long.MAX_VALUE;
+                long now = System.nanoTime();
+                for (int i = 0; i < count; i++) {
+                    Run run = active[i];
+                    active[i] = null;
+                    long next = run.advance(now);
+                    if (next == -1) {
+                        onFinished(run);
+                    } else if (wakeAt == Long.MAX_VALUE || next - wakeAt < 0) {
+                        wakeAt = next;
+                    }
+                    now = System.nanoTime();
+                }
+                if (wakeAt != Long.MAX_VALUE) sleepUntil(wakeAt);
+            }
+        }
+
+        // Returns early when a sequence is started or cancelled
+        private void sleepUntil(long wakeAt) {
+            long remaining = wakeAt - System.nanoTime();
+            if (remaining > SPIN_NANOS) {
+                LockSupport.parkNanos(SequenceEngine.this, remaining - SPIN_NANOS);
+                return;
+            }
+            while (wakeAt - System.nanoTime() > 0) {
+                // spin
+            }
+        }
+
+        private void onFinished(Run run) {
+            synchronized (SequenceEngine.this) {
+                runs.remove(run);
+            }
+            Log.i(TAG, run.describeLateness());
+            if (run.listener != null) run.listener.onFinished(run, run.getResult());
+        }
+    }
+}
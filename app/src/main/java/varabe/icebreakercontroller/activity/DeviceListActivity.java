@@ -2,26 +2,32 @@ package varabe.icebreakercontroller.activity;
 
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
 import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelUuid;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
 import android.util.Log;
 import android.view.View;
-import android.widget.AdapterView;
-import android.widget.AdapterView.OnItemClickListener;
-import android.widget.ArrayAdapter;
 import android.widget.Button;
-import android.widget.ListView;
-import android.widget.TextView;
+import android.widget.CheckBox;
 
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Collections;
+import java.util.List;
 
+import varabe.icebreakercontroller.DeviceListModel;
+import varabe.icebreakercontroller.DeviceRecord;
 import varabe.icebreakercontroller.R;
+import varabe.icebreakercontroller.bluetooth.DeviceCache;
 
 
 public class DeviceListActivity extends AppCompatActivity {
@@ -30,13 +36,27 @@ public class DeviceListActivity extends AppCompatActivity {
     private static final boolean D = false;
 
     public static final String EXTRA_DEVICE_ADDRESS = "device_address";
+    // Discovery results arriving within one frame are shown together
+    private static final long FRAME_INTERVAL_MS = 16;
 
     private BluetoothAdapter btAdapter;
-    private ArrayAdapter<String> foundDevicesArrayAdapter;
-    private final Set<String> foundDevicesSet = new HashSet<>();
-
-    private ListView foundDevicesListView;
+    private DeviceCache deviceCache;
+    private DeviceListAdapter devicesAdapter;
+    private RecyclerView foundDevicesView;
+    private View noDevicesView;
     private Button scanButton;
+    private CheckBox sppOnlyCheckBox;
+    private boolean discoveryFinished;
+
+    // Discovery results are turned into records, ranked and diffed on this thread, the main
+    // thread only applies the finished diff
+    private HandlerThread discoveryThread;
+    private Handler discoveryHandler;
+    private final Handler mainHandler = new Handler();
+    // Owned by the discovery thread
+    private final DeviceListModel model = new DeviceListModel();
+    private List<DeviceRecord> publishedRecords = Collections.emptyList();
+    private boolean publishScheduled;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -47,15 +67,31 @@ public class DeviceListActivity extends AppCompatActivity {
         setResult(Activity.RESULT_CANCELED);
 
         btAdapter = BluetoothAdapter.getDefaultAdapter();
+        deviceCache = DeviceCache.getInstance(this);
+
+        discoveryThread = new HandlerThread("DeviceDiscovery");
+        discoveryThread.start();
+        discoveryHandler = new Handler(discoveryThread.getLooper());
 
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
         filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
-        registerReceiver(btDiscoveryReceiver, filter);
-
-        foundDevicesArrayAdapter = new ArrayAdapter<>(this, R.layout.device_name);
-        foundDevicesListView = findViewById(R.id.found_devices);
-        foundDevicesListView.setAdapter(foundDevicesArrayAdapter);
-        foundDevicesListView.setOnItemClickListener(deviceClickListener);
+        registerReceiver(btDiscoveryReceiver, filter, null, discoveryHandler);
+
+        devicesAdapter = new DeviceListAdapter(deviceClickListener,
+                getString(R.string.unknown_device_name), getString(R.string.rssi_format));
+        foundDevicesView = findViewById(R.id.found_devices);
+        foundDevicesView.setLayoutManager(new LinearLayoutManager(this));
+        foundDevicesView.setAdapter(devicesAdapter);
+        noDevicesView = findViewById(R.id.none_found);
+        sppOnlyCheckBox = findViewById(R.id.spp_only);
+
+        // Boards known from earlier runs and bonded ones are listed at once, discovery only adds to them
+        discoveryHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                loadKnownDevices();
+            }
+        });
 
         scanButton = findViewById(R.id.button_scan);
         onScanButtonClicked(scanButton); // automatically start discovery
@@ -69,67 +105,131 @@ public class DeviceListActivity extends AppCompatActivity {
         }
 
         this.unregisterReceiver(btDiscoveryReceiver);
+        discoveryThread.quit();
+        mainHandler.removeCallbacksAndMessages(null);
     }
     public void onScanButtonClicked(View view) {
         Log.d(TAG, "scanButton clicked");
         doDiscovery();
         view.setEnabled(false);
     }
+    public void onSppOnlyClicked(View view) {
+        final boolean sppOnly = sppOnlyCheckBox.isChecked();
+        discoveryHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                model.setSppOnly(sppOnly);
+                schedulePublish();
+            }
+        });
+    }
     private void doDiscovery() {
         Log.d(TAG, "doDiscovery()");
-        foundDevicesArrayAdapter.clear();
-        foundDevicesSet.clear();
+        discoveryFinished = false;
+        updateNoDevicesView();
 
         setTitle(R.string.search_in_progress_message);
         if (btAdapter.isDiscovering()) btAdapter.cancelDiscovery();
         btAdapter.startDiscovery();
     }
-    private final OnItemClickListener deviceClickListener = new OnItemClickListener() {
-        public void onItemClick(AdapterView<?> av, View v, int arg2, long arg3) {
+    private final DeviceListAdapter.OnDeviceClickListener deviceClickListener = new DeviceListAdapter.OnDeviceClickListener() {
+        @Override
+        public void onDeviceClick(DeviceRecord record) {
             // Cancel discovery because it's costly and we're about to connect
             btAdapter.cancelDiscovery();
 
-            // Get the device MAC address, which is the last 17 chars in the View
-            CharSequence info = ((TextView) v).getText();
-            if (info != null) {
-                CharSequence address = info.toString().substring(info.length() - 17);
-                Intent intent = new Intent();
-                intent.putExtra(EXTRA_DEVICE_ADDRESS, address);
-
-                setResult(Activity.RESULT_OK, intent);
-                finish();
-            }
+            Intent intent = new Intent();
+            intent.putExtra(EXTRA_DEVICE_ADDRESS, record.address);
+            setResult(Activity.RESULT_OK, intent);
+            finish();
         }
     };
+    // Runs on the discovery thread
     private final BroadcastReceiver btDiscoveryReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
             String action = intent.getAction();
-            Log.d(TAG, "Recieved information during discovery: " + action);
+            if (D) Log.d(TAG, "Recieved information during discovery: " + action);
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
                 if (device != null) {
-                    Log.d(TAG, "Found device during discovery " + device.toString());
-                    String address = device.getAddress();
-                    if (!foundDevicesSet.contains(address)) {
-                        foundDevicesListView.setEnabled(true);
-                        foundDevicesSet.add(address);
-                        String name = device.getName();
-                        if ((name == null) || name.isEmpty()) name = getString(R.string.unknown_device_name);
-                        foundDevicesArrayAdapter.add(name + '\n' + device.getAddress());
+                    if (D) Log.d(TAG, "Found device during discovery " + device.toString());
+                    short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+                    DeviceCache.Entry entry = onDeviceSeen(device);
+                    if (model.update(toRecord(entry, (rssi == Short.MIN_VALUE) ? DeviceRecord.RSSI_UNKNOWN : rssi))) {
+                        schedulePublish();
                     }
                 } else {
                     Log.e(TAG, "Could not get parcelable extra from device: " + BluetoothDevice.EXTRA_DEVICE);
                 }
             } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
-                setTitle(R.string.select_device);
-                if (foundDevicesSet.isEmpty()) {
-                    String noDevices = getResources().getText(R.string.none_found).toString();
-                    foundDevicesArrayAdapter.add(noDevices);
-                    foundDevicesListView.setEnabled(false);
-                }
-                scanButton.setEnabled(true);
+                mainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        setTitle(R.string.select_device);
+                        discoveryFinished = true;
+                        updateNoDevicesView();
+                        scanButton.setEnabled(true);
+                    }
+                });
+            }
+        }
+    };
+    // Discovery thread
+    private void loadKnownDevices() {
+        if (btAdapter != null) {
+            for (BluetoothDevice device : btAdapter.getBondedDevices()) {
+                onDeviceSeen(device);
             }
         }
+        for (DeviceCache.Entry entry : deviceCache.getAll()) {
+            if (entry.isRelayBoard()) model.update(toRecord(entry, DeviceRecord.RSSI_UNKNOWN));
+        }
+        schedulePublish();
+    }
+    // Discovery thread. Changes within a frame interval are published together
+    private void schedulePublish() {
+        if (publishScheduled) return;
+        publishScheduled = true;
+        discoveryHandler.postDelayed(publish, FRAME_INTERVAL_MS);
+    }
+    private final Runnable publish = new Runnable() {
+        @Override
+        public void run() {
+            publishScheduled = false;
+            final List<DeviceRecord> records = model.snapshot();
+            final DiffUtil.DiffResult diff = DiffUtil.calculateDiff(
+                    new DeviceListAdapter.RecordDiff(publishedRecords, records));
+            publishedRecords = records;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    devicesAdapter.setRecords(records, diff);
+                    updateNoDevicesView();
+                }
+            });
+        }
     };
+    private void updateNoDevicesView() {
+        boolean empty = discoveryFinished && devicesAdapter.getItemCount() == 0;
+        noDevicesView.setVisibility(empty ? View.VISIBLE : View.GONE);
+        foundDevicesView.setVisibility(empty ? View.GONE : View.VISIBLE);
+    }
+    private DeviceCache.Entry onDeviceSeen(BluetoothDevice device) {
+        // Both come from the local Bluetooth cache, nothing is queried over the air
+        BluetoothClass bluetoothClass = device.getBluetoothClass();
+        ParcelUuid[] uuids = device.getUuids();
+        String[] uuidStrings = null;
+        if (uuids != null) {
+            uuidStrings = new String[uuids.length];
+            for (int i = 0; i < uuids.length; i++) {
+                uuidStrings[i] = uuids[i].toString();
+            }
+        }
+        return deviceCache.onSeen(device.getAddress(), device.getName(),
+                (bluetoothClass == null) ? 0 : bluetoothClass.getDeviceClass(), uuidStrings);
+    }
+    private static DeviceRecord toRecord(DeviceCache.Entry entry, int rssi) {
+        return new DeviceRecord(entry.address, entry.name, rssi, entry.isRelayCandidate(), entry.lastSuccessAt);
+    }
 }
@@ -0,0 +1,110 @@
+package varabe.icebreakercontroller.activity;
+
+import android.support.v7.util.DiffUtil;
+import android.support.v7.widget.RecyclerView;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.Collections;
+import java.util.List;
+
+import varabe.icebreakercontroller.DeviceRecord;
+import varabe.icebreakercontroller.R;
+
+// Rows of DeviceListActivity. The records are replaced as a whole together with their diff
+class DeviceListAdapter extends RecyclerView.Adapter<DeviceListAdapter.ViewHolder> {
+
+    interface OnDeviceClickListener {
+        void onDeviceClick(DeviceRecord record);
+    }
+
+    private final OnDeviceClickListener listener;
+    private final String unknownName;
+    private final String rssiFormat;
+    private List<DeviceRecord> records = Collections.emptyList();
+
+    DeviceListAdapter(OnDeviceClickListener listener, String unknownName, String rssiFormat) {
+        this.listener = listener;
+        this.unknownName = unknownName;
+        this.rssiFormat = rssiFormat;
+    }
+
+    // Main thread. The diff is computed from the previous records in the background
+    void setRecords(List<DeviceRecord> records, DiffUtil.DiffResult diff) {
+        this.records = records;
+        diff.dispatchUpdatesTo(this);
+    }
+
+    @Override
+    public ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.device_row, parent, false);
+        return new ViewHolder(view);
+    }
+
+    @Override
+    public void onBindViewHolder(ViewHolder holder, int position) {
+        DeviceRecord record = records.get(position);
+        holder.record = record;
+        holder.name.setText((record.name == null || record.name.isEmpty()) ? unknownName : record.name);
+        holder.address.setText(record.address);
+        holder.rssi.setText(record.hasRssi() ? String.format(rssiFormat, record.rssi) : "");
+    }
+
+    @Override
+    public int getItemCount() {
+        return records.size();
+    }
+
+    class ViewHolder extends RecyclerView.ViewHolder implements View.OnClickListener {
+        final TextView name;
+        final TextView address;
+        final TextView rssi;
+        DeviceRecord record;
+
+        ViewHolder(View view) {
+            super(view);
+            name = view.findViewById(R.id.device_name);
+            address = view.findViewById(R.id.device_address);
+            rssi = view.findViewById(R.id.device_rssi);
+            view.setOnClickListener(this);
+        }
+
+        @Override
+        public void onClick(View view) {
+            if (record != null) listener.onDeviceClick(record);
+        }
+    }
+
+    // Rows are the same device if the address matches
+    static class RecordDiff extends DiffUtil.Callback {
+        private final List<DeviceRecord> oldRecords;
+        private final List<DeviceRecord> newRecords;
+
+        RecordDiff(List<DeviceRecord> oldRecords, List<DeviceRecord> newRecords) {
+            this.oldRecords = oldRecords;
+            this.newRecords = newRecords;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return oldRecords.size();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return newRecords.size();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldPosition, int newPosition) {
+            return oldRecords.get(oldPosition).address.equals(newRecords.get(newPosition).address);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldPosition, int newPosition) {
+            return oldRecords.get(oldPosition).sameContents(newRecords.get(newPosition));
+        }
+    }
+}
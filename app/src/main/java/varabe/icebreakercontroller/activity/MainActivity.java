@@ -18,11 +18,14 @@ import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 
+import varabe.icebreakercontroller.BuildConfig;
+import varabe.icebreakercontroller.LatencyRecorder;
 import varabe.icebreakercontroller.PagerAdapter;
 import varabe.icebreakercontroller.R;
 import varabe.icebreakercontroller.RelayController;
 import varabe.icebreakercontroller.bluetooth.BluetoothResponseHandler;
-import varabe.icebreakercontroller.relaybutton.RelayButton;
+import varabe.icebreakercontroller.bluetooth.ConnectionEventBus;
+import varabe.icebreakercontroller.relaybutton.ButtonRegistry;
 
 import static varabe.icebreakercontroller.bluetooth.BluetoothResponseHandler.MESSAGE_NOT_CONNECTED;
 
@@ -34,6 +37,7 @@ public class MainActivity extends AppCompatActivity {
     static final int REQUEST_CONNECT_DEVICE = 1;
     static final int REQUEST_ENABLE_BT = 2;
     static final int REQUEST_FINE_LOCATION_PERMISSION = 3;
+    static final int REQUEST_ADD_BOARD = 4;
 
     // Colors
     public static int RELEASED_BUTTON_COLOR;
@@ -46,12 +50,18 @@ public class MainActivity extends AppCompatActivity {
     private BluetoothAdapter btAdapter;
     private static RelayController relayController;
     public BluetoothResponseHandler handler;
+    // Outlives the activity like the connection, every new activity subscribes its own handler
+    private static ConnectionEventBus eventBus;
     private String deviceName;
 
     public static RelayController getRelayController() {
         return relayController;
     }
 
+    public static ConnectionEventBus getEventBus() {
+        return eventBus;
+    }
+
     public String getDeviceName() {
         return deviceName;
     }
@@ -80,7 +90,11 @@ public class MainActivity extends AppCompatActivity {
         }
         if (handler == null) handler = new BluetoothResponseHandler(this);
         else handler.setTarget(this);
+        if (eventBus == null) eventBus = new ConnectionEventBus();
+        eventBus.subscribe(handler, BluetoothResponseHandler.SUBSCRIBED_EVENTS, ConnectionEventBus.THREAD_MAIN);
         relayController = new RelayController(this);
+        // Touch-to-reply latency is recorded in debug builds, RelayController logs it on disconnect
+        LatencyRecorder.getInstance().setEnabled(BuildConfig.DEBUG);
         setupInterface();
 
         RELEASED_BUTTON_COLOR = getResources().getColor(R.color.releasedButtonColor);
@@ -95,7 +109,7 @@ public class MainActivity extends AppCompatActivity {
 
     private void setupInterface() {
         setSupportActionBar((Toolbar) findViewById(R.id.toolbar));
-        RelayButton.clearButtons();
+        ButtonRegistry.getInstance().clear();
         setupTabLayout();
     }
 
@@ -126,6 +140,12 @@ public class MainActivity extends AppCompatActivity {
         });
     }
 
+    @Override
+    protected void onDestroy() {
+        eventBus.unsubscribe(handler);
+        super.onDestroy();
+    }
+
     @Override
     public void onStart() {
         super.onStart();
@@ -148,9 +168,21 @@ public class MainActivity extends AppCompatActivity {
         return true;
     }
     @Override
+    public boolean onPrepareOptionsMenu(Menu menu) {
+        // More boards can be added once one is connected
+        boolean canAddBoard = relayController.isConnected() && relayController.getPool().getFreeBoardId() >= 0;
+        menu.findItem(R.id.action_add_board).setVisible(canAddBoard);
+        menu.findItem(R.id.action_emergency_stop).setVisible(relayController.isConnected());
+        return super.onPrepareOptionsMenu(menu);
+    }
+    @Override
     public boolean onOptionsItemSelected(MenuItem item) {
         switch (item.getItemId()) {
 
+            case R.id.action_emergency_stop:
+                relayController.emergencyStop();
+                return true;
+
             case R.id.action_bluetooth:
                 if (isAdapterReady()) {
                     if (relayController.isConnected()) relayController.stopConnection();
@@ -160,6 +192,12 @@ public class MainActivity extends AppCompatActivity {
                     startActivityForResult(enableBtIntent, REQUEST_ENABLE_BT);
                 }
                 return true;
+            case R.id.action_add_board:
+                if (isAdapterReady()) {
+                    Intent discoverBtDevicesIntent = new Intent(this, DeviceListActivity.class);
+                    startActivityForResult(discoverBtDevicesIntent, REQUEST_ADD_BOARD);
+                }
+                return true;
             default:
                 Log.d(TAG, "User clicked item in menu that we don't support yet");
                 return true;
@@ -178,6 +216,14 @@ public class MainActivity extends AppCompatActivity {
                         relayController.connect(device);
                 }
                 break;
+            case REQUEST_ADD_BOARD:
+                // The new board gets the lowest free board id, its buttons are tagged "<id>:<channel>"
+                if (resultCode == Activity.RESULT_OK && isAdapterReady()) {
+                    String address = data.getStringExtra(DeviceListActivity.EXTRA_DEVICE_ADDRESS);
+                    int boardId = relayController.getPool().getFreeBoardId();
+                    if (boardId >= 0) relayController.connect(boardId, btAdapter.getRemoteDevice(address));
+                }
+                break;
             case REQUEST_ENABLE_BT:
                 // When the request to enable Bluetooth returns
                 pendingRequestEnableBt = false;
@@ -209,10 +255,10 @@ public class MainActivity extends AppCompatActivity {
         ActionBar bar = getSupportActionBar();
         if (deviceName != null) {
             bar.setSubtitle(deviceName);
-            RelayButton.setEnabledAllButtons(true);
+            ButtonRegistry.getInstance().setEnabledAll(true);
         } else {
             bar.setSubtitle(MESSAGE_NOT_CONNECTED);
-            RelayButton.setEnabledAllButtons(false);
+            ButtonRegistry.getInstance().setEnabledAll(false);
         }
     }
 }
@@ -0,0 +1,332 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import varabe.icebreakercontroller.LatencyRecorder;
+import varabe.icebreakercontroller.RelayProtocol;
+
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_OPEN;
+
+/*
+ * Matches relay board replies to the commands that caused them. The board echoes every command
+ * line it executes ("A3" for "A3\r\n"), so each command line written to the board is kept in a
+ * fixed-size pending table until its echo arrives or its deadline passes.
+ *
+ * Round-trip time is measured per command (commands that had to be resent aren't sampled, the
+ * echo could belong to any of the copies). COMMAND_OPEN is safety-critical: if the echo of a
+ * channel's open line ("A3") doesn't arrive in time it is handed to the Retransmitter again, up to
+ * maxRetransmits times. Other lines, set mask ones included, are never resent. A later command for
+ * the same channel, or a set mask covering it, supersedes a pending open: resending it would undo
+ * the newer one
+ */
+public class AckTracker {
+    public static final int DEFAULT_ACK_TIMEOUT_MS = 300;
+    public static final int DEFAULT_MAX_RETRANSMITS = 3;
+    private static final int PENDING_CAPACITY = 32;
+    // "<channel><command>\r\n"
+    private static final int CHANNEL_LINE_LENGTH = 4;
+    private static final byte OPEN_COMMAND = (byte) ('0' + COMMAND_OPEN);
+
+    public interface Retransmitter {
+        void retransmit(byte[] frame, int offset, int length);
+    }
+
+    private final Retransmitter retransmitter;
+    // Pending table, a slot is free when its frame is null
+    private final byte[][] frames = new byte[PENDING_CAPACITY][];
+    private final int[] offsets = new int[PENDING_CAPACITY];
+    private final int[] lengths = new int[PENDING_CAPACITY];
+    private final long[] sentAt = new long[PENDING_CAPACITY];
+    private final long[] deadlines = new long[PENDING_CAPACITY];
+    private final int[] retransmits = new int[PENDING_CAPACITY];
+    private final boolean[] critical = new boolean[PENDING_CAPACITY];
+    // LatencyRecorder span of the command, NO_SPAN if it isn't traced
+    private final int[] spans = new int[PENDING_CAPACITY];
+
+    private long ackTimeoutNanos = DEFAULT_ACK_TIMEOUT_MS * 1000000L;
+    private int maxRetransmits = DEFAULT_MAX_RETRANSMITS;
+
+    private long ackedCount;
+    private long retransmitCount;
+    private long lostCount;
+    private long untrackedCount;
+    private long supersededCount;
+    private long lastRttNanos = -1;
+    private long smoothedRttNanos = -1;
+    private long rttVariationNanos = -1;
+    private long minRttNanos = Long.MAX_VALUE;
+    private long maxRttNanos;
+    private int lastAckedSpan = LatencyRecorder.NO_SPAN;
+
+    public AckTracker(Retransmitter retransmitter) {
+        this.retransmitter = retransmitter;
+    }
+
+    public synchronized void setAckTimeout(int millis) {
+        if (millis <= 0) throw new IllegalArgumentException("Ack timeout must be positive: " + millis);
+        ackTimeoutNanos = millis * 1000000L;
+    }
+
+    public synchronized int getAckTimeout() {
+        return (int) (ackTimeoutNanos / 1000000L);
+    }
+
+    public synchronized void setMaxRetransmits(int count) {
+        if (count < 0) throw new IllegalArgumentException("Retransmit count can't be negative: " + count);
+        maxRetransmits = count;
+    }
+
+    // Registers every "\r\n"-terminated command line of the written data
+    public void track(byte[] data, int offset, int length, long now) {
+        track(data, offset, length, now, LatencyRecorder.NO_SPAN);
+    }
+
+    // Same, the lines belong to the given LatencyRecorder span
+    public void track(byte[] data, int offset, int length, long now, int span) {
+        track(data, offset, length, now, span, false);
+    }
+
+    /*
+     * A probe's lines are only awaited: they are never resent and don't supersede anything, the
+     * link monitor sends the next probe itself
+     */
+    public synchronized void track(byte[] data, int offset, int length, long now, int span, boolean probe) {
+        int lineStart = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (data[i] == '\n') {
+                if (i - lineStart > 1) trackLine(data, lineStart, i + 1 - lineStart, now, span, probe);
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    // Drops the lines tracked for data at the given time, e.g. because the data couldn't be queued
+    public synchronized void untrack(byte[] data, long trackedAt) {
+        for (int slot = 0; slot < PENDING_CAPACITY; slot++) {
+            if (frames[slot] == data && sentAt[slot] == trackedAt) frames[slot] = null;
+        }
+    }
+
+    /*
+     * Drops the lines of data that was discarded before it reached the board, for every line the
+     * oldest pending one with the same content. Queues hold copies of the frames, so discarded
+     * data can only be matched by what it carries
+     */
+    public synchronized void untrackDiscarded(byte[] data, int offset, int length) {
+        int lineStart = offset;
+        int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            if (data[i] == '\n') {
+                int oldest = findOldest(data, lineStart, i + 1 - lineStart);
+                if (oldest >= 0) frames[oldest] = null;
+                lineStart = i + 1;
+            }
+        }
+    }
+
+    // Pending commands are no longer resent, e.g. because an emergency stop overrides them
+    public synchronized void dropRetransmits() {
+        for (int slot = 0; slot < PENDING_CAPACITY; slot++) {
+            critical[slot] = false;
+        }
+    }
+
+    // Returns true if the line was an echo of a pending command
+    public synchronized boolean onLine(ResponseFramer.Line line, long now) {
+        int oldest = -1;
+        for (int slot = 0; slot < PENDING_CAPACITY; slot++) {
+            if (frames[slot] != null && line.contentEquals(frames[slot], offsets[slot], commandLength(slot))
+                    && (oldest < 0 || sentAt[slot] < sentAt[oldest])) {
+                oldest = slot;
+            }
+        }
+        if (oldest < 0) return false;
+        ackedCount++;
+        if (retransmits[oldest] == 0) recordRtt(now - sentAt[oldest]);
+        lastAckedSpan = spans[oldest];
+        frames[oldest] = null;
+        return true;
+    }
+
+    // Resends overdue critical commands and gives up on the rest. Called periodically
+    public void checkDeadlines(long now) {
+        while (true) {
+            byte[] frame;
+            int offset, length;
+            synchronized (this) {
+                int slot = findOverdue(now);
+                if (slot < 0) return;
+                if (!critical[slot] || retransmits[slot] >= maxRetransmits) {
+                    lostCount++;
+                    frames[slot] = null;
+                    continue;
+                }
+                retransmits[slot]++;
+                retransmitCount++;
+                deadlines[slot] = now + ackTimeoutNanos;
+                frame = frames[slot];
+                offset = offsets[slot];
+                length = lengths[slot];
+            }
+            // Outside the lock: the retransmitter may block on the connector
+            retransmitter.retransmit(frame, offset, length);
+        }
+    }
+
+    public synchronized void clear() {
+        for (int slot = 0; slot < PENDING_CAPACITY; slot++) {
+            frames[slot] = null;
+        }
+    }
+
+    public synchronized int getPendingCount() {
+        int count = 0;
+        for (byte[] frame : frames) {
+            if (frame != null) count++;
+        }
+        return count;
+    }
+
+    public synchronized long getAckedCount() {
+        return ackedCount;
+    }
+
+    public synchronized long getRetransmitCount() {
+        return retransmitCount;
+    }
+
+    // Commands whose echo never arrived (critical ones after all retransmits)
+    public synchronized long getLostCount() {
+        return lostCount;
+    }
+
+    // Commands that weren't tracked or were evicted because the pending table was full
+    public synchronized long getUntrackedCount() {
+        return untrackedCount;
+    }
+
+    // Pending opens dropped because a later command for their channel was tracked
+    public synchronized long getSupersededCount() {
+        return supersededCount;
+    }
+
+    // Round-trip times in nanoseconds, -1 until the first sample
+    public synchronized long getLastRtt() {
+        return lastRttNanos;
+    }
+
+    public synchronized long getSmoothedRtt() {
+        return smoothedRttNanos;
+    }
+
+    // Mean deviation of the round-trip time, -1 until the first sample
+    public synchronized long getRttVariation() {
+        return rttVariationNanos;
+    }
+
+    public synchronized long getMinRtt() {
+        return (minRttNanos == Long.MAX_VALUE) ? -1 : minRttNanos;
+    }
+
+    public synchronized long getMaxRtt() {
+        return (lastRttNanos < 0) ? -1 : maxRttNanos;
+    }
+
+    // LatencyRecorder span of the command acknowledged last, NO_SPAN if it wasn't traced
+    public synchronized int getLastAckedSpan() {
+        return lastAckedSpan;
+    }
+
+    private void trackLine(byte[] data, int offset, int length, long now, int span, boolean probe) {
+        int channelIndex = (length == CHANNEL_LINE_LENGTH) ? RelayProtocol.getChannelIndex(data[offset]) : -1;
+        boolean isCritical = !probe && channelIndex >= 0 && data[offset + 1] == OPEN_COMMAND;
+        int channelMask = (channelIndex >= 0) ? 1 << channelIndex : setMaskChannels(data, offset, length);
+        if (channelMask != 0 && !probe) supersede(channelMask);
+        int slot = findFreeSlot();
+        if (slot < 0) {
+            untrackedCount++;
+            return;
+        }
+        frames[slot] = data;
+        offsets[slot] = offset;
+        lengths[slot] = length;
+        sentAt[slot] = now;
+        deadlines[slot] = now + ackTimeoutNanos;
+        retransmits[slot] = 0;
+        critical[slot] = isCritical;
+        spans[slot] = span;
+    }
+
+    // Drops the pending opens of the channels, the command being tracked is the one that counts now
+    private void supersede(int channelMask) {
+        for (int slot = 0; slot < PENDING_CAPACITY; slot++) {
+            // Only channel open lines are critical
+            if (frames[slot] != null && critical[slot]
+                    && (channelMask & (1 << RelayProtocol.getChannelIndex(frames[slot][offsets[slot]]))) != 0) {
+                frames[slot] = null;
+                supersededCount++;
+            }
+        }
+    }
+
+    // Channels a set mask line sets, 0 if it isn't one
+    private static int setMaskChannels(byte[] data, int offset, int length) {
+        int setMask = RelayProtocol.parseSetMask(data, offset, length - 2);
+        return (setMask < 0) ? 0 : setMask >>> 8;
+    }
+
+    // A free slot or, failing that, the oldest non-critical one which stops being tracked
+    private int findFreeSlot() {
+        int oldest = -1;
+        for (int slot = 0; slot < PENDING_CAPACITY; slot++) {
+            if (frames[slot] == null) return slot;
+            if (!critical[slot] && (oldest < 0 || sentAt[slot] < sentAt[oldest])) oldest = slot;
+        }
+        if (oldest >= 0) untrackedCount++;
+        return oldest;
+    }
+
+    private int findOldest(byte[] data, int offset, int length) {
+        int oldest = -1;
+        for (int slot = 0; slot < PENDING_CAPACITY; slot++) {
+            if (frames[slot] != null && lengths[slot] == length && regionEquals(slot, data, offset)
+                    && (oldest < 0 || sentAt[slot] < sentAt[oldest])) {
+                oldest = slot;
+            }
+        }
+        return oldest;
+    }
+
+    private boolean regionEquals(int slot, byte[] data, int offset) {
+        byte[] frame = frames[slot];
+        for (int i = 0; i < lengths[slot]; i++) {
+            if (frame[offsets[slot] + i] != data[offset + i]) return false;
+        }
+        return true;
+    }
+
+    private int findOverdue(long now) {
+        for (int slot = 0; slot < PENDING_CAPACITY; slot++) {
+            if (frames[slot] != null && now - deadlines[slot] >= 0) return slot;
+        }
+        return -1;
+    }
+
+    // Length of the command without "\r\n"
+    private int commandLength(int slot) {
+        return lengths[slot] - 2;
+    }
+
+    private void recordRtt(long rtt) {
+        lastRttNanos = rtt;
+        minRttNanos = Math.min(minRttNanos, rtt);
+        maxRttNanos = Math.max(maxRttNanos, rtt);
+        // Same smoothing as TCP: rttvar = 3/4 rttvar + 1/4 |srtt - rtt|, srtt = 7/8 srtt + 1/8 rtt
+        if (smoothedRttNanos < 0) {
+            rttVariationNanos = rtt / 2;
+            smoothedRttNanos = rtt;
+        } else {
+            rttVariationNanos += (Math.abs(smoothedRttNanos - rtt) - rttVariationNanos) / 4;
+            smoothedRttNanos += (rtt - smoothedRttNanos) / 8;
+        }
+    }
+}
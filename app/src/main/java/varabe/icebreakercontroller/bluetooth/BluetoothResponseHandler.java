@@ -1,7 +1,5 @@
 package varabe.icebreakercontroller.bluetooth;
 
-import android.os.Handler;
-import android.os.Message;
 import android.support.v7.app.ActionBar;
 import android.util.Log;
 
@@ -10,27 +8,26 @@ import java.lang.ref.WeakReference;
 import varabe.icebreakercontroller.R;
 import varabe.icebreakercontroller.activity.MainActivity;
 
-public class BluetoothResponseHandler extends Handler {
+// Shows the connection state in the UI. Subscribed to the event bus on the main thread
+public class BluetoothResponseHandler extends ConnectionEventBus.Adapter {
     private static final String TAG = "BtResponseHandler";
+    // Replies and writes are handled by the connector itself, the UI needs only these
+    public static final int SUBSCRIBED_EVENTS = ConnectionEventBus.EVENT_STATE_CHANGE | ConnectionEventBus.EVENT_DEVICE_NAME
+            | ConnectionEventBus.EVENT_LINK_QUALITY;
     private WeakReference<MainActivity> mActivity;
 
-    // Message types sent from the DeviceConnector Handler
-    public static final int MESSAGE_STATE_CHANGE = 1;
-    public static final int MESSAGE_READ = 2;
-    public static final int MESSAGE_WRITE = 3;
-    public static final int MESSAGE_DEVICE_NAME = 4;
-    public static final int MESSAGE_TOAST = 5;
-
     // Messages that inform user of current connection state
     public static String MESSAGE_NOT_CONNECTED;
     public static String MESSAGE_CONNECTING;
     public static String MESSAGE_CONNECTED;
+    public static String MESSAGE_WEAK_LINK;
 
     public BluetoothResponseHandler(MainActivity activity) {
         mActivity = new WeakReference<>(activity);
         MESSAGE_NOT_CONNECTED = activity.getString(R.string.message_not_connected);
         MESSAGE_CONNECTING = activity.getString(R.string.message_connecting);
         MESSAGE_CONNECTED = activity.getString(R.string.message_connected);
+        MESSAGE_WEAK_LINK = activity.getString(R.string.message_weak_link);
     }
 
     public void setTarget(MainActivity target) {
@@ -39,44 +36,46 @@ public class BluetoothResponseHandler extends Handler {
     }
 
     @Override
-    public void handleMessage(Message msg) {
+    public void onStateChanged(int state) {
         // Меняет текст на ActionBar, чтобы оповестить пользователя о смене состояния подключения
         MainActivity activity = mActivity.get();
-        if (activity != null) {
-            switch (msg.what) {
-                case MESSAGE_STATE_CHANGE:
-                    Log.d(TAG, "MESSAGE_STATE_CHANGE: " + msg.arg1);
-                    final ActionBar bar = activity.getSupportActionBar();
-                    switch (msg.arg1) {
-                        case DeviceConnector.STATE_CONNECTED:
-                            bar.setSubtitle(MESSAGE_CONNECTED);
-                            break;
-                        case DeviceConnector.STATE_CONNECTING:
-                            bar.setSubtitle(MESSAGE_CONNECTING);
-                            break;
-                        case DeviceConnector.STATE_NONE:
-                            bar.setSubtitle(MESSAGE_NOT_CONNECTED);
-                            break;
-                    }
-                    activity.invalidateOptionsMenu();
-                    break;
-
-                case MESSAGE_DEVICE_NAME:
-                    activity.setDeviceName((String) msg.obj);
-                    break;
-
-                case MESSAGE_WRITE:
-                    // stub
-                    break;
-
-                case MESSAGE_TOAST:
-                    // stub
-                    break;
-            }
+        if (activity == null) {
+            Log.d(TAG, "onStateChanged: Activity not found");
+            return;
+        }
+        Log.d(TAG, "onStateChanged: " + state);
+        final ActionBar bar = activity.getSupportActionBar();
+        switch (state) {
+            case DeviceConnector.STATE_CONNECTED:
+                bar.setSubtitle(MESSAGE_CONNECTED);
+                break;
+            case DeviceConnector.STATE_CONNECTING:
+                bar.setSubtitle(MESSAGE_CONNECTING);
+                break;
+            case DeviceConnector.STATE_NONE:
+                bar.setSubtitle(MESSAGE_NOT_CONNECTED);
+                break;
         }
-        else {
-            Log.d(TAG, "handleMessange: Activity not found");
+        activity.invalidateOptionsMenu();
+    }
+
+    // A dead link is shown by the state change that follows. The weak link text stands in for
+    // the device name only while the link is degraded
+    @Override
+    public void onLinkQuality(int quality) {
+        MainActivity activity = mActivity.get();
+        if (activity == null || quality == LinkMonitor.QUALITY_DEAD) return;
+        if (quality == LinkMonitor.QUALITY_DEGRADED) {
+            activity.getSupportActionBar().setSubtitle(MESSAGE_WEAK_LINK);
+            return;
         }
+        String deviceName = activity.getDeviceName();
+        activity.getSupportActionBar().setSubtitle((deviceName != null) ? deviceName : MESSAGE_CONNECTED);
     }
 
-}
\ No newline at end of file
+    @Override
+    public void onDeviceName(String deviceName) {
+        MainActivity activity = mActivity.get();
+        if (activity != null) activity.setDeviceName(deviceName);
+    }
+}
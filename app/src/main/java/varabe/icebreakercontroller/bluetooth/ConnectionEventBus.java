@@ -0,0 +1,197 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/*
+ * Connection events of a DeviceConnector, delivered to the subscribers that asked for them.
+ * Every subscriber picks the events it wants and the thread they arrive on:
+ * - THREAD_MAIN: posted to the main looper, for the UI
+ * - THREAD_BACKGROUND: called right away on the connector thread that produced the event,
+ *   must be quick and must not block
+ * Producers check hasSubscribers() first, an event nobody listens to costs one volatile read
+ * and is never built, so writes don't flood the main looper unless the UI wants them
+ */
+public class ConnectionEventBus {
+    public static final int EVENT_STATE_CHANGE = 1;
+    public static final int EVENT_DEVICE_NAME = 1 << 1;
+    public static final int EVENT_READ = 1 << 2;
+    public static final int EVENT_WRITE = 1 << 3;
+    public static final int EVENT_ERROR = 1 << 4;
+    public static final int EVENT_LINK_QUALITY = 1 << 5;
+    public static final int ALL_EVENTS = (1 << 6) - 1;
+
+    public static final int THREAD_MAIN = 0;
+    public static final int THREAD_BACKGROUND = 1;
+
+    // Reasons of EVENT_ERROR
+    public static final int ERROR_CONNECTION_FAILED = 1;
+    public static final int ERROR_CONNECTION_LOST = 2;
+
+    public interface Listener {
+        void onStateChanged(int state);
+        void onDeviceName(String deviceName);
+        // A complete reply line of the board
+        void onRead(String line);
+        // One write to the socket with the given number of bytes and frames
+        void onWrite(int bytes, int frames);
+        void onError(int error);
+        // LinkMonitor.QUALITY_* of the connected link has changed
+        void onLinkQuality(int quality);
+    }
+
+    // Empty Listener, subscribers override only what they subscribe to
+    public static abstract class Adapter implements Listener {
+        @Override
+        public void onStateChanged(int state) {
+        }
+
+        @Override
+        public void onDeviceName(String deviceName) {
+        }
+
+        @Override
+        public void onRead(String line) {
+        }
+
+        @Override
+        public void onWrite(int bytes, int frames) {
+        }
+
+        @Override
+        public void onError(int error) {
+        }
+
+        @Override
+        public void onLinkQuality(int quality) {
+        }
+    }
+
+    private static class Subscription {
+        final Listener listener;
+        final int events;
+        final int thread;
+
+        Subscription(Listener listener, int events, int thread) {
+            this.listener = listener;
+            this.events = events;
+            this.thread = thread;
+        }
+    }
+
+    private final Executor mainThread;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    // Union of the subscribed events, read by the producers on every event
+    private volatile int subscribedEvents;
+
+    public ConnectionEventBus() {
+        this(new Executor() {
+            private final Handler handler = new Handler(Looper.getMainLooper());
+
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        });
+    }
+
+    // mainThread runs the deliveries of THREAD_MAIN subscribers, e.g. directly in tests
+    public ConnectionEventBus(Executor mainThread) {
+        this.mainThread = mainThread;
+    }
+
+    public synchronized void subscribe(Listener listener, int events, int thread) {
+        if (thread != THREAD_MAIN && thread != THREAD_BACKGROUND)
+            throw new IllegalArgumentException("Unknown delivery thread: " + thread);
+        unsubscribe(listener);
+        subscriptions.add(new Subscription(listener, events & ALL_EVENTS, thread));
+        updateSubscribedEvents();
+    }
+
+    public synchronized void unsubscribe(Listener listener) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.listener == listener) subscriptions.remove(subscription);
+        }
+        updateSubscribedEvents();
+    }
+
+    public boolean hasSubscribers(int event) {
+        return (subscribedEvents & event) != 0;
+    }
+
+    public void postStateChange(int state) {
+        dispatch(EVENT_STATE_CHANGE, null, state, 0);
+    }
+
+    public void postDeviceName(String deviceName) {
+        dispatch(EVENT_DEVICE_NAME, deviceName, 0, 0);
+    }
+
+    public void postRead(String line) {
+        dispatch(EVENT_READ, line, 0, 0);
+    }
+
+    public void postWrite(int bytes, int frames) {
+        dispatch(EVENT_WRITE, null, bytes, frames);
+    }
+
+    public void postError(int error) {
+        dispatch(EVENT_ERROR, null, error, 0);
+    }
+
+    public void postLinkQuality(int quality) {
+        dispatch(EVENT_LINK_QUALITY, null, quality, 0);
+    }
+
+    // Hands the event to every subscriber of it, on the thread the subscriber asked for
+    private void dispatch(final int event, final String text, final int first, final int second) {
+        if (!hasSubscribers(event)) return;
+        for (final Subscription subscription : subscriptions) {
+            if ((subscription.events & event) == 0) continue;
+            if (subscription.thread == THREAD_BACKGROUND) {
+                deliver(subscription.listener, event, text, first, second);
+            } else {
+                mainThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(subscription.listener, event, text, first, second);
+                    }
+                });
+            }
+        }
+    }
+
+    private static void deliver(Listener listener, int event, String text, int first, int second) {
+        switch (event) {
+            case EVENT_STATE_CHANGE:
+                listener.onStateChanged(first);
+                break;
+            case EVENT_DEVICE_NAME:
+                listener.onDeviceName(text);
+                break;
+            case EVENT_READ:
+                listener.onRead(text);
+                break;
+            case EVENT_WRITE:
+                listener.onWrite(first, second);
+                break;
+            case EVENT_ERROR:
+                listener.onError(first);
+                break;
+            case EVENT_LINK_QUALITY:
+                listener.onLinkQuality(first);
+                break;
+        }
+    }
+
+    private void updateSubscribedEvents() {
+        int events = 0;
+        for (Subscription subscription : subscriptions) {
+            events |= subscription.events;
+        }
+        subscribedEvents = events;
+    }
+}
@@ -0,0 +1,58 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/*
+ * The last connection that worked for each board, persisted by MAC address: socket strategy,
+ * RFCOMM channel and how long connecting took. RfcommTransport tries the known-good strategy
+ * first, so a reconnect after a drop doesn't go through the ones that fail for this board
+ */
+public class ConnectionProfiles {
+    private static final String PREFERENCES_NAME = "connection_profiles";
+    private static final String KEY_STRATEGY = ".strategy";
+    private static final String KEY_CHANNEL = ".channel";
+    private static final String KEY_CONNECT_TIME = ".connectTime";
+
+    private static ConnectionProfiles instance;
+
+    private final SharedPreferences preferences;
+
+    public static class Profile {
+        public final int strategy;
+        public final int channel;
+        public final long connectTimeMs;
+
+        public Profile(int strategy, int channel, long connectTimeMs) {
+            this.strategy = strategy;
+            this.channel = channel;
+            this.connectTimeMs = connectTimeMs;
+        }
+    }
+
+    private ConnectionProfiles(Context context) {
+        preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    public static synchronized ConnectionProfiles getInstance(Context context) {
+        if (instance == null) instance = new ConnectionProfiles(context.getApplicationContext());
+        return instance;
+    }
+
+    // Returns null if the board has never been connected
+    public Profile get(String address) {
+        if (!preferences.contains(address + KEY_STRATEGY)) return null;
+        return new Profile(preferences.getInt(address + KEY_STRATEGY, 0),
+                preferences.getInt(address + KEY_CHANNEL, 0),
+                preferences.getLong(address + KEY_CONNECT_TIME, 0));
+    }
+
+    // Written in the background
+    public void put(String address, Profile profile) {
+        preferences.edit()
+                .putInt(address + KEY_STRATEGY, profile.strategy)
+                .putInt(address + KEY_CHANNEL, profile.channel)
+                .putLong(address + KEY_CONNECT_TIME, profile.connectTimeMs)
+                .apply();
+    }
+}
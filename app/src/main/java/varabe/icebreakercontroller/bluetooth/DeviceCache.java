@@ -0,0 +1,241 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Devices seen before, persisted by MAC address, so the device list can show the relay boards
+ * at once instead of after a full discovery: name, device class, UUIDs and their services,
+ * how long the last connect took and how often connecting succeeds.
+ *
+ * Each device is one preference string (see Entry.encode), the whole cache is read once per
+ * process. Only relay candidates and devices a connect was tried with are kept, at most
+ * MAX_ENTRIES of them; the worst ranked, the longest without a successful connect, goes first.
+ * A device seen again without changes isn't written. ConnectionProfiles keeps the socket
+ * strategy, this class what the UI needs
+ */
+public class DeviceCache {
+    private static final String PREFERENCES_NAME = "device_cache";
+    public static final int MAX_ENTRIES = 32;
+    // Major class of a device that doesn't say what it is, e.g. a serial module not queried yet
+    private static final int MAJOR_CLASS_MASK = 0x1F00;
+    private static final int MAJOR_UNCATEGORIZED = 0x1F00;
+
+    private static DeviceCache instance;
+
+    private final SharedPreferences preferences;
+    private Map<String, Entry> entries;
+
+    // Best boards first: last successful connect, then success rate
+    public static final Comparator<Entry> RANKING = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry first, Entry second) {
+            if (first.lastSuccessAt != second.lastSuccessAt)
+                return (first.lastSuccessAt > second.lastSuccessAt) ? -1 : 1;
+            return Float.compare(second.getSuccessRate(), first.getSuccessRate());
+        }
+    };
+
+    public static class Entry {
+        private static final char SEPARATOR = '\t';
+        private static final String UUID_SEPARATOR = ",";
+
+        public final String address;
+        public final String name;
+        public final int deviceClass;
+        public final String[] uuids;
+        // Short UUID of every entry of uuids, ServiceUuids.NOT_SHORT_UUID for the other UUIDs
+        public final int[] services;
+        public final long connectTimeMs;
+        public final int attemptCount;
+        public final int successCount;
+        // Wall clock time, 0 if connecting has never succeeded
+        public final long lastSuccessAt;
+
+        public Entry(String address, String name, int deviceClass, String[] uuids,
+                     long connectTimeMs, int attemptCount, int successCount, long lastSuccessAt) {
+            this.address = address;
+            this.name = name;
+            this.deviceClass = deviceClass;
+            this.uuids = uuids;
+            this.connectTimeMs = connectTimeMs;
+            this.attemptCount = attemptCount;
+            this.successCount = successCount;
+            this.lastSuccessAt = lastSuccessAt;
+            services = new int[uuids.length];
+            for (int i = 0; i < uuids.length; i++) {
+                services[i] = ServiceUuids.getShortUuid(uuids[i]);
+            }
+        }
+
+        public boolean hasService(int shortUuid) {
+            for (int service : services) {
+                if (service == shortUuid) return true;
+            }
+            return false;
+        }
+
+        // Offers the serial port profile or has been connected to before
+        public boolean isRelayBoard() {
+            return successCount > 0 || hasService(ServiceUuids.SERIAL_PORT);
+        }
+
+        // Might be a relay board: discovery doesn't fetch UUIDs, and a serial module that hasn't been
+        // queried yet reports an uncategorized class
+        public boolean isRelayCandidate() {
+            return isRelayBoard() || attemptCount > 0
+                    || (uuids.length == 0 && (deviceClass & MAJOR_CLASS_MASK) == MAJOR_UNCATEGORIZED);
+        }
+
+        public float getSuccessRate() {
+            return (attemptCount == 0) ? 0 : (float) successCount / attemptCount;
+        }
+
+        public List<String> getServiceNames() {
+            List<String> names = new ArrayList<>(uuids.length);
+            for (String uuid : uuids) {
+                names.add(ServiceUuids.describe(uuid));
+            }
+            return names;
+        }
+
+        // name, class, UUIDs separated by commas, connect time, attempts, successes, last success
+        public String encode() {
+            StringBuilder result = new StringBuilder();
+            result.append((name == null) ? "" : name.replace(SEPARATOR, ' ')).append(SEPARATOR)
+                    .append(deviceClass).append(SEPARATOR);
+            for (int i = 0; i < uuids.length; i++) {
+                if (i > 0) result.append(UUID_SEPARATOR);
+                result.append(uuids[i]);
+            }
+            return result.append(SEPARATOR).append(connectTimeMs)
+                    .append(SEPARATOR).append(attemptCount)
+                    .append(SEPARATOR).append(successCount)
+                    .append(SEPARATOR).append(lastSuccessAt).toString();
+        }
+
+        // Null if the value can't be read, e.g. written by an incompatible version
+        public static Entry decode(String address, String value) {
+            String[] fields = value.split(String.valueOf(SEPARATOR), -1);
+            if (fields.length != 7) return null;
+            try {
+                String[] uuids = fields[2].isEmpty() ? new String[0] : fields[2].split(UUID_SEPARATOR);
+                return new Entry(address, fields[0].isEmpty() ? null : fields[0], Integer.parseInt(fields[1]), uuids,
+                        Long.parseLong(fields[3]), Integer.parseInt(fields[4]), Integer.parseInt(fields[5]),
+                        Long.parseLong(fields[6]));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+    }
+
+    private DeviceCache(Context context) {
+        this(context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE));
+    }
+
+    DeviceCache(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    public static synchronized DeviceCache getInstance(Context context) {
+        if (instance == null) instance = new DeviceCache(context.getApplicationContext());
+        return instance;
+    }
+
+    // Null if the device has never been seen
+    public synchronized Entry get(String address) {
+        return getEntries().get(address);
+    }
+
+    // Every cached device, best ranked first
+    public synchronized List<Entry> getAll() {
+        List<Entry> result = new ArrayList<>(getEntries().values());
+        Collections.sort(result, RANKING);
+        return result;
+    }
+
+    /**
+     * Found by discovery or bonded. uuids may be null when they aren't known, the cached ones stay.
+     * Returns the device's entry, which is cached only if the device is a relay candidate
+     */
+    public synchronized Entry onSeen(String address, String name, int deviceClass, String[] uuids) {
+        Entry old = getEntries().get(address);
+        Entry entry;
+        if (old == null) {
+            entry = new Entry(address, name, deviceClass, (uuids == null) ? new String[0] : uuids, 0, 0, 0, 0);
+            if (!entry.isRelayCandidate()) return entry;
+        } else {
+            entry = new Entry(address, (name == null) ? old.name : name, deviceClass, (uuids == null) ? old.uuids : uuids,
+                    old.connectTimeMs, old.attemptCount, old.successCount, old.lastSuccessAt);
+            // Discovery reports the same devices over and over
+            if (entry.encode().equals(old.encode())) return old;
+        }
+        put(entry);
+        return entry;
+    }
+
+    public synchronized void onConnected(String address, long connectTimeMs) {
+        Entry old = getOrCreate(address);
+        put(new Entry(address, old.name, old.deviceClass, old.uuids, connectTimeMs,
+                old.attemptCount + 1, old.successCount + 1, System.currentTimeMillis()));
+    }
+
+    public synchronized void onConnectFailed(String address) {
+        Entry old = getOrCreate(address);
+        put(new Entry(address, old.name, old.deviceClass, old.uuids, old.connectTimeMs,
+                old.attemptCount + 1, old.successCount, old.lastSuccessAt));
+    }
+
+    private Entry getOrCreate(String address) {
+        Entry entry = getEntries().get(address);
+        return (entry != null) ? entry : new Entry(address, null, 0, new String[0], 0, 0, 0, 0);
+    }
+
+    public synchronized int size() {
+        return getEntries().size();
+    }
+
+    // Written in the background
+    private void put(Entry entry) {
+        SharedPreferences.Editor editor = preferences.edit();
+        if (getEntries().put(entry.address, entry) == null) evictOverflow(editor, entry.address);
+        editor.putString(entry.address, entry.encode()).apply();
+    }
+
+    // Drops the worst ranked entries above MAX_ENTRIES, never the one of keptAddress
+    private void evictOverflow(SharedPreferences.Editor editor, String keptAddress) {
+        while (entries.size() > MAX_ENTRIES) {
+            Entry worst = null;
+            for (Entry entry : entries.values()) {
+                if (!entry.address.equals(keptAddress) && (worst == null || RANKING.compare(entry, worst) > 0)) worst = entry;
+            }
+            entries.remove(worst.address);
+            editor.remove(worst.address);
+        }
+    }
+
+    private Map<String, Entry> getEntries() {
+        if (entries == null) {
+            entries = new HashMap<>();
+            for (Map.Entry<String, ?> stored : preferences.getAll().entrySet()) {
+                if (!(stored.getValue() instanceof String)) continue;
+                Entry entry = Entry.decode(stored.getKey(), (String) stored.getValue());
+                if (entry != null) entries.put(entry.address, entry);
+            }
+            // Written by a version that kept every device
+            if (entries.size() > MAX_ENTRIES) {
+                SharedPreferences.Editor editor = preferences.edit();
+                evictOverflow(editor, null);
+                editor.apply();
+            }
+        }
+        return entries;
+    }
+}
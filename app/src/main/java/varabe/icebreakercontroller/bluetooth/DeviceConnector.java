@@ -1,51 +1,170 @@
 package varabe.icebreakercontroller.bluetooth;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
+import android.os.Build;
+import android.os.Process;
+import android.os.Trace;
 import android.util.Log;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 import varabe.icebreakercontroller.DeviceData;
+import varabe.icebreakercontroller.LatencyRecorder;
+
+import static varabe.icebreakercontroller.bluetooth.ConnectionEventBus.ERROR_CONNECTION_FAILED;
+import static varabe.icebreakercontroller.bluetooth.ConnectionEventBus.ERROR_CONNECTION_LOST;
 
-import static varabe.icebreakercontroller.bluetooth.BluetoothResponseHandler.MESSAGE_DEVICE_NAME;
-import static varabe.icebreakercontroller.bluetooth.BluetoothResponseHandler.MESSAGE_READ;
-import static varabe.icebreakercontroller.bluetooth.BluetoothResponseHandler.MESSAGE_STATE_CHANGE;
-import static varabe.icebreakercontroller.bluetooth.BluetoothResponseHandler.MESSAGE_TOAST;
-import static varabe.icebreakercontroller.bluetooth.BluetoothResponseHandler.MESSAGE_WRITE;
 
 
 public class DeviceConnector {
     private static final String TAG = "DeviceConnector";
     private static final boolean D = false;
+    // android.os.Trace section names, visible in systrace/Perfetto
+    private static final String TRACE_WRITE = "DeviceConnector.write";
+    private static final String TRACE_WIRE_WRITE = "DeviceConnector.wireWrite";
+    private static final String TRACE_READ = "DeviceConnector.onLine";
+    private static final boolean TRACE_SUPPORTED = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    private static final LatencyRecorder latencyRecorder = LatencyRecorder.getInstance();
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
     public static final int STATE_CONNECTING = 1; // now initiating an outgoing connection
     public static final int STATE_CONNECTED = 2;  // now connected to a remote device
 
+    private static final int MAX_WRITE_LENGTH = 512;
+
+    // Outbound lanes, a lower number always goes out first. Order is kept only within a lane
+    public static final int LANE_EMERGENCY = 0;   // emergency stop, written ahead of anything else
+    public static final int LANE_CONTROL = 1;     // commands of the operator
+    public static final int LANE_KEEPALIVE = 2;   // keepalive ticks of held blinking channels
+    public static final int LANE_BULK = 3;        // scene changes and other large state updates
+    public static final int LANE_COUNT = 4;
+    private static final int EMERGENCY_LANE_CAPACITY = 8;
+
+    // Worst case from an emergency write() to the wire: the wire write in progress, at most
+    // MAX_WRITE_LENGTH bytes, plus waking the writer. Slower emergency writes are logged
+    public static final int EMERGENCY_LATENCY_BUDGET_MS = 20;
+
+    // Reconnect delays after a lost connection: about BASE for the first attempt, doubling up to MAX
+    public static final int RECONNECT_BASE_DELAY_MS = 100;
+    public static final int RECONNECT_MAX_DELAY_MS = 5000;
+    // How often the LinkMonitor looks at the link
+    private static final int LINK_CHECK_PERIOD_MS = 50;
+
+    /**
+     * Вызывается при каждом установлении соединения, в нём уже можно писать.
+     * reconnected - соединение восстановлено автоматически, команды из буфера уже отправлены;
+     * здесь восстанавливается состояние каналов, которое плата могла потерять
+     */
+    public interface ConnectionListener {
+        void onConnected(DeviceConnector connector, boolean reconnected);
+    }
+
+    /**
+     * Вызывается в потоке чтения, когда плата подтвердила команду эхом
+     */
+    public interface AckListener {
+        void onAcknowledged(ResponseFramer.Line line);
+    }
+
+    /**
+     * Отправить кадр-пробу для проверки живости соединения через writeProbe(): плата должна
+     * на него ответить, ничего не меняя. false - отправить нечего. Вызывается в потоке таймера
+     */
+    public interface HeartbeatSource {
+        boolean sendHeartbeat(DeviceConnector connector);
+    }
+
     private int mState;
+    // By lane: operator commands and keepalives go out at once, bulk updates in fuller batches
+    private final AtomicReferenceArray<FlushPolicy> flushPolicies = new AtomicReferenceArray<>(new FlushPolicy[]{
+            FlushPolicy.IMMEDIATE, FlushPolicy.IMMEDIATE, FlushPolicy.IMMEDIATE,
+            FlushPolicy.boundedDelay(FlushPolicy.DEFAULT_DELAY_MS, MAX_WRITE_LENGTH)});
+    private final AtomicLong writtenFrameCount = new AtomicLong();
+    private final AtomicLong wireWriteCount = new AtomicLong();
+    // Flushes and flushed bytes by FlushPolicy mode
+    private final AtomicLongArray flushCounts = new AtomicLongArray(FlushPolicy.MODE_COUNT);
+    private final AtomicLongArray flushedBytes = new AtomicLongArray(FlushPolicy.MODE_COUNT);
+    private final AtomicLong discardedFrameCount = new AtomicLong();
+    // Enqueue-to-wire latency of the emergency lane, written by the writer thread only
+    private final AtomicLong emergencyWriteCount = new AtomicLong();
+    private volatile long lastEmergencyLatencyNanos = -1;
+    private volatile long maxEmergencyLatencyNanos = -1;
+    private final AckTracker ackTracker = new AckTracker(new AckTracker.Retransmitter() {
+        @Override
+        public void retransmit(byte[] frame, int offset, int length) {
+            enqueue(frame, offset, length, LANE_CONTROL);
+        }
+    });
+    private Timer ackTimer;
+    private volatile HeartbeatSource heartbeatSource;
+    private final LinkMonitor linkMonitor = new LinkMonitor(ackTracker, new LinkMonitor.Callback() {
+        @Override
+        public boolean sendProbe() {
+            HeartbeatSource source = heartbeatSource;
+            return source != null && source.sendHeartbeat(DeviceConnector.this);
+        }
 
-    private final BluetoothAdapter btAdapter;
-    private final BluetoothDevice connectedDevice;
+        @Override
+        public void onQualityChanged(int quality) {
+            if (eventBus != null) eventBus.postLinkQuality(quality);
+        }
+
+        @Override
+        public void onLinkDead() {
+            linkDead();
+        }
+    });
+
+    private volatile boolean autoReconnect = true;
+    private volatile ConnectionListener connectionListener;
+    private volatile AckListener ackListener;
+    private final ReconnectBuffer reconnectBuffer = new ReconnectBuffer();
+    private final Random random = new Random();
+    // Volatile so that writes can check it without the monitor
+    private volatile boolean reconnecting;
+    private int reconnectAttempt;
+    private long reconnectCount;
+    private Timer reconnectTimer;
+
+    private final Transport.Factory transportFactory;
     private ConnectThread mConnectThread;
     private ConnectedThread mConnectedThread;
-    private final Handler mHandler;
+    // Not null only while connected. Volatile, writes don't take the monitor
+    private volatile WriterThread mWriterThread;
+    private final ConnectionEventBus eventBus;
     private final String deviceName;
     // ==========================================================================
 
 
-    public DeviceConnector(DeviceData deviceData, Handler handler) {
-        mHandler = handler;
-        btAdapter = BluetoothAdapter.getDefaultAdapter();
-        connectedDevice = btAdapter.getRemoteDevice(deviceData.getAddress());
-        deviceName = (deviceData.getName() == null) ? deviceData.getAddress() : deviceData.getName();
+    /**
+     * Соединение с платой по RFCOMM. profiles - последние удачные способы соединения,
+     * deviceCache - статистика соединений для списка устройств, оба могут быть null
+     */
+    public DeviceConnector(DeviceData deviceData, ConnectionProfiles profiles, DeviceCache deviceCache,
+                           ConnectionEventBus eventBus) {
+        this(RfcommTransport.factory(deviceData.getDevice(), profiles, deviceCache),
+                (deviceData.getName() == null) ? deviceData.getAddress() : deviceData.getName(), eventBus);
+    }
+
+    /**
+     * Соединение через произвольный транспорт, например LoopbackTransport в тестах.
+     * eventBus может быть null, тогда события никому не отправляются
+     */
+    public DeviceConnector(Transport.Factory transportFactory, String deviceName, ConnectionEventBus eventBus) {
+        this.transportFactory = transportFactory;
+        this.deviceName = deviceName;
+        this.eventBus = eventBus;
         mState = STATE_NONE;
     }
     // ==========================================================================
@@ -55,7 +174,7 @@ public class DeviceConnector {
      * Запрос на соединение с устойством
      */
     public synchronized void connect() {
-        if (D) Log.d(TAG, "connect to: " + connectedDevice);
+        if (D) Log.d(TAG, "connect to: " + deviceName);
 
         if (mState == STATE_CONNECTING) {
             if (mConnectThread != null) {
@@ -71,8 +190,16 @@ public class DeviceConnector {
             mConnectedThread = null;
         }
 
+        if (mWriterThread != null) {
+            if (D) Log.d(TAG, "cancel mWriterThread");
+            mWriterThread.cancel();
+            mWriterThread = null;
+        }
+        stopAckTimer();
+        cancelReconnect();
+
         // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(connectedDevice);
+        mConnectThread = new ConnectThread();
         mConnectThread.start();
         setState(STATE_CONNECTING);
     }
@@ -96,6 +223,14 @@ public class DeviceConnector {
             mConnectedThread = null;
         }
 
+        if (mWriterThread != null) {
+            if (D) Log.d(TAG, "cancel mWriterThread");
+            mWriterThread.cancel();
+            mWriterThread = null;
+        }
+        stopAckTimer();
+        cancelReconnect();
+
         setState(STATE_NONE);
     }
     // ==========================================================================
@@ -109,7 +244,16 @@ public class DeviceConnector {
     private synchronized void setState(int state) {
         if (D) Log.d(TAG, "setState() " + mState + " -> " + state);
         mState = state;
-        mHandler.obtainMessage(MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+        if (eventBus != null) eventBus.postStateChange(state);
+    }
+    // ==========================================================================
+
+
+    /**
+     * Шина событий соединения, может быть null
+     */
+    public ConnectionEventBus getEventBus() {
+        return eventBus;
     }
     // ==========================================================================
 
@@ -123,7 +267,22 @@ public class DeviceConnector {
     // ==========================================================================
 
 
-    public synchronized void connected(BluetoothSocket socket) {
+    /**
+     * Запуск потоков для установленного соединения, затем вызов ConnectionListener.
+     * Слушатель вызывается вне монитора: он пишет под своими блокировками (см. BoardLink),
+     * а запись во время переподключения берёт монитор
+     */
+    public void connected(Transport transport) {
+        notifyConnected(startConnection(transport));
+    }
+
+    private void notifyConnected(boolean reconnected) {
+        ConnectionListener listener = connectionListener;
+        if (listener != null) listener.onConnected(this, reconnected);
+    }
+
+    // Returns whether this connection was restored automatically
+    private synchronized boolean startConnection(Transport transport) {
         if (D) Log.d(TAG, "connected");
 
         // Cancel the thread that completed the connection
@@ -139,54 +298,405 @@ public class DeviceConnector {
             mConnectedThread = null;
         }
 
+        if (mWriterThread != null) {
+            if (D) Log.d(TAG, "cancel mWriterThread");
+            mWriterThread.cancel();
+            mWriterThread = null;
+        }
+        stopAckTimer();
+
         setState(STATE_CONNECTED);
 
         // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(MESSAGE_DEVICE_NAME, deviceName);
-        mHandler.sendMessage(msg);
+        if (eventBus != null) eventBus.postDeviceName(deviceName);
 
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
+        mConnectedThread = new ConnectedThread(transport);
         mConnectedThread.start();
+        mWriterThread = new WriterThread(transport);
+        mWriterThread.start();
+        startAckTimer();
+
+        boolean reconnected = reconnecting;
+        if (reconnected) {
+            reconnecting = false;
+            reconnectAttempt = 0;
+            reconnectCount++;
+            byte[] frame;
+            while ((frame = reconnectBuffer.poll(System.nanoTime())) != null) {
+                write(frame);
+            }
+        }
+        return reconnected;
+    }
+    // ==========================================================================
+
+
+    /**
+     * Поставить данные в очередь на отправку в полосе LANE_CONTROL. Не блокируется: запись
+     * в сокет выполняет WriterThread. Во время переподключения данные ждут в буфере и
+     * отправляются, если соединение восстановится до истечения их срока жизни
+     *
+     * @return false, если соединения нет или очередь переполнена
+     */
+    public boolean write(byte[] data) {
+        return write(data, LANE_CONTROL);
+    }
+
+    /**
+     * Поставить данные в очередь полосы lane (LANE_*). Полоса с меньшим номером всегда уходит
+     * раньше, кадры LANE_EMERGENCY пишутся отдельной записью даже впереди уже собранной пачки.
+     * Монитор соединения не захватывается, пока нет переподключения
+     */
+    public boolean write(byte[] data, int lane) {
+        return write(data, lane, false);
+    }
+
+    /**
+     * Записать пробу HeartbeatSource в LANE_CONTROL. Её эхо ждут, но не повторяют
+     */
+    public boolean writeProbe(byte[] data) {
+        return write(data, LANE_CONTROL, true);
+    }
+
+    private boolean write(byte[] data, int lane, boolean probe) {
+        if (TRACE_SUPPORTED) Trace.beginSection(TRACE_WRITE);
+        try {
+            if (reconnecting) {
+                synchronized (this) {
+                    if (reconnecting) {
+                        reconnectBuffer.add(data, System.nanoTime());
+                        return true;
+                    }
+                }
+            }
+            int span = latencyRecorder.currentSpan();
+            // Tracked before it's queued: an immediate flush may get the echo back before enqueue returns
+            long now = System.nanoTime();
+            ackTracker.track(data, 0, data.length, now, span, probe);
+            if (!enqueue(data, 0, data.length, lane)) {
+                ackTracker.untrack(data, now);
+                return false;
+            }
+            latencyRecorder.markEnqueued(span);
+            return true;
+        } finally {
+            if (TRACE_SUPPORTED) Trace.endSection();
+        }
+    }
+
+    private boolean enqueue(byte[] data, int offset, int length, int lane) {
+        // The writer exists only while connected
+        WriterThread r = mWriterThread;
+        return r != null && r.enqueue(data, offset, length, lane);
+    }
+    // ==========================================================================
+
+
+    /**
+     * Отбросить кадры, ждущие отправки в полосах от fromLane и ниже, и буфер переподключения,
+     * например перед аварийной остановкой, чтобы после неё не ушли устаревшие команды.
+     * LANE_EMERGENCY не отбрасывается никогда. Кадры отбрасывает поток записи перед следующей
+     * записью, но только поставленные до вызова: команды после остановки уходят. Из собираемой
+     * пачки убираются такие же кадры. Отброшенные кадры больше не ждут эха, а с LANE_CONTROL
+     * перестают и повторяться команды, которые уже ушли
+     */
+    public void discardQueued(int fromLane) {
+        reconnectBuffer.clear();
+        // Retransmits go into LANE_CONTROL, they would be stale as well
+        if (fromLane <= LANE_CONTROL) ackTracker.dropRetransmits();
+        WriterThread r = mWriterThread;
+        if (r != null) r.requestDiscard(fromLane);
+    }
+
+    public long getDiscardedFrameCount() {
+        return discardedFrameCount.get();
+    }
+
+    /**
+     * Число кадров в очереди полосы lane
+     */
+    public int getQueuedCount(int lane) {
+        WriterThread r = mWriterThread;
+        return (r == null) ? 0 : r.queues[lane].size();
+    }
+    // ==========================================================================
+
+
+    /**
+     * Задержка полосы LANE_EMERGENCY от write() до записи в сокет, нс: последняя и наибольшая,
+     * -1, пока аварийных записей не было
+     */
+    public long getEmergencyLatency() {
+        return lastEmergencyLatencyNanos;
+    }
+
+    public long getMaxEmergencyLatency() {
+        return maxEmergencyLatencyNanos;
+    }
+
+    public long getEmergencyWriteCount() {
+        return emergencyWriteCount.get();
+    }
+    // ==========================================================================
+
+
+    /**
+     * Сопоставление ответов устройства с командами: RTT, повторы и потери
+     */
+    public AckTracker getAckTracker() {
+        return ackTracker;
+    }
+    // ==========================================================================
+
+
+    /**
+     * Запуск периодической проверки сроков подтверждения команд и живости соединения
+     */
+    private void startAckTimer() {
+        ackTracker.clear();
+        linkMonitor.reset(System.nanoTime());
+        int period = Math.max(1, ackTracker.getAckTimeout() / 2);
+        ackTimer = new Timer("AckTimer", true);
+        ackTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                ackTracker.checkDeadlines(System.nanoTime());
+            }
+        }, period, period);
+        ackTimer.scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                linkMonitor.check(System.nanoTime());
+            }
+        }, LINK_CHECK_PERIOD_MS, LINK_CHECK_PERIOD_MS);
+    }
+
+    /**
+     * Живость соединения: пробы при простое, качество связи, обнаружение мёртвого соединения
+     */
+    public LinkMonitor getLinkMonitor() {
+        return linkMonitor;
+    }
+
+    private void stopAckTimer() {
+        if (ackTimer != null) {
+            ackTimer.cancel();
+            ackTimer = null;
+        }
+    }
+    // ==========================================================================
+
+
+    /**
+     * Автоматическое переподключение после потери соединения (включено по умолчанию).
+     * Ошибка первого соединения, запрошенного через connect(), переподключение не запускает
+     */
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    public boolean isAutoReconnect() {
+        return autoReconnect;
+    }
+
+    public void setConnectionListener(ConnectionListener listener) {
+        connectionListener = listener;
+    }
+
+    public void setAckListener(AckListener listener) {
+        ackListener = listener;
+    }
+
+    public void setHeartbeatSource(HeartbeatSource source) {
+        heartbeatSource = source;
+    }
+
+    public boolean isReconnecting() {
+        return reconnecting;
+    }
+
+    public synchronized long getReconnectCount() {
+        return reconnectCount;
+    }
+
+    /**
+     * Буфер команд, записанных во время переподключения
+     */
+    public ReconnectBuffer getReconnectBuffer() {
+        return reconnectBuffer;
+    }
+    // ==========================================================================
+
+
+    /**
+     * Запуск переподключения: предыдущее соединение уже закрыто
+     */
+    private void startReconnect() {
+        reconnecting = true;
+        reconnectAttempt = 0;
+        setState(STATE_CONNECTING);
+        scheduleReconnect();
+    }
+
+    /**
+     * Следующая попытка через экспоненциально растущую задержку со случайной составляющей,
+     * чтобы попытки не шли в такт с помехами. Вызывается с захваченным this
+     */
+    private void scheduleReconnect() {
+        int shift = Math.min(reconnectAttempt, 16);
+        int delay = (int) Math.min(RECONNECT_MAX_DELAY_MS, (long) RECONNECT_BASE_DELAY_MS << shift);
+        delay = delay / 2 + random.nextInt(delay / 2 + 1);
+        reconnectAttempt++;
+        if (D) Log.d(TAG, "reconnect attempt " + reconnectAttempt + " in " + delay + " ms");
+
+        if (reconnectTimer == null) reconnectTimer = new Timer("Reconnect", true);
+        reconnectTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (DeviceConnector.this) {
+                    if (!reconnecting || mConnectThread != null) return;
+                    mConnectThread = new ConnectThread();
+                    mConnectThread.start();
+                }
+            }
+        }, delay);
+    }
+
+    private void cancelReconnect() {
+        reconnecting = false;
+        reconnectBuffer.clear();
+        if (reconnectTimer != null) {
+            reconnectTimer.cancel();
+            reconnectTimer = null;
+        }
     }
     // ==========================================================================
 
 
-    public void write(byte[] data) {
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+    /**
+     * Количество кадров, отброшенных из-за переполнения очереди текущего соединения
+     */
+    public long getOverflowCount() {
+        WriterThread r = mWriterThread;
+        if (r == null) return 0;
+        long count = 0;
+        for (FrameRingBuffer queue : r.queues) {
+            count += queue.getOverflowCount();
         }
+        return count;
+    }
+    // ==========================================================================
+
+
+    /**
+     * Политика сброса полосы: когда накопленные кадры записываются в устройство одной записью.
+     * Запись идёт по политике самой приоритетной полосы в ней. Действует со следующей записи
+     */
+    public void setFlushPolicy(int lane, FlushPolicy policy) {
+        if (lane == LANE_EMERGENCY) throw new IllegalArgumentException("Emergency frames are never held back");
+        flushPolicies.set(lane, policy);
+    }
+
+    /**
+     * Одна политика сброса для всех полос
+     */
+    public void setFlushPolicy(FlushPolicy policy) {
+        for (int lane = LANE_CONTROL; lane < LANE_COUNT; lane++) {
+            flushPolicies.set(lane, policy);
+        }
+    }
+
+    public FlushPolicy getFlushPolicy(int lane) {
+        return flushPolicies.get(lane);
+    }
+    // ==========================================================================
+
 
-        // Perform the write unsynchronized
-        if (data.length == 1) r.write(data[0]);
-        else r.writeData(data);
+    /**
+     * Статистика сброса по режимам FlushPolicy: число сбросов и байт на один сброс
+     */
+    public long getFlushCount(int mode) {
+        return flushCounts.get(mode);
+    }
+
+    public long getFlushedByteCount(int mode) {
+        return flushedBytes.get(mode);
+    }
+
+    public double getBytesPerFlush(int mode) {
+        long count = flushCounts.get(mode);
+        return (count == 0) ? 0 : (double) flushedBytes.get(mode) / count;
     }
     // ==========================================================================
 
 
-    private void connectionFailed() {
+    /**
+     * Счётчики объединения: сколько кадров отправлено, сколькими записями в сокет
+     * и сколько кадров было присоединено к чужой записи
+     */
+    public long getWrittenFrameCount() {
+        return writtenFrameCount.get();
+    }
+
+    public long getWireWriteCount() {
+        return wireWriteCount.get();
+    }
+
+    public long getMergedFrameCount() {
+        return writtenFrameCount.get() - wireWriteCount.get();
+    }
+    // ==========================================================================
+
+
+    private synchronized void connectionFailed(ConnectThread thread) {
         if (D) Log.d(TAG, "connectionFailed");
+        // The attempt was cancelled by connect() or stop()
+        if (thread != mConnectThread) return;
+        mConnectThread = null;
 
+        if (reconnecting) {
+            scheduleReconnect();
+            return;
+        }
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        if (eventBus != null) eventBus.postError(ERROR_CONNECTION_FAILED);
         setState(STATE_NONE);
     }
     // ==========================================================================
 
 
-    private void connectionLost() {
+    /**
+     * Плата не отвечает на пробы: соединение считается потерянным, не дожидаясь ошибки от ОС
+     */
+    private synchronized void linkDead() {
+        if (mConnectedThread == null) return;
+        Log.w(TAG, "No reply from " + deviceName + " for " + linkMonitor.getMaxMissed() + " probes, link is dead");
+        connectionLost(mConnectedThread);
+    }
+    // ==========================================================================
+
+
+    private synchronized void connectionLost(ConnectedThread thread) {
+        if (D) Log.d(TAG, "connectionLost");
+        // The connection was closed on purpose by connect() or stop()
+        if (thread != mConnectedThread) return;
+
+        mConnectedThread.cancel();
+        mConnectedThread = null;
+        if (mWriterThread != null) {
+            mWriterThread.cancel();
+            mWriterThread = null;
+        }
+        stopAckTimer();
+
         // Send a failure message back to the Activity
-        Message msg = mHandler.obtainMessage(MESSAGE_TOAST);
-        Bundle bundle = new Bundle();
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
-        setState(STATE_NONE);
+        if (eventBus != null) eventBus.postError(ERROR_CONNECTION_LOST);
+        if (autoReconnect) {
+            startReconnect();
+        } else {
+            setState(STATE_NONE);
+        }
     }
     // ==========================================================================
 
@@ -199,13 +709,17 @@ public class DeviceConnector {
         private static final String TAG = "ConnectThread";
         private static final boolean D = false;
 
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+        private final Transport mmTransport;
 
-        public ConnectThread(BluetoothDevice device) {
+        public ConnectThread() {
             if (D) Log.d(TAG, "create ConnectThread");
-            mmDevice = device;
-            mmSocket = BluetoothUtils.createRfcommSocket(mmDevice);
+            Transport tmp = null;
+            try {
+                tmp = transportFactory.create();
+            } catch (IOException e) {
+                if (D) Log.e(TAG, "transport isn't created", e);
+            }
+            mmTransport = tmp;
         }
         // ==========================================================================
 
@@ -215,36 +729,42 @@ public class DeviceConnector {
          */
         public void run() {
             if (D) Log.d(TAG, "ConnectThread run");
-            btAdapter.cancelDiscovery();
-            if (mmSocket == null) {
-                if (D) Log.d(TAG, "unable to connect to device, socket isn't created");
-                connectionFailed();
+            if (mmTransport == null) {
+                if (D) Log.d(TAG, "unable to connect to device, transport isn't created");
+                connectionFailed(this);
                 return;
             }
 
-            // Make a connection to the BluetoothSocket
+            // Make a connection through the transport
             try {
                 // This is a blocking call and will only return on a
                 // successful connection or an exception
-                mmSocket.connect();
+                mmTransport.connect();
             } catch (IOException e) {
-                // Close the socket
+                // Close the transport
                 try {
-                    mmSocket.close();
+                    mmTransport.close();
                 } catch (IOException e2) {
-                    if (D) Log.e(TAG, "unable to close() socket during connection failure", e2);
+                    if (D) Log.e(TAG, "unable to close() transport during connection failure", e2);
                 }
-                connectionFailed();
+                connectionFailed(this);
                 return;
             }
 
             // Reset the ConnectThread because we're done
+            boolean reconnected;
             synchronized (DeviceConnector.this) {
+                if (mConnectThread != this) {
+                    // connect() or stop() has cancelled this attempt meanwhile
+                    cancel();
+                    return;
+                }
                 mConnectThread = null;
-            }
 
-            // Start the connected thread
-            connected(mmSocket);
+                // Start the connected thread
+                reconnected = startConnection(mmTransport);
+            }
+            notifyConnected(reconnected);
         }
         // ==========================================================================
 
@@ -255,14 +775,14 @@ public class DeviceConnector {
         public void cancel() {
             if (D) Log.d(TAG, "ConnectThread cancel");
 
-            if (mmSocket == null) {
-                if (D) Log.d(TAG, "unable to close null socket");
+            if (mmTransport == null) {
+                if (D) Log.d(TAG, "unable to close null transport");
                 return;
             }
             try {
-                mmSocket.close();
+                mmTransport.close();
             } catch (IOException e) {
-                if (D) Log.e(TAG, "close() of connect socket failed", e);
+                if (D) Log.e(TAG, "close() of connect transport failed", e);
             }
         }
         // ==========================================================================
@@ -274,31 +794,27 @@ public class DeviceConnector {
      * Класс потока для обмена данными с BT-устройством
      */
     // ==========================================================================
-    private class ConnectedThread extends Thread {
+    private class ConnectedThread extends Thread implements ResponseFramer.LineListener {
         private static final String TAG = "ConnectedThread";
         private static final boolean D = false;
 
-        private final BluetoothSocket mmSocket;
+        private final Transport mmTransport;
         private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
 
-        public ConnectedThread(BluetoothSocket socket) {
+        public ConnectedThread(Transport transport) {
             if (D) Log.d(TAG, "create ConnectedThread");
 
-            mmSocket = socket;
+            mmTransport = transport;
             InputStream tmpIn = null;
-            OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the transport input stream
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = transport.getInputStream();
             } catch (IOException e) {
                 if (D) Log.e(TAG, "temp sockets not created", e);
             }
 
             mmInStream = tmpIn;
-            mmOutStream = tmpOut;
         }
         // ==========================================================================
 
@@ -309,23 +825,21 @@ public class DeviceConnector {
             if (D) Log.i(TAG, "ConnectedThread run");
             byte[] buffer = new byte[512];
             int bytes;
-            StringBuilder readMessage = new StringBuilder();
+            ResponseFramer framer = new ResponseFramer(this);
             while (true) {
                 try {
-                    // считываю входящие данные из потока и собираю в строку ответа
+                    // считываю входящие данные из потока, фреймер выделяет из них строки ответа
                     bytes = mmInStream.read(buffer);
-                    String readed = new String(buffer, 0, bytes);
-                    readMessage.append(readed);
-
-                    // маркер конца команды - вернуть ответ в главный поток
-                    if (readed.contains("\n")) {
-                        mHandler.obtainMessage(MESSAGE_READ, bytes, -1, readMessage.toString()).sendToTarget();
-                        readMessage.setLength(0);
+                    if (bytes < 0) {
+                        if (D) Log.d(TAG, "end of stream");
+                        connectionLost(this);
+                        break;
                     }
-
+                    if (bytes > 0) linkMonitor.onInbound(System.nanoTime());
+                    framer.feed(buffer, 0, bytes);
                 } catch (IOException e) {
                     if (D) Log.e(TAG, "disconnected", e);
-                    connectionLost();
+                    connectionLost(this);
                     break;
                 }
             }
@@ -334,52 +848,332 @@ public class DeviceConnector {
 
 
         /**
-         * Записать кусок данных в устройство
+         * Строка ответа целиком - вернуть её в главный поток
          */
-        public void writeData(byte[] chunk) {
+        @Override
+        public void onLine(ResponseFramer.Line line) {
+            if (TRACE_SUPPORTED) Trace.beginSection(TRACE_READ);
+            try {
+                long now = System.nanoTime();
+                if (ackTracker.onLine(line, now)) {
+                    latencyRecorder.mark(ackTracker.getLastAckedSpan(), LatencyRecorder.STAGE_REPLY, now);
+                    AckListener listener = ackListener;
+                    if (listener != null) listener.onAcknowledged(line);
+                }
+                // The line is built only if somebody wants it
+                if (eventBus != null && eventBus.hasSubscribers(ConnectionEventBus.EVENT_READ)) {
+                    eventBus.postRead(line.toString());
+                }
+            } finally {
+                if (TRACE_SUPPORTED) Trace.endSection();
+            }
+        }
+        // ==========================================================================
 
+
+        /**
+         * Отмена - закрытие транспорта
+         */
+        public void cancel() {
             try {
-                mmOutStream.write(chunk);
-                mmOutStream.flush();
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(MESSAGE_WRITE, -1, -1, chunk).sendToTarget();
+                mmTransport.close();
+            } catch (IOException e) {
+                if (D) Log.e(TAG, "close() of connect socket failed", e);
+            }
+        }
+        // ==========================================================================
+    }
+    // ==========================================================================
+
+
+    /**
+     * Класс потока, который отправляет в устройство кадры из очереди.
+     * Пишущие потоки (UI, таймеры) только кладут кадры в очередь и никогда не ждут сокет
+     */
+    // ==========================================================================
+    private class WriterThread extends Thread {
+        private static final String TAG = "WriterThread";
+        private static final boolean D = false;
+
+        private final OutputStream mmOutStream;
+        private final FrameRingBuffer[] queues = new FrameRingBuffer[LANE_COUNT];
+        private final byte[] batch = new byte[MAX_WRITE_LENGTH];
+        // Emergency frames are written on their own, the whole lane fits
+        private final byte[] emergencyBatch = new byte[EMERGENCY_LANE_CAPACITY * FrameRingBuffer.MAX_FRAME_LENGTH];
+        private int batchFrames;
+        // Highest priority lane with frames in the batch
+        private int batchTopLane;
+        // By frame of the batch: its lane, queue position and offset in batch
+        private final int[] batchLanes = new int[MAX_WRITE_LENGTH];
+        private final long[] batchPositions = new long[MAX_WRITE_LENGTH];
+        private final int[] batchOffsets = new int[MAX_WRITE_LENGTH];
+        // Lowest lane number to discard, LANE_COUNT if no discard is requested
+        private final AtomicInteger discardFromLane = new AtomicInteger(LANE_COUNT);
+        // By lane: frames below this queue position were queued before a discard request
+        private final AtomicLongArray discardTo = new AtomicLongArray(LANE_COUNT);
+        private volatile boolean cancelled;
+
+        public WriterThread(Transport transport) {
+            if (D) Log.d(TAG, "create WriterThread");
+            setName(TAG);
+            for (int lane = 0; lane < LANE_COUNT; lane++) {
+                queues[lane] = (lane == LANE_EMERGENCY) ? new FrameRingBuffer(EMERGENCY_LANE_CAPACITY) : new FrameRingBuffer();
+            }
+
+            OutputStream tmpOut = null;
+            try {
+                tmpOut = transport.getOutputStream();
             } catch (IOException e) {
-                if (D) Log.e(TAG, "Exception during write", e);
+                if (D) Log.e(TAG, "temp sockets not created", e);
             }
+            mmOutStream = tmpOut;
         }
         // ==========================================================================
 
+        /**
+         * Поставить кадр в очередь полосы и разбудить поток. Кадр помечается временем постановки
+         */
+        public boolean enqueue(byte[] data, int offset, int length, int lane) {
+            if (!queues[lane].offer(data, offset, length, System.nanoTime())) {
+                Log.w(TAG, "Outbound queue overflow, frame dropped from lane " + lane);
+                return false;
+            }
+            LockSupport.unpark(this);
+            return true;
+        }
+
+        /**
+         * Запросить отбрасывание полос от fromLane и ниже, см. discardQueued()
+         */
+        public void requestDiscard(int fromLane) {
+            fromLane = Math.max(fromLane, LANE_CONTROL);
+            for (int lane = fromLane; lane < LANE_COUNT; lane++) {
+                long end = queues[lane].getTailPosition();
+                long current;
+                do {
+                    current = discardTo.get(lane);
+                } while (end > current && !discardTo.compareAndSet(lane, current, end));
+            }
+            int current;
+            do {
+                current = discardFromLane.get();
+            } while (fromLane < current && !discardFromLane.compareAndSet(current, fromLane));
+            LockSupport.unpark(this);
+        }
+        // ==========================================================================
 
         /**
-         * Записать байт
+         * Основной рабочий метод - собирает кадры из очереди в одну запись, по политике
+         * сброса ждёт ещё кадры и отправляет. Кадры полос идут по приоритету, аварийные -
+         * отдельной записью сразу, как появились. Когда очереди пусты - засыпает
          */
-        public void write(byte command) {
-            byte[] buffer = new byte[1];
-            buffer[0] = command;
+        public void run() {
+            if (D) Log.i(TAG, "WriterThread run");
+            // An emergency stop mustn't wait for the UI thread or the keepalive ticks
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_DISPLAY);
+            while (!cancelled) {
+                discard();
+                if (!queues[LANE_EMERGENCY].isEmpty()) {
+                    writeEmergency();
+                    continue;
+                }
+                batchFrames = 0;
+                batchTopLane = LANE_COUNT;
+                // Every span enqueued up to now is in this batch or an earlier one
+                int lastEnqueuedSpan = latencyRecorder.getLastEnqueuedSpan();
+                int length = drain(0);
+                if (length == 0) {
+                    // enqueue() unparks us, so a frame offered right before parking isn't lost
+                    LockSupport.park(this);
+                    continue;
+                }
+                FlushPolicy policy = flushPolicies.get(batchTopLane);
+                if (policy.isBatching(batchFrames + getQueuedFrames()) && length < policy.maxBytes) {
+                    length = coalesce(length, policy.maxBytes,
+                            System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(policy.maxDelayMs));
+                }
+                // Emergency frames that came while collecting go ahead of the batch
+                if (!queues[LANE_EMERGENCY].isEmpty()) writeEmergency();
+                // A discard requested while collecting takes the frames queued before it
+                length = dropStale(length);
+                if (length == 0) continue;
 
-            try {
-                mmOutStream.write(buffer);
+                if (TRACE_SUPPORTED) Trace.beginSection(TRACE_WIRE_WRITE);
+                try {
+                    mmOutStream.write(batch, 0, length);
+                    mmOutStream.flush();
+                    latencyRecorder.markWritten(lastEnqueuedSpan, System.nanoTime());
+                    // Flush statistics first, they are complete once the written frames are counted
+                    flushCounts.incrementAndGet(policy.mode);
+                    flushedBytes.addAndGet(policy.mode, length);
+                    wireWriteCount.incrementAndGet();
+                    writtenFrameCount.addAndGet(batchFrames);
+                    if (eventBus != null) eventBus.postWrite(length, batchFrames);
+                } catch (IOException e) {
+                    // ConnectedThread notices the broken socket and reports connectionLost()
+                    if (D) Log.e(TAG, "Exception during write", e);
+                } finally {
+                    if (TRACE_SUPPORTED) Trace.endSection();
+                }
+            }
+        }
+        // ==========================================================================
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(MESSAGE_WRITE, -1, -1, buffer).sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+        /**
+         * Дописать в batch все готовые кадры, которые в него помещаются, полосу за полосой.
+         * Кадр, который не поместился, задерживает и полосы ниже
+         */
+        private int drain(int length) {
+            for (int lane = LANE_CONTROL; lane < LANE_COUNT; lane++) {
+                FrameRingBuffer queue = queues[lane];
+                int next;
+                while ((next = queue.peekLength()) >= 0 && length + next <= batch.length) {
+                    batchLanes[batchFrames] = lane;
+                    batchPositions[batchFrames] = queue.getHeadPosition();
+                    batchOffsets[batchFrames] = length;
+                    length += queue.poll(batch, length);
+                    batchFrames++;
+                    if (lane < batchTopLane) batchTopLane = lane;
+                }
+                if (next >= 0) break;
+            }
+            return length;
+        }
+
+        /**
+         * Ждать новые кадры до deadline, пока не наберётся maxBytes или batch не заполнится.
+         * Аварийный кадр, запрос на отбрасывание или кадр более приоритетной полосы
+         * прерывают ожидание
+         */
+        private int coalesce(int length, int maxBytes, long deadline) {
+            int topLane = batchTopLane;
+            long remaining;
+            while (!cancelled && length < maxBytes && (remaining = deadline - System.nanoTime()) > 0) {
+                if (!queues[LANE_EMERGENCY].isEmpty() || discardFromLane.get() < LANE_COUNT) break;
+                // A command that joined a bulk batch doesn't wait out the bulk delay
+                if (batchTopLane < topLane) break;
+                int next = peekNextLength();
+                if (next < 0) {
+                    LockSupport.parkNanos(this, remaining);
+                } else if (length + next > batch.length) {
+                    break;
+                } else {
+                    length = drain(length);
+                }
             }
+            return length;
+        }
+
+        // Length of the frame drain() takes next, -1 if the lanes are empty
+        private int peekNextLength() {
+            for (int lane = LANE_CONTROL; lane < LANE_COUNT; lane++) {
+                int next = queues[lane].peekLength();
+                if (next >= 0) return next;
+            }
+            return -1;
+        }
+
+        private int getQueuedFrames() {
+            int count = 0;
+            for (int lane = LANE_CONTROL; lane < LANE_COUNT; lane++) {
+                count += queues[lane].size();
+            }
+            return count;
         }
         // ==========================================================================
 
+        /**
+         * Выполнить запрос на отбрасывание. batch здесь свободен и служит черновиком
+         */
+        private void discard() {
+            discardFromLane.set(LANE_COUNT);
+            for (int lane = LANE_CONTROL; lane < LANE_COUNT; lane++) {
+                FrameRingBuffer queue = queues[lane];
+                long end = discardTo.get(lane);
+                // A frame that was still being offered at the request is left to dropStale()
+                int length;
+                while (queue.getHeadPosition() < end && (length = queue.poll(batch, 0)) >= 0) {
+                    ackTracker.untrackDiscarded(batch, 0, length);
+                    discardedFrameCount.incrementAndGet();
+                }
+            }
+        }
+
+        /**
+         * Убрать из batch кадры, поставленные до запроса на отбрасывание, остальные сдвинуть
+         * к началу. Возвращает новую длину
+         */
+        private int dropStale(int length) {
+            int kept = 0;
+            int keptLength = 0;
+            int topLane = LANE_COUNT;
+            for (int i = 0; i < batchFrames; i++) {
+                int lane = batchLanes[i];
+                int offset = batchOffsets[i];
+                int frameLength = ((i + 1 < batchFrames) ? batchOffsets[i + 1] : length) - offset;
+                if (batchPositions[i] < discardTo.get(lane)) {
+                    ackTracker.untrackDiscarded(batch, offset, frameLength);
+                    discardedFrameCount.incrementAndGet();
+                    continue;
+                }
+                if (keptLength != offset) System.arraycopy(batch, offset, batch, keptLength, frameLength);
+                batchLanes[kept] = lane;
+                batchPositions[kept] = batchPositions[i];
+                batchOffsets[kept] = keptLength;
+                keptLength += frameLength;
+                kept++;
+                if (lane < topLane) topLane = lane;
+            }
+            batchFrames = kept;
+            batchTopLane = topLane;
+            return keptLength;
+        }
 
         /**
-         * Отмена - закрытие сокета
+         * Записать все кадры аварийной полосы одной записью и измерить задержку от постановки
+         * самого старого из них до записи в сокет
          */
-        public void cancel() {
+        private void writeEmergency() {
+            FrameRingBuffer queue = queues[LANE_EMERGENCY];
+            long enqueuedAt = queue.peekStamp();
+            int length = 0;
+            int frames = 0;
+            int next;
+            while ((next = queue.peekLength()) >= 0 && length + next <= emergencyBatch.length) {
+                length += queue.poll(emergencyBatch, length);
+                frames++;
+            }
+            if (TRACE_SUPPORTED) Trace.beginSection(TRACE_WIRE_WRITE);
             try {
-                mmSocket.close();
+                mmOutStream.write(emergencyBatch, 0, length);
+                mmOutStream.flush();
+                long latency = System.nanoTime() - enqueuedAt;
+                lastEmergencyLatencyNanos = latency;
+                if (latency > maxEmergencyLatencyNanos) maxEmergencyLatencyNanos = latency;
+                emergencyWriteCount.incrementAndGet();
+                writtenFrameCount.addAndGet(frames);
+                wireWriteCount.incrementAndGet();
+                if (latency > TimeUnit.MILLISECONDS.toNanos(EMERGENCY_LATENCY_BUDGET_MS)) {
+                    Log.w(TAG, "Emergency write took " + TimeUnit.NANOSECONDS.toMicros(latency) + " us");
+                }
+                if (eventBus != null) eventBus.postWrite(length, frames);
             } catch (IOException e) {
-                if (D) Log.e(TAG, "close() of connect socket failed", e);
+                if (D) Log.e(TAG, "Exception during emergency write", e);
+            } finally {
+                if (TRACE_SUPPORTED) Trace.endSection();
             }
         }
         // ==========================================================================
+
+
+        /**
+         * Отмена - остановить поток. Транспорт закрывает ConnectedThread
+         */
+        public void cancel() {
+            cancelled = true;
+            LockSupport.unpark(this);
+        }
+        // ==========================================================================
     }
     // ==========================================================================
 }
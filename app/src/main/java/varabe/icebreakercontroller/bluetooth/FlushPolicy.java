@@ -0,0 +1,69 @@
+package varabe.icebreakercontroller.bluetooth;
+
+/*
+ * When the DeviceConnector's writer writes and flushes what it has collected:
+ * - immediate: as soon as it takes frames off the queue, the lowest latency for hold controls
+ * - bounded delay: once maxDelayMs have passed since the first frame or maxBytes are collected,
+ *   fewer and fuller writes for bulk operations such as scene changes and all-off
+ * - adaptive: immediate while at most queueDepth frames are waiting, bounded delay behind a backlog
+ * Policies are immutable, the connector picks up a new one with the next write
+ */
+public final class FlushPolicy {
+    public static final int MODE_IMMEDIATE = 0;
+    public static final int MODE_BOUNDED_DELAY = 1;
+    public static final int MODE_ADAPTIVE = 2;
+    public static final int MODE_COUNT = 3;
+
+    public static final int MAX_DELAY_MS = 5;
+    public static final int DEFAULT_DELAY_MS = 2;
+    public static final int DEFAULT_QUEUE_DEPTH = 2;
+
+    public static final FlushPolicy IMMEDIATE = new FlushPolicy(MODE_IMMEDIATE, 0, Integer.MAX_VALUE, 0);
+
+    public final int mode;
+    public final int maxDelayMs;
+    public final int maxBytes;
+    public final int queueDepth;
+
+    private FlushPolicy(int mode, int maxDelayMs, int maxBytes, int queueDepth) {
+        if (maxDelayMs < 0 || maxDelayMs > MAX_DELAY_MS)
+            throw new IllegalArgumentException("Flush delay must be within 0.." + MAX_DELAY_MS + " ms");
+        if (maxBytes <= 0) throw new IllegalArgumentException("Flush size must be positive: " + maxBytes);
+        this.mode = mode;
+        this.maxDelayMs = maxDelayMs;
+        this.maxBytes = maxBytes;
+        this.queueDepth = queueDepth;
+    }
+
+    public static FlushPolicy boundedDelay(int maxDelayMs, int maxBytes) {
+        return new FlushPolicy(MODE_BOUNDED_DELAY, maxDelayMs, maxBytes, 0);
+    }
+
+    public static FlushPolicy adaptive(int queueDepth, int maxDelayMs, int maxBytes) {
+        return new FlushPolicy(MODE_ADAPTIVE, maxDelayMs, maxBytes, queueDepth);
+    }
+
+    // Whether to wait for more frames with waitingFrames taken or still queued
+    boolean isBatching(int waitingFrames) {
+        switch (mode) {
+            case MODE_BOUNDED_DELAY:
+                return true;
+            case MODE_ADAPTIVE:
+                return waitingFrames > queueDepth;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        switch (mode) {
+            case MODE_BOUNDED_DELAY:
+                return "bounded delay (" + maxDelayMs + " ms, " + maxBytes + " bytes)";
+            case MODE_ADAPTIVE:
+                return "adaptive (over " + queueDepth + " frames: " + maxDelayMs + " ms, " + maxBytes + " bytes)";
+            default:
+                return "immediate";
+        }
+    }
+}
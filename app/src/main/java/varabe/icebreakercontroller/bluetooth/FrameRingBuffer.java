@@ -0,0 +1,139 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bounded lock-free queue of outbound frames. Any thread may offer frames (UI thread, timer
+ * threads), but only one thread (DeviceConnector's writer) may poll them.
+ *
+ * All slots are allocated up front, frames are copied in and out of them, so neither side
+ * allocates memory after construction. Every slot carries a sequence number which tells
+ * whether it is free for the producer of a given position or ready for the consumer.
+ */
+public class FrameRingBuffer {
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final int MAX_FRAME_LENGTH = 64;
+
+    private final int mask;
+    private final byte[][] frames;
+    private final int[] lengths;
+    // Whatever the producer tagged the frame with, e.g. the time it was offered
+    private final long[] stamps;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+    private volatile long head;
+
+    public FrameRingBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FrameRingBuffer(int capacity) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        mask = capacity - 1;
+        frames = new byte[capacity][MAX_FRAME_LENGTH];
+        lengths = new int[capacity];
+        stamps = new long[capacity];
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public boolean offer(byte[] data) {
+        return offer(data, 0, data.length);
+    }
+
+    public boolean offer(byte[] data, int offset, int length) {
+        return offer(data, offset, length, 0);
+    }
+
+    // Returns false if the buffer is full or the frame is too long, never blocks
+    public boolean offer(byte[] data, int offset, int length, long stamp) {
+        if (length > MAX_FRAME_LENGTH) {
+            overflowCount.incrementAndGet();
+            return false;
+        }
+        long position = tail.get();
+        int index;
+        while (true) {
+            index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) break;
+                position = tail.get();
+            } else if (difference < 0) {
+                // The consumer hasn't freed this slot yet
+                overflowCount.incrementAndGet();
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+        System.arraycopy(data, offset, frames[index], 0, length);
+        lengths[index] = length;
+        stamps[index] = stamp;
+        sequences.set(index, position + 1);
+        return true;
+    }
+
+    // Returns length of the next frame or -1 if there is no complete frame yet. Consumer only
+    public int peekLength() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) return -1;
+        return lengths[index];
+    }
+
+    // Returns the stamp of the next frame or 0 if there is no complete frame yet. Consumer only
+    public long peekStamp() {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) return 0;
+        return stamps[index];
+    }
+
+    /*
+     * Copies the next frame into destination and returns its length, or -1 if there is
+     * no complete frame yet. Consumer only
+     */
+    public int poll(byte[] destination, int offset) {
+        long position = head;
+        int index = (int) position & mask;
+        if (sequences.get(index) != position + 1) return -1;
+        int length = lengths[index];
+        System.arraycopy(frames[index], 0, destination, offset, length);
+        sequences.set(index, position + mask + 1);
+        head = position + 1;
+        return length;
+    }
+
+    // Position the next offered frame gets, every frame offered so far has a lower one
+    public long getTailPosition() {
+        return tail.get();
+    }
+
+    // Position of the frame poll() returns next. Consumer only
+    public long getHeadPosition() {
+        return head;
+    }
+
+    public boolean isEmpty() {
+        return peekLength() < 0;
+    }
+
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(size, mask + 1));
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+}
@@ -0,0 +1,172 @@
+package varabe.icebreakercontroller.bluetooth;
+
+/*
+ * Tells a dead link from a quiet one. RFCOMM reports a link that silently went away only once the
+ * OS gives up on it, which may take tens of seconds, and until then writes just vanish.
+ *
+ * Every inbound byte is a sign of life. Once nothing has come in for the heartbeat interval, a
+ * probe the board answers is sent. A probe without any reply within the probe timeout is missed,
+ * the next one goes out right away, and after maxMissed missed probes in a row the link is dead.
+ * The probe timeout follows the AckTracker's smoothed RTT like a TCP retransmission timeout:
+ * srtt + 4 * rttvar, kept within MIN_PROBE_TIMEOUT_MS..MAX_PROBE_TIMEOUT_MS. So a dead link is
+ * noticed at most heartbeat interval + maxMissed * MAX_PROBE_TIMEOUT_MS after the last byte came
+ * in, plus one check period.
+ *
+ * Time is passed in, like in AckTracker. check() is called periodically, onInbound() by the
+ * reading thread
+ */
+public class LinkMonitor {
+    public static final int DEFAULT_HEARTBEAT_INTERVAL_MS = 1000;
+    public static final int DEFAULT_MAX_MISSED = 3;
+    public static final int MIN_PROBE_TIMEOUT_MS = 250;
+    public static final int MAX_PROBE_TIMEOUT_MS = 1500;
+    // A link this slow still works, but the operator should know
+    public static final int SLOW_RTT_MS = 150;
+
+    public static final int QUALITY_GOOD = 0;
+    // Slow, or a probe has just gone unanswered
+    public static final int QUALITY_DEGRADED = 1;
+    public static final int QUALITY_DEAD = 2;
+
+    // Called from check(), outside the monitor's lock
+    public interface Callback {
+        // Writes a probe the board answers, false if there is none to send
+        boolean sendProbe();
+        void onQualityChanged(int quality);
+        // Once per reset()
+        void onLinkDead();
+    }
+
+    private final AckTracker ackTracker;
+    private final Callback callback;
+    // Written by the reading thread on every read
+    private volatile long lastInboundNanos;
+
+    private long heartbeatIntervalNanos = DEFAULT_HEARTBEAT_INTERVAL_MS * 1000000L;
+    private int maxMissed = DEFAULT_MAX_MISSED;
+    private boolean probing;
+    private long probeSentAt;
+    // No probe before this, e.g. after there was none to send
+    private long nextProbeAt;
+    private int missedCount;
+    private int quality = QUALITY_GOOD;
+    private long probeCount;
+    private long missedTotal;
+
+    public LinkMonitor(AckTracker ackTracker, Callback callback) {
+        this.ackTracker = ackTracker;
+        this.callback = callback;
+    }
+
+    public synchronized void setHeartbeatInterval(int millis) {
+        if (millis <= 0) throw new IllegalArgumentException("Heartbeat interval must be positive: " + millis);
+        heartbeatIntervalNanos = millis * 1000000L;
+    }
+
+    public synchronized int getHeartbeatInterval() {
+        return (int) (heartbeatIntervalNanos / 1000000L);
+    }
+
+    public synchronized void setMaxMissed(int count) {
+        if (count <= 0) throw new IllegalArgumentException("Missed probe count must be positive: " + count);
+        maxMissed = count;
+    }
+
+    public synchronized int getMaxMissed() {
+        return maxMissed;
+    }
+
+    // Longest time from the last inbound byte until the link is declared dead, without the check period
+    public synchronized int getDetectionBound() {
+        return getHeartbeatInterval() + maxMissed * MAX_PROBE_TIMEOUT_MS;
+    }
+
+    // A new connection: it counts as alive from now on
+    public synchronized void reset(long now) {
+        lastInboundNanos = now;
+        probing = false;
+        nextProbeAt = now;
+        missedCount = 0;
+        quality = QUALITY_GOOD;
+    }
+
+    public void onInbound(long now) {
+        lastInboundNanos = now;
+    }
+
+    public void check(long now) {
+        long timeout = getProbeTimeout();
+        long smoothedRtt = ackTracker.getSmoothedRtt();
+        boolean sendProbe = false;
+        boolean dead = false;
+        int changedQuality = -1;
+        synchronized (this) {
+            if (quality == QUALITY_DEAD) return;
+            long lastInbound = lastInboundNanos;
+            if (probing) {
+                if (lastInbound - probeSentAt >= 0) {
+                    probing = false;
+                    missedCount = 0;
+                } else if (now - probeSentAt >= timeout) {
+                    probing = false;
+                    missedCount++;
+                    missedTotal++;
+                }
+            }
+            if (missedCount >= maxMissed) {
+                dead = true;
+            } else if (!probing && now - nextProbeAt >= 0
+                    && (missedCount > 0 || now - lastInbound >= heartbeatIntervalNanos)) {
+                probing = true;
+                probeSentAt = now;
+                probeCount++;
+                sendProbe = true;
+            }
+            int newQuality = dead ? QUALITY_DEAD : (missedCount > 0 || smoothedRtt > SLOW_RTT_MS * 1000000L)
+                    ? QUALITY_DEGRADED : QUALITY_GOOD;
+            if (newQuality != quality) {
+                quality = newQuality;
+                changedQuality = newQuality;
+            }
+        }
+        if (changedQuality >= 0) callback.onQualityChanged(changedQuality);
+        if (dead) {
+            callback.onLinkDead();
+        } else if (sendProbe && !callback.sendProbe()) {
+            synchronized (this) {
+                probing = false;
+                probeCount--;
+                nextProbeAt = now + heartbeatIntervalNanos;
+            }
+        }
+    }
+
+    // srtt + 4 * rttvar in nanoseconds, the longest timeout until there is an RTT sample
+    public long getProbeTimeout() {
+        long smoothedRtt = ackTracker.getSmoothedRtt();
+        long timeout = (smoothedRtt < 0) ? MAX_PROBE_TIMEOUT_MS * 1000000L : smoothedRtt + 4 * ackTracker.getRttVariation();
+        return Math.max(MIN_PROBE_TIMEOUT_MS * 1000000L, Math.min(MAX_PROBE_TIMEOUT_MS * 1000000L, timeout));
+    }
+
+    public synchronized int getQuality() {
+        return quality;
+    }
+
+    // Nanoseconds since anything came in
+    public long getIdleTime(long now) {
+        return now - lastInboundNanos;
+    }
+
+    // Missed probes in a row
+    public synchronized int getMissedCount() {
+        return missedCount;
+    }
+
+    public synchronized long getProbeCount() {
+        return probeCount;
+    }
+
+    public synchronized long getMissedTotal() {
+        return missedTotal;
+    }
+}
@@ -0,0 +1,189 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/*
+ * In-memory transport for tests and benchmarks. Everything the app writes can be read from
+ * getBoardInputStream() and everything written to getBoardOutputStream() arrives at the app,
+ * so a simulated board can sit on the other end without any Bluetooth hardware.
+ *
+ * java.io.Piped*Stream isn't used because it breaks as soon as the last writing thread dies
+ */
+public class LoopbackTransport implements Transport {
+    private static final int PIPE_CAPACITY = 4096;
+
+    // Called for every transport created by factory(), once the app side has connected
+    public interface Board {
+        void onConnected(LoopbackTransport transport);
+    }
+
+    private final Pipe toBoard = new Pipe();
+    private final Pipe toApp = new Pipe();
+    private final Board board;
+    private volatile boolean closed;
+
+    public LoopbackTransport() {
+        this(null);
+    }
+
+    public LoopbackTransport(Board board) {
+        this.board = board;
+    }
+
+    public static Transport.Factory factory(final Board board) {
+        return new Transport.Factory() {
+            @Override
+            public Transport create() {
+                return new LoopbackTransport(board);
+            }
+        };
+    }
+
+    @Override
+    public void connect() throws IOException {
+        if (closed) throw new IOException("Transport is closed");
+        if (board != null) board.onConnected(this);
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return toApp.input;
+    }
+
+    @Override
+    public OutputStream getOutputStream() {
+        return toBoard.output;
+    }
+
+    public InputStream getBoardInputStream() {
+        return toBoard.input;
+    }
+
+    public OutputStream getBoardOutputStream() {
+        return toApp.output;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        toBoard.close();
+        toApp.close();
+    }
+
+    // While stalled, the app's writes block, like on a link whose board stopped taking data
+    public void setStalled(boolean stalled) {
+        toBoard.setStalled(stalled);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Bounded blocking byte queue with a stream on each end
+    private static class Pipe {
+        private final byte[] buffer = new byte[PIPE_CAPACITY];
+        private int readPosition;
+        private int count;
+        private boolean closed;
+        private boolean stalled;
+
+        final InputStream input = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return (read(single, 0, 1) < 0) ? -1 : single[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] destination, int offset, int length) throws IOException {
+                return Pipe.this.read(destination, offset, length);
+            }
+
+            @Override
+            public int available() {
+                synchronized (Pipe.this) {
+                    return count;
+                }
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] source, int offset, int length) throws IOException {
+                Pipe.this.write(source, offset, length);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        synchronized int read(byte[] destination, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            while (count == 0) {
+                if (closed) return -1;
+                await();
+            }
+            int read = Math.min(length, count);
+            for (int i = 0; i < read; i++) {
+                destination[offset + i] = buffer[(readPosition + i) % buffer.length];
+            }
+            readPosition = (readPosition + read) % buffer.length;
+            count -= read;
+            notifyAll();
+            return read;
+        }
+
+        synchronized void write(byte[] source, int offset, int length) throws IOException {
+            int written = 0;
+            while (stalled && !closed) await();
+            while (written < length) {
+                if (closed) throw new IOException("Pipe is closed");
+                if (count == buffer.length) {
+                    // Let the reader drain what has been written so far
+                    notifyAll();
+                    await();
+                    continue;
+                }
+                int writePosition = (readPosition + count) % buffer.length;
+                buffer[writePosition] = source[offset + written];
+                count++;
+                written++;
+            }
+            notifyAll();
+        }
+
+        synchronized void setStalled(boolean stalled) {
+            this.stalled = stalled;
+            notifyAll();
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        private void await() throws InterruptedIOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package varabe.icebreakercontroller.bluetooth;
+
+/*
+ * Frames written while the connector is reconnecting, sent once the link is back. Bounded: when
+ * full, the oldest frame is dropped. Every frame also has a time-to-live, so a reconnect doesn't
+ * fire commands the operator gave long ago. Frames are kept by reference, like in AckTracker
+ */
+public class ReconnectBuffer {
+    public static final int DEFAULT_CAPACITY = 32;
+    public static final int DEFAULT_TTL_MS = 1000;
+
+    private final byte[][] frames;
+    private final long[] addedAt;
+    private int head;
+    private int count;
+    private long ttlNanos = DEFAULT_TTL_MS * 1000000L;
+    private long overflowCount;
+    private long expiredCount;
+
+    public ReconnectBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ReconnectBuffer(int capacity) {
+        if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        frames = new byte[capacity][];
+        addedAt = new long[capacity];
+    }
+
+    public synchronized void setTtl(int millis) {
+        if (millis <= 0) throw new IllegalArgumentException("TTL must be positive: " + millis);
+        ttlNanos = millis * 1000000L;
+    }
+
+    public synchronized int getTtl() {
+        return (int) (ttlNanos / 1000000L);
+    }
+
+    public synchronized void add(byte[] frame, long now) {
+        if (count == frames.length) {
+            frames[head] = null;
+            head = (head + 1) % frames.length;
+            count--;
+            overflowCount++;
+        }
+        int tail = (head + count) % frames.length;
+        frames[tail] = frame;
+        addedAt[tail] = now;
+        count++;
+    }
+
+    // The oldest frame that hasn't expired, or null. Expired frames are discarded on the way
+    public synchronized byte[] poll(long now) {
+        while (count > 0) {
+            byte[] frame = frames[head];
+            long age = now - addedAt[head];
+            frames[head] = null;
+            head = (head + 1) % frames.length;
+            count--;
+            if (age < ttlNanos) return frame;
+            expiredCount++;
+        }
+        return null;
+    }
+
+    public synchronized void clear() {
+        while (count > 0) {
+            frames[head] = null;
+            head = (head + 1) % frames.length;
+            count--;
+        }
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    // Frames pushed out by newer ones while the buffer was full
+    public synchronized long getOverflowCount() {
+        return overflowCount;
+    }
+
+    // Frames that were too old to send when the link came back
+    public synchronized long getExpiredCount() {
+        return expiredCount;
+    }
+}
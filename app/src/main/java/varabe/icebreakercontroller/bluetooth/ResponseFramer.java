@@ -0,0 +1,131 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import java.nio.charset.Charset;
+
+/*
+ * Splits the byte stream coming from the relay board into lines terminated by "\n" (a trailing
+ * "\r" is dropped). Bytes are kept in a ring buffer which is reused for every line, each read
+ * is scanned once and every complete line is handed to the listener separately.
+ *
+ * The listener gets a Line view over the ring buffer, which is only valid during the call.
+ * Nothing is decoded to text unless the listener calls Line.toString()
+ */
+public class ResponseFramer {
+    public static final int DEFAULT_CAPACITY = 256;
+    private static final Charset CHARSET = Charset.forName("US-ASCII");
+
+    public interface LineListener {
+        void onLine(Line line);
+    }
+
+    private final byte[] ring;
+    private final int mask;
+    private final LineListener listener;
+    private final Line line = new Line();
+    private long lineStart;
+    private long end;
+    private boolean discarding;
+    private long lineCount;
+    private long oversizedLineCount;
+
+    public ResponseFramer(LineListener listener) {
+        this(DEFAULT_CAPACITY, listener);
+    }
+
+    public ResponseFramer(int capacity, LineListener listener) {
+        if (capacity < 2 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+        this.ring = new byte[capacity];
+        this.mask = capacity - 1;
+        this.listener = listener;
+    }
+
+    public void feed(byte[] data, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            if (b == '\n') {
+                completeLine();
+            } else if (!discarding) {
+                if (end - lineStart == ring.length) {
+                    // Line doesn't fit, drop it up to the next delimiter
+                    discarding = true;
+                    oversizedLineCount++;
+                    end = lineStart;
+                } else {
+                    ring[(int) end & mask] = b;
+                    end++;
+                }
+            }
+        }
+    }
+
+    // Drops a partially received line, e.g. after reconnecting
+    public void reset() {
+        lineStart = end;
+        discarding = false;
+    }
+
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    public long getOversizedLineCount() {
+        return oversizedLineCount;
+    }
+
+    private void completeLine() {
+        if (discarding) {
+            discarding = false;
+            return;
+        }
+        long lineEnd = end;
+        if (lineEnd > lineStart && ring[(int) (lineEnd - 1) & mask] == '\r') lineEnd--;
+        if (lineEnd > lineStart) {
+            line.start = lineStart;
+            line.length = (int) (lineEnd - lineStart);
+            lineCount++;
+            listener.onLine(line);
+        }
+        lineStart = end;
+    }
+
+    public final class Line {
+        private long start;
+        private int length;
+
+        private Line() {}
+
+        public int length() {
+            return length;
+        }
+
+        public byte byteAt(int index) {
+            if (index < 0 || index >= length)
+                throw new IndexOutOfBoundsException("Index " + index + ", length " + length);
+            return ring[(int) (start + index) & mask];
+        }
+
+        public boolean contentEquals(byte[] bytes, int offset, int count) {
+            if (count != length) return false;
+            for (int i = 0; i < count; i++) {
+                if (ring[(int) (start + i) & mask] != bytes[offset + i]) return false;
+            }
+            return true;
+        }
+
+        public int copyTo(byte[] destination, int offset) {
+            int from = (int) start & mask;
+            int firstPart = Math.min(length, ring.length - from);
+            System.arraycopy(ring, from, destination, offset, firstPart);
+            System.arraycopy(ring, 0, destination, offset + firstPart, length - firstPart);
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            byte[] bytes = new byte[length];
+            copyTo(bytes, 0);
+            return new String(bytes, CHARSET);
+        }
+    }
+}
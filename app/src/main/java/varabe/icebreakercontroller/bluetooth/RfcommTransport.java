@@ -0,0 +1,179 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+ * Transport over a Bluetooth RFCOMM socket, the one used with real relay boards.
+ * Boards and phones differ in which way of opening the socket works, so the strategies are tried
+ * in turn, starting with the one remembered in ConnectionProfiles for this board. Reconnects of
+ * a connector only try the strategy that connected it, a board out of range fails them all anyway.
+ * The outcome of every connect goes to DeviceCache, which ranks the boards in the device list
+ */
+public class RfcommTransport implements Transport {
+    private static final String TAG = "RfcommTransport";
+
+    // Socket strategies, in the order they are tried for an unknown board
+    public static final int STRATEGY_HIDDEN_CHANNEL = 0; // createRfcommSocket(channel) by reflection
+    public static final int STRATEGY_INSECURE_SPP = 1;
+    public static final int STRATEGY_SECURE_SPP = 2;
+    private static final int STRATEGY_COUNT = 3;
+
+    public static final int DEFAULT_CHANNEL = 1;
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothDevice device;
+    private final ConnectionProfiles profiles;
+    private final DeviceCache deviceCache;
+    // Shared by the transports of one factory, set once any of them has connected
+    private final AtomicBoolean connectedBefore;
+    // close() and connect() agree on the socket under the lock, so a close never misses a new one
+    private final Object lock = new Object();
+    private BluetoothSocket socket;
+    private boolean closed;
+
+    // profiles may be null, then every strategy is tried in the default order. deviceCache may be null
+    public RfcommTransport(BluetoothDevice device, ConnectionProfiles profiles, DeviceCache deviceCache) {
+        this(device, profiles, deviceCache, new AtomicBoolean());
+    }
+
+    private RfcommTransport(BluetoothDevice device, ConnectionProfiles profiles, DeviceCache deviceCache,
+                            AtomicBoolean connectedBefore) {
+        this.device = device;
+        this.profiles = profiles;
+        this.deviceCache = deviceCache;
+        this.connectedBefore = connectedBefore;
+    }
+
+    // Transports created after one of them has connected are reconnects
+    public static Transport.Factory factory(final BluetoothDevice device, final ConnectionProfiles profiles,
+                                            final DeviceCache deviceCache) {
+        final AtomicBoolean connectedBefore = new AtomicBoolean();
+        return new Transport.Factory() {
+            @Override
+            public Transport create() {
+                return new RfcommTransport(device, profiles, deviceCache, connectedBefore);
+            }
+        };
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // Discovery slows the connection down a lot
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter != null) adapter.cancelDiscovery();
+
+        ConnectionProfiles.Profile known = (profiles == null) ? null : profiles.get(device.getAddress());
+        boolean isKnown = known != null && known.strategy >= 0 && known.strategy < STRATEGY_COUNT;
+        int firstStrategy = isKnown ? known.strategy : STRATEGY_HIDDEN_CHANNEL;
+        int channel = isKnown ? known.channel : DEFAULT_CHANNEL;
+        int strategyCount = (isKnown && connectedBefore.get()) ? 1 : STRATEGY_COUNT;
+        IOException failure = null;
+        for (int i = 0; i < strategyCount; i++) {
+            int strategy = (firstStrategy + i) % STRATEGY_COUNT;
+            long start = SystemClock.elapsedRealtime();
+            BluetoothSocket attempt;
+            try {
+                attempt = createSocket(strategy, channel);
+            } catch (IOException e) {
+                Log.d(TAG, "Strategy " + strategy + " failed: " + e.getMessage());
+                failure = e;
+                continue;
+            }
+            synchronized (lock) {
+                if (closed) {
+                    closeQuietly(attempt);
+                    throw new IOException("Transport is closed");
+                }
+                socket = attempt;
+            }
+            try {
+                // Blocks until connected or failed, close() aborts it by closing the socket
+                attempt.connect();
+                long connectTime = SystemClock.elapsedRealtime() - start;
+                connectedBefore.set(true);
+                if (profiles != null) {
+                    profiles.put(device.getAddress(), new ConnectionProfiles.Profile(strategy, channel, connectTime));
+                }
+                if (deviceCache != null) deviceCache.onConnected(device.getAddress(), connectTime);
+                return;
+            } catch (IOException e) {
+                Log.d(TAG, "Strategy " + strategy + " failed: " + e.getMessage());
+                failure = e;
+                closeSocket();
+            }
+        }
+        if (deviceCache != null) deviceCache.onConnectFailed(device.getAddress());
+        throw failure;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return connectedSocket().getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return connectedSocket().getOutputStream();
+    }
+
+    @Override
+    public void close() throws IOException {
+        BluetoothSocket socket;
+        synchronized (lock) {
+            closed = true;
+            socket = this.socket;
+        }
+        if (socket != null) socket.close();
+    }
+
+    private BluetoothSocket createSocket(int strategy, int channel) throws IOException {
+        switch (strategy) {
+            case STRATEGY_HIDDEN_CHANNEL:
+                BluetoothSocket socket = BluetoothUtils.createRfcommSocket(device, channel);
+                if (socket == null) throw new IOException("Unable to create RFCOMM socket for " + device);
+                return socket;
+            case STRATEGY_INSECURE_SPP:
+                return device.createInsecureRfcommSocketToServiceRecord(SPP_UUID);
+            case STRATEGY_SECURE_SPP:
+                return device.createRfcommSocketToServiceRecord(SPP_UUID);
+            default:
+                throw new IOException("Unknown socket strategy " + strategy);
+        }
+    }
+
+    private BluetoothSocket connectedSocket() throws IOException {
+        BluetoothSocket socket;
+        synchronized (lock) {
+            socket = this.socket;
+        }
+        if (socket == null) throw new IOException("Not connected");
+        return socket;
+    }
+
+    private void closeSocket() {
+        BluetoothSocket socket;
+        synchronized (lock) {
+            socket = this.socket;
+            this.socket = null;
+        }
+        if (socket != null) closeQuietly(socket);
+    }
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do, the next strategy gets a new socket
+        }
+    }
+}
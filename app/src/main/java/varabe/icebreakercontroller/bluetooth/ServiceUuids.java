@@ -0,0 +1,170 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import java.util.UUID;
+
+/*
+ * Names of the Bluetooth services and protocols behind 16-bit short UUIDs
+ * ("0000XXXX-0000-1000-8000-00805F9B34FB"). Plain Java, so it can be benchmarked off the device.
+ *
+ * The names are found directly by the short UUID: a table of 256-entry pages indexed by its high
+ * byte, only the pages in use are allocated
+ */
+public class ServiceUuids {
+    public static final int SERIAL_PORT = 0x1101;
+    public static final int NOT_SHORT_UUID = -1;
+
+    private static final String BASE_UUID_SUFFIX = "-0000-1000-8000-00805F9B34FB";
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+    private static final long BASE_UUID_MSB_LOW = 0x1000L;
+    private static final String[][] pages = new String[256][];
+
+    static {
+        put(0x0001, "SDP");
+        put(0x0002, "UDP");
+        put(0x0003, "RFCOMM");
+        put(0x0004, "TCP");
+        put(0x0005, "TCS-BIN");
+        put(0x0006, "TCS-AT");
+        put(0x0007, "ATT");
+        put(0x0008, "OBEX");
+        put(0x0009, "IP");
+        put(0x000A, "FTP");
+        put(0x000C, "HTTP");
+        put(0x000E, "WSP");
+        put(0x000F, "BNEP");
+
+        put(0x0010, "UPNP");
+        put(0x0011, "HIDP");
+        put(0x0012, "HardcopyControlChannel");
+        put(0x0014, "HardcopyDataChannel");
+        put(0x0016, "HardcopyNotification");
+        put(0x0017, "AVCTP");
+        put(0x0019, "AVDTP");
+        put(0x001B, "CMTP");
+        put(0x001E, "MCAPControlChannel");
+        put(0x001F, "MCAPDataChannel");
+        put(0x0100, "L2CAP");
+
+        put(0x1000, "ServiceDiscoveryServerService");
+        put(0x1001, "BrowseGroupDescriptorService");
+        put(0x1002, "PublicBrowseGroupService");
+        put(0x1101, "SerialPortService");
+        put(0x1102, "LANAccessUsingPPPService");
+        put(0x1103, "DialupNetworkingService");
+        put(0x1104, "IrMCSyncService");
+        put(0x1105, "OBEXObjectPushService");
+        put(0x1106, "OBEXFileTransferService");
+        put(0x1107, "IrMCSyncCommandService");
+        put(0x1108, "HeadsetService");
+        put(0x1109, "CordlessTelephonyService");
+        put(0x110A, "AudioSourceService");
+        put(0x110B, "AudioSinkService");
+        put(0x110C, "AVRemoteControlTargetService");
+        put(0x110D, "AdvancedAudioDistributionService");
+        put(0x110E, "AVRemoteControlService");
+        put(0x110F, "VideoConferencingService");
+
+        put(0x1110, "IntercomService");
+        put(0x1111, "FaxService");
+        put(0x1112, "HeadsetAudioGatewayService");
+        put(0x1113, "WAPService");
+        put(0x1114, "WAPClientService");
+        put(0x1115, "PANUService");
+        put(0x1116, "NAPService");
+        put(0x1117, "GNService");
+        put(0x1118, "DirectPrintingService");
+        put(0x1119, "ReferencePrintingService");
+        put(0x111A, "ImagingService");
+        put(0x111B, "ImagingResponderService");
+        put(0x111C, "ImagingAutomaticArchiveService");
+        put(0x111D, "ImagingReferenceObjectsService");
+        put(0x111E, "HandsfreeService");
+        put(0x111F, "HandsfreeAudioGatewayService");
+
+        put(0x1120, "DirectPrintingReferenceObjectsService");
+        put(0x1121, "ReflectedUIService");
+        put(0x1122, "BasicPringingService");
+        put(0x1123, "PrintingStatusService");
+        put(0x1124, "HumanInterfaceDeviceService");
+        put(0x1125, "HardcopyCableReplacementService");
+        put(0x1126, "HCRPrintService");
+        put(0x1127, "HCRScanService");
+        put(0x1128, "CommonISDNAccessService");
+        put(0x1129, "VideoConferencingGWService");
+        put(0x112A, "UDIMTService");
+        put(0x112B, "UDITAService");
+        put(0x112C, "AudioVideoService");
+        put(0x112D, "SIMAccessService");
+        put(0x112E, "Phonebook Access - PCE");
+        put(0x112F, "Phonebook Access - PSE");
+
+        put(0x1130, "Phonebook Access");
+        put(0x1131, "Headset - HS");
+        put(0x1132, "Message Access Server");
+        put(0x1133, "Message Notification Server");
+        put(0x1134, "Message Access Profile");
+        put(0x1135, "GNSS");
+        put(0x1136, "GNSS_Server");
+
+        put(0x1200, "PnPInformationService");
+        put(0x1201, "GenericNetworkingService");
+        put(0x1202, "GenericFileTransferService");
+        put(0x1203, "GenericAudioService");
+        put(0x1204, "GenericTelephonyService");
+    }
+
+    // The 16-bit short UUID of a Bluetooth base UUID, NOT_SHORT_UUID for any other UUID
+    public static int getShortUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        if (uuid.getLeastSignificantBits() != BASE_UUID_LSB || (msb & 0xFFFFFFFFL) != BASE_UUID_MSB_LOW
+                || (msb >>> 48) != 0) {
+            return NOT_SHORT_UUID;
+        }
+        return (int) (msb >>> 32);
+    }
+
+    // Same for the string form, case-insensitive
+    public static int getShortUuid(String uuid) {
+        if (uuid.length() != 36 || !uuid.startsWith("0000")
+                || !uuid.regionMatches(true, 8, BASE_UUID_SUFFIX, 0, BASE_UUID_SUFFIX.length())) {
+            return NOT_SHORT_UUID;
+        }
+        int shortUuid = 0;
+        for (int i = 4; i < 8; i++) {
+            int digit = Character.digit(uuid.charAt(i), 16);
+            if (digit < 0) return NOT_SHORT_UUID;
+            shortUuid = (shortUuid << 4) | digit;
+        }
+        return shortUuid;
+    }
+
+    // Null if the short UUID isn't known
+    public static String getName(int shortUuid) {
+        if (shortUuid < 0 || shortUuid > 0xFFFF) return null;
+        String[] page = pages[shortUuid >>> 8];
+        return (page == null) ? null : page[shortUuid & 0xFF];
+    }
+
+    public static String describe(UUID uuid) {
+        String name = getName(getShortUuid(uuid));
+        return (name != null) ? name : unknown(uuid.toString());
+    }
+
+    public static String describe(String uuid) {
+        String name = getName(getShortUuid(uuid));
+        return (name != null) ? name : unknown(uuid);
+    }
+
+    private static String unknown(String uuid) {
+        return "Unknown service UUID 0x" + uuid.substring(4, 8).toUpperCase();
+    }
+
+    private static void put(int shortUuid, String name) {
+        String[] page = pages[shortUuid >>> 8];
+        if (page == null) {
+            page = new String[256];
+            pages[shortUuid >>> 8] = page;
+        }
+        page[shortUuid & 0xFF] = name;
+    }
+}
@@ -0,0 +1,30 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/*
+ * A byte stream connection to a relay board. DeviceConnector only talks to the board through
+ * this interface, so the same connection, framing and write logic runs over RFCOMM on a phone
+ * and over an in-memory loopback in unit tests.
+ *
+ * A transport is used for one connection attempt: once closed it can't be connected again,
+ * DeviceConnector asks its Factory for a new one instead
+ */
+public interface Transport {
+
+    // Blocks until the connection is established or fails
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    // May be called from any thread, aborts a pending connect() and unblocks readers
+    void close() throws IOException;
+
+    interface Factory {
+        Transport create() throws IOException;
+    }
+}
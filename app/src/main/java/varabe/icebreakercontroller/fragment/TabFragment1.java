@@ -10,6 +10,7 @@ import android.view.ViewGroup;
 import varabe.icebreakercontroller.R;
 import varabe.icebreakercontroller.RelayController;
 import varabe.icebreakercontroller.activity.MainActivity;
+import varabe.icebreakercontroller.relaybutton.ButtonRegistry;
 import varabe.icebreakercontroller.relaybutton.HoldButton;
 import varabe.icebreakercontroller.relaybutton.RelayButton;
 import varabe.icebreakercontroller.relaybutton.SwitchButton;
@@ -26,4 +27,11 @@ public class TabFragment1 extends Fragment {
         RelayButton beaconButton = new SwitchButton(v.findViewById(R.id.beaconButton), controller);
         return v;
     }
-}
\ No newline at end of file
+
+    @Override
+    public void onDestroyView() {
+        // The buttons go with the views they were made for
+        ButtonRegistry.getInstance().unregisterViews(getView());
+        super.onDestroyView();
+    }
+}
@@ -10,6 +10,7 @@ import android.view.ViewGroup;
 import varabe.icebreakercontroller.R;
 import varabe.icebreakercontroller.RelayController;
 import varabe.icebreakercontroller.activity.MainActivity;
+import varabe.icebreakercontroller.relaybutton.ButtonRegistry;
 import varabe.icebreakercontroller.relaybutton.HoldButton;
 import varabe.icebreakercontroller.relaybutton.MutuallyExclusiveButtonContainer;
 import varabe.icebreakercontroller.relaybutton.MutuallyExclusiveButtonManager;
@@ -37,4 +38,11 @@ public class TabFragment2 extends Fragment {
             activity.setDeviceName(null);
         return v;
     }
-}
\ No newline at end of file
+
+    @Override
+    public void onDestroyView() {
+        // The buttons go with the views they were made for
+        ButtonRegistry.getInstance().unregisterViews(getView());
+        super.onDestroyView();
+    }
+}
@@ -2,12 +2,8 @@ package varabe.icebreakercontroller.relaybutton;
 
 import android.view.View;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import varabe.icebreakercontroller.RelayController;
 
-import static varabe.icebreakercontroller.RelayController.COMMAND_ONE_SECOND_BLINK;
 import static varabe.icebreakercontroller.RelayController.COMMAND_OPEN;
 
 /*
@@ -15,12 +11,11 @@ import static varabe.icebreakercontroller.RelayController.COMMAND_OPEN;
  * "COMMAND_SWITCH" twice (on press and on release), sends "COMMAND_ONE_SECOND_BLINK" continuously.
  * The reason is: if device turns off or bluetooth connection is broken while user holds a button,
  * the corresponding relay channel will stay active which might be dangerous. So, in this
- * implementation, if relay board does not get any new requests, it turns a relay off automatically
+ * implementation, if relay board does not get any new requests, it turns a relay off automatically.
+ * The blinks of all held channels are sent together by the shared KeepaliveScheduler
  */
 public class BlinkingButton extends HoldButton {
 
-    private TimerTask task;
-
     public BlinkingButton(View view, RelayController controller, int timeout) {
         super(view, getRelayChannelFromViewTag(view), controller, timeout);
     }
@@ -29,26 +24,12 @@ public class BlinkingButton extends HoldButton {
     }
 
     @Override
-    public void activate() {
-        scheduleRelayBlinkSequence();
+    public int activate() {
+        return KeepaliveScheduler.getInstance().register(getController(), getRelayAddress());
     }
     @Override
     public void deactivate() {
-        stopRelayBlinkSequence();
-    }
-
-    private void scheduleRelayBlinkSequence() {
-        task = new oneSecondBlinkExecutorTask();
-        new Timer().scheduleAtFixedRate(task, 0, 400); // Might need to be optimized
-    }
-
-    private void stopRelayBlinkSequence() {
-        task.cancel();
-        getController().sendCommand(getView(), COMMAND_OPEN);
-    }
-    private class oneSecondBlinkExecutorTask extends TimerTask {
-        public void run() {
-            getController().sendCommand(getView(), COMMAND_ONE_SECOND_BLINK);
-        }
+        KeepaliveScheduler.getInstance().unregister(getRelayAddress());
+        getController().sendCommand(getRelayAddress(), COMMAND_OPEN);
     }
 }
@@ -0,0 +1,86 @@
+package varabe.icebreakercontroller.relaybutton;
+
+import android.view.View;
+import android.view.ViewParent;
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/*
+ * The live relay buttons by view id. Fragments create their buttons anew every time their view is
+ * created; a button registered under the id of an earlier one replaces it, so they don't pile up.
+ * Entries are weak: a button is kept alive by its view's listeners, so it goes when its view goes,
+ * and the registry never holds on to views of a destroyed activity. Fragments also remove their
+ * buttons in onDestroyView, which cancels their pending timeouts at once.
+ * Main thread only
+ */
+public class ButtonRegistry {
+    private static ButtonRegistry instance;
+
+    private final HashMap<Integer, WeakReference<RelayButton>> buttons = new HashMap<>();
+
+    public static ButtonRegistry getInstance() {
+        if (instance == null) instance = new ButtonRegistry();
+        return instance;
+    }
+
+    void register(RelayButton button) {
+        WeakReference<RelayButton> previous = buttons.put(button.getId(), new WeakReference<>(button));
+        RelayButton previousButton = (previous == null) ? null : previous.get();
+        if (previousButton != null && previousButton != button) previousButton.cancelTimeouts();
+    }
+
+    // Null if there is no live button for the view id
+    public RelayButton get(int viewId) {
+        WeakReference<RelayButton> reference = buttons.get(viewId);
+        return (reference == null) ? null : reference.get();
+    }
+
+    // Removes the buttons whose views are inside root, e.g. a fragment's view being destroyed
+    public void unregisterViews(View root) {
+        if (root == null) return;
+        Iterator<WeakReference<RelayButton>> iterator = buttons.values().iterator();
+        while (iterator.hasNext()) {
+            RelayButton button = iterator.next().get();
+            if (button == null) {
+                iterator.remove();
+            } else if (isInside(button.getView(), root)) {
+                button.cancelTimeouts();
+                iterator.remove();
+            }
+        }
+    }
+
+    // One pass over the live buttons, dropping the entries of collected ones on the way
+    public void setEnabledAll(boolean enabled) {
+        Iterator<WeakReference<RelayButton>> iterator = buttons.values().iterator();
+        while (iterator.hasNext()) {
+            RelayButton button = iterator.next().get();
+            if (button == null) iterator.remove();
+            else button.setEnabled(enabled);
+        }
+    }
+
+    public void clear() {
+        for (WeakReference<RelayButton> reference : buttons.values()) {
+            RelayButton button = reference.get();
+            if (button != null) button.cancelTimeouts();
+        }
+        buttons.clear();
+    }
+
+    public int size() {
+        return buttons.size();
+    }
+
+    private static boolean isInside(View view, View root) {
+        if (view == root) return true;
+        ViewParent parent = view.getParent();
+        while (parent != null) {
+            if (parent == root) return true;
+            parent = parent.getParent();
+        }
+        return false;
+    }
+}
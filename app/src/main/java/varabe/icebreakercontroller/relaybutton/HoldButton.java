@@ -1,11 +1,15 @@
 package varabe.icebreakercontroller.relaybutton;
 
+import android.os.Build;
+import android.os.Trace;
 import android.view.MotionEvent;
 import android.view.View;
 
+import varabe.icebreakercontroller.LatencyRecorder;
 import varabe.icebreakercontroller.RelayController;
 
 public class HoldButton extends RelayButton {
+    private static final String TRACE_TOUCH = "HoldButton.onTouch";
 
     public HoldButton(View view, String relayChannel, RelayController controller, int timeout) {
         super(view, relayChannel, controller, timeout);
@@ -22,10 +26,18 @@ public class HoldButton extends RelayButton {
         @Override
         public boolean onTouch(View view, MotionEvent event) {
             int action = event.getAction();
-            if (action == MotionEvent.ACTION_DOWN) {
-                onActivate();
-            } else if (action == MotionEvent.ACTION_UP) {
-                onDeactivate();
+            if (action != MotionEvent.ACTION_DOWN && action != MotionEvent.ACTION_UP) return true;
+            LatencyRecorder.getInstance().begin();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) Trace.beginSection(TRACE_TOUCH);
+            try {
+                if (action == MotionEvent.ACTION_DOWN) {
+                    onActivate();
+                } else if (isActivated) {
+                    // Not after a press an interlock refused
+                    onDeactivate();
+                }
+            } finally {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) Trace.endSection();
             }
             return true;
         }
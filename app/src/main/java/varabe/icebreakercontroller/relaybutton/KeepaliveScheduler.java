@@ -0,0 +1,93 @@
+package varabe.icebreakercontroller.relaybutton;
+
+import java.util.Arrays;
+
+import varabe.icebreakercontroller.BoardLink;
+import varabe.icebreakercontroller.RelayAddress;
+import varabe.icebreakercontroller.RelayController;
+
+import static varabe.icebreakercontroller.RelayController.COMMAND_ONE_SECOND_BLINK;
+
+/*
+ * One process-wide ticker for every held blinking channel. Instead of a Timer per press, all
+ * channels register here and each tick sends a single frame carrying "COMMAND_ONE_SECOND_BLINK"
+ * for every registered channel. Registrations are counted, so two buttons on the same channel
+ * keep it alive until both are released. Channels are RelayAddresses, with several boards each
+ * board gets its own frame
+ */
+public class KeepaliveScheduler {
+    public static final int PERIOD_MS = 400;
+
+    private static KeepaliveScheduler instance;
+
+    private final int[] holders = new int[RelayAddress.MAX_ADDRESSES];
+    private long activeChannelMask;
+    private RelayController controller;
+    // The next tick, null while no channel is held
+    private TimingWheel.Timeout tickTimeout;
+
+    public static synchronized KeepaliveScheduler getInstance() {
+        if (instance == null) instance = new KeepaliveScheduler();
+        return instance;
+    }
+
+    // Returns the BoardLink.STATUS_* of the first blink, an interlocked channel isn't registered
+    public int register(RelayController controller, int address) {
+        int generation;
+        synchronized (this) {
+            this.controller = controller;
+            holders[address]++;
+            activeChannelMask |= 1L << address;
+            if (tickTimeout == null) tickTimeout = TimingWheel.getInstance().schedule(tick, PERIOD_MS);
+            generation = controller.getPool().getStopGeneration();
+        }
+        // Don't make the new channel wait for the next tick
+        int status = controller.getPool().sendCommand(address, COMMAND_ONE_SECOND_BLINK, generation);
+        if (status == BoardLink.STATUS_INTERLOCKED) unregister(address);
+        return status;
+    }
+
+    public synchronized void unregister(int address) {
+        if (holders[address] == 0) return;
+        if (--holders[address] == 0) activeChannelMask &= ~(1L << address);
+        if (activeChannelMask == 0 && tickTimeout != null) {
+            tickTimeout.cancel();
+            tickTimeout = null;
+        }
+    }
+
+    // Lets go of every channel, e.g. on an emergency stop. Buttons released later change nothing
+    public synchronized void unregisterAll() {
+        Arrays.fill(holders, 0);
+        activeChannelMask = 0;
+        if (tickTimeout != null) {
+            tickTimeout.cancel();
+            tickTimeout = null;
+        }
+    }
+
+    // Bit i is set for RelayAddress i
+    public synchronized long getActiveChannelMask() {
+        return activeChannelMask;
+    }
+
+    // Runs on the TimingWheel thread and schedules the next tick while channels are held
+    private final Runnable tick = new Runnable() {
+        @Override
+        public void run() {
+            long channelMask;
+            RelayController controller;
+            int generation;
+            synchronized (KeepaliveScheduler.this) {
+                channelMask = activeChannelMask;
+                controller = KeepaliveScheduler.this.controller;
+                tickTimeout = (channelMask != 0) ? TimingWheel.getInstance().schedule(this, PERIOD_MS) : null;
+                if (channelMask == 0) return;
+                // unregisterAll() comes before the stop: a tick that still saw the channels saw
+                // the old generation, and the boards refuse its blinks once stopped
+                generation = controller.getPool().getStopGeneration();
+            }
+            controller.getPool().sendCommandToGroup(channelMask, COMMAND_ONE_SECOND_BLINK, generation);
+        }
+    };
+}
@@ -6,6 +6,8 @@ public class MutuallyExclusiveButtonContainer {
     private RelayButton[] buttons;
     private ArrayList<RelayButton> passiveButtons;
     private int timeout;
+    // Pending enabling of the buttons after the timeout, see MutuallyExclusiveButtonManager
+    TimingWheel.Timeout enableTimeout;
 
     public MutuallyExclusiveButtonContainer(RelayButton[] buttons, int timeoutInMillis) {
         // Timeout stands for the time between the release of a button and enabling of mutually
@@ -29,7 +31,7 @@ public class MutuallyExclusiveButtonContainer {
 
     public void setPassiveButton(RelayButton button) {
         // Makes the button passive which means that it won't disable other ME buttons but will be
-        // disabled by them
+        // disabled by them. Set before the container is connected, the interlock rules are made then
         passiveButtons.add(button);
     }
 }
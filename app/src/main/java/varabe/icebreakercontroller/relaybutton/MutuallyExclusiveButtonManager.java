@@ -1,11 +1,16 @@
 package varabe.icebreakercontroller.relaybutton;
 
-import android.os.CountDownTimer;
 import android.support.annotation.NonNull;
-import android.support.annotation.Nullable;
 
 import java.util.ArrayList;
 
+import varabe.icebreakercontroller.InterlockTable;
+
+/*
+ * Greys out the buttons of a container while one of them is active. The exclusion itself is
+ * enforced by the controller: connecting a container adds its rules to the InterlockTable, so
+ * commands that don't come from these buttons are held to it as well
+ */
 public class MutuallyExclusiveButtonManager {
     private ArrayList<MutuallyExclusiveButtonContainer> containers;
 
@@ -15,18 +20,29 @@ public class MutuallyExclusiveButtonManager {
 
     public void connectMutuallyExclusiveButtons(MutuallyExclusiveButtonContainer container) {
         containers.add(container);
+        long activeGroup = 0;
+        long passiveGroup = 0;
         for (RelayButton button: container.getButtons()) {
-            button.setMEBManager(this); // TODO: REMOVE RECURSIVE DEPENDENCIES
+            button.setMEBManager(this, container); // TODO: REMOVE RECURSIVE DEPENDENCIES
+            if (container.isPassive(button)) passiveGroup |= 1L << button.getRelayAddress();
+            else activeGroup |= 1L << button.getRelayAddress();
         }
+        // Passive buttons give way to the others but don't hold them back
+        InterlockTable interlocks = container.getButtons()[0].getController().getInterlocks();
+        interlocks.addExclusion(activeGroup, activeGroup, container.getTimeout(), InterlockTable.POLICY_REJECT);
+        if (passiveGroup != 0)
+            interlocks.addExclusion(passiveGroup, activeGroup, container.getTimeout(), InterlockTable.POLICY_REJECT);
     }
 
     public void setEnabledMutuallyExclusiveButtons(RelayButton queriedButton, boolean enabled) {
-        MutuallyExclusiveButtonContainer container = getMutuallyExclusiveButtons(queriedButton);
+        MutuallyExclusiveButtonContainer container = queriedButton.getMEBContainer();
         if (container != null && !container.isPassive(queriedButton)) {
             if (enabled && container.getTimeout() > 0) {
                 enableMutuallyExclusiveButtonsAfterTimeout(queriedButton, container);
             }
             else {
+                // A press while the others wait to be enabled keeps them disabled
+                cancelEnableTimeout(container);
                 for (RelayButton button : container.getButtons()) {
                     if (!button.equals(queriedButton))
                         button.setEnabled(enabled);
@@ -34,26 +50,30 @@ public class MutuallyExclusiveButtonManager {
             }
         }
     }
-    @Nullable
-    private MutuallyExclusiveButtonContainer getMutuallyExclusiveButtons(RelayButton queriedButton) {
-        for (MutuallyExclusiveButtonContainer container : containers) {
-            for (RelayButton button : container.getButtons()) {
-                if (queriedButton.equals(button)) return container;
-            }
-        }
-        return null;
-    }
     private void enableMutuallyExclusiveButtonsAfterTimeout(
             RelayButton enablingButton, @NonNull final MutuallyExclusiveButtonContainer container) {
-        int timeout = container.getTimeout();
         enablingButton.setEnabled(false);
-        new CountDownTimer(timeout, timeout) { // Means that it won't call onTick()
-            public void onTick(long l) {}
-            public void onFinish() {
+        cancelEnableTimeout(container);
+        container.enableTimeout = TimingWheel.getInstance().scheduleOnMain(new Runnable() {
+            @Override
+            public void run() {
+                container.enableTimeout = null;
                 for (RelayButton button : container.getButtons()) {
                     button.setEnabled(true);
                 }
             }
-        }.start();
+        }, container.getTimeout());
+    }
+    private static void cancelEnableTimeout(MutuallyExclusiveButtonContainer container) {
+        if (container.enableTimeout != null) {
+            container.enableTimeout.cancel();
+            container.enableTimeout = null;
+        }
+    }
+
+    void cancelTimeouts() {
+        for (MutuallyExclusiveButtonContainer container : containers) {
+            cancelEnableTimeout(container);
+        }
     }
 }
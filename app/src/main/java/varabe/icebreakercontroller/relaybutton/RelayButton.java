@@ -1,20 +1,17 @@
 package varabe.icebreakercontroller.relaybutton;
 
 import android.graphics.Color;
-import android.os.Handler;
 import android.view.View;
 import android.widget.Button;
 import android.widget.ImageView;
 
-import java.util.ArrayList;
-import java.util.Timer;
-import java.util.TimerTask;
-
+import varabe.icebreakercontroller.BoardLink;
+import varabe.icebreakercontroller.LatencyRecorder;
 import varabe.icebreakercontroller.RelayController;
+import varabe.icebreakercontroller.RelayAddress;
 
 import static varabe.icebreakercontroller.RelayController.COMMAND_CLOSE;
 import static varabe.icebreakercontroller.RelayController.COMMAND_OPEN;
-import static varabe.icebreakercontroller.RelayController.SUPPORTED_CHANNELS;
 import static varabe.icebreakercontroller.activity.MainActivity.PRESSED_BUTTON_TEXT_COLOR;
 import static varabe.icebreakercontroller.activity.MainActivity.PRESSED_DISABLED_BUTTON_COLOR;
 import static varabe.icebreakercontroller.activity.MainActivity.RELEASED_BUTTON_COLOR;
@@ -31,6 +28,11 @@ abstract public class RelayButton {
         return relayChannel;
     }
 
+    // RelayAddress of the channel, the channel index for board 0
+    public int getRelayAddress() {
+        return relayAddress;
+    }
+
     public RelayController getController() {
         return controller;
     }
@@ -39,23 +41,28 @@ abstract public class RelayButton {
         return view;
     }
 
-    private static ArrayList<RelayButton> buttons = new ArrayList<>();
     boolean isActivated;
     private String relayChannel;
+    private int relayAddress;
     private View view;
     private RelayController controller;
     private int timeoutUntilReenabled;
     private boolean hasActiveTask;
+    private TimingWheel.Timeout reenableTimeout;
     private MutuallyExclusiveButtonManager MEBManager;
+    private MutuallyExclusiveButtonContainer MEBContainer;
 
     RelayButton(View view, String relayChannel, RelayController controller, int timeoutUntilReenabled) {
         this.view = view;
         this.relayChannel = relayChannel;
+        this.relayAddress = RelayAddress.parse(relayChannel);
+        if (relayAddress < 0)
+            throw new UnsupportedOperationException("Relay channel '" + relayChannel + "' is not supported (View ID: " + view.getId() + ")");
         this.controller = controller;
         this.timeoutUntilReenabled = timeoutUntilReenabled;
         this.hasActiveTask = false;
         isActivated = false;
-        buttons.add(this);
+        ButtonRegistry.getInstance().register(this);
     }
 
     @Override
@@ -66,8 +73,13 @@ abstract public class RelayButton {
             return false;
     }
 
-    void setMEBManager(MutuallyExclusiveButtonManager MEBManager) {
+    void setMEBManager(MutuallyExclusiveButtonManager MEBManager, MutuallyExclusiveButtonContainer MEBContainer) {
         this.MEBManager = MEBManager;
+        this.MEBContainer = MEBContainer;
+    }
+
+    MutuallyExclusiveButtonContainer getMEBContainer() {
+        return MEBContainer;
     }
 
     public void setEnabled(Boolean enabled) {
@@ -101,15 +113,19 @@ abstract public class RelayButton {
                 view.setBackgroundColor(RELEASED_DISABLED_BUTTON_COLOR);
         }
 
-    void onActivate() {
-        activate();
+    // Returns false if an interlock refused the command, the button then stays released
+    boolean onActivate() {
+        LatencyRecorder.getInstance().mark(LatencyRecorder.STAGE_ACTIVATE);
+        if (activate() == BoardLink.STATUS_INTERLOCKED) return false;
         view.setBackgroundColor(PRESSED_BUTTON_COLOR);
         if (view instanceof Button)
             ((Button) view).setTextColor(PRESSED_BUTTON_TEXT_COLOR);
         setEnabledMutuallyExclusiveButtons(false);
         isActivated = true;
+        return true;
     }
     void onDeactivate() {
+        LatencyRecorder.getInstance().mark(LatencyRecorder.STAGE_ACTIVATE);
         deactivate();
         view.setBackgroundColor(RELEASED_BUTTON_COLOR);
         if (view instanceof Button)
@@ -118,21 +134,33 @@ abstract public class RelayButton {
         if (timeoutUntilReenabled > 0) {
             hasActiveTask = true;
             setEnabled(false);
-            new Handler().postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    hasActiveTask = false;
-                    setEnabled(true);
-                }
-            }, timeoutUntilReenabled);
+            if (reenableTimeout != null) reenableTimeout.cancel();
+            reenableTimeout = TimingWheel.getInstance().scheduleOnMain(reenable, timeoutUntilReenabled);
         }
         isActivated = false;
     }
-    void activate() {
-        controller.sendCommand(relayChannel, COMMAND_CLOSE);
+    private final Runnable reenable = new Runnable() {
+        @Override
+        public void run() {
+            reenableTimeout = null;
+            hasActiveTask = false;
+            setEnabled(true);
+        }
+    };
+    // Pending timeouts of a button that is thrown away must not touch its view any more
+    void cancelTimeouts() {
+        if (reenableTimeout != null) {
+            reenableTimeout.cancel();
+            reenableTimeout = null;
+        }
+        if (MEBManager != null) MEBManager.cancelTimeouts();
+    }
+    // Returns a BoardLink.STATUS_*
+    int activate() {
+        return controller.sendCommand(relayAddress, COMMAND_CLOSE);
     }
     void deactivate() {
-        controller.sendCommand(relayChannel, COMMAND_OPEN);
+        controller.sendCommand(relayAddress, COMMAND_OPEN);
     }
 
     static String getRelayChannelFromViewTag(View view) {
@@ -141,10 +169,9 @@ abstract public class RelayButton {
             throw new UnsupportedOperationException("View tag is not set (View ID: " + view.getId() + ")");
         else {
             String tag = tagObj.toString();
-            for (String supportedTag: SUPPORTED_CHANNELS) {
-                if (tag.equals(supportedTag))
-                    return tag;
-            }
+            // "C" for board 0 or "1:C"
+            if (RelayAddress.parse(tag) >= 0)
+                return tag;
             throw new UnsupportedOperationException("View tag '" + tag + "' is not supported (View ID: " + view.getId() + ")");
         }
     }
@@ -153,13 +180,4 @@ abstract public class RelayButton {
         if (MEBManager != null)
             MEBManager.setEnabledMutuallyExclusiveButtons(this, enabled);
     }
-
-    public static void clearButtons() {
-        buttons.clear();
-    }
-    public static void setEnabledAllButtons(boolean enabled) {
-        for (RelayButton button: buttons) {
-            button.setEnabled(enabled);
-        }
-    }
 }
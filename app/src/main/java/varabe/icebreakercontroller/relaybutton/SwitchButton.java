@@ -1,10 +1,14 @@
 package varabe.icebreakercontroller.relaybutton;
 
+import android.os.Build;
+import android.os.Trace;
 import android.view.View;
 
+import varabe.icebreakercontroller.LatencyRecorder;
 import varabe.icebreakercontroller.RelayController;
 
 public class SwitchButton extends RelayButton {
+    private static final String TRACE_CLICK = "SwitchButton.onClick";
 
     public SwitchButton(View view, String relayChannel, RelayController controller, int timeout) {
         super(view, relayChannel, controller, timeout);
@@ -20,10 +24,16 @@ public class SwitchButton extends RelayButton {
     private class SwitchButtonListener implements View.OnClickListener {
         @Override
         public void onClick(View view) {
-            if (isActivated) {
-                onDeactivate();
-            } else {
-                onActivate();
+            LatencyRecorder.getInstance().begin();
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) Trace.beginSection(TRACE_CLICK);
+            try {
+                if (isActivated) {
+                    onDeactivate();
+                } else {
+                    onActivate();
+                }
+            } finally {
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) Trace.endSection();
             }
         }
     }
@@ -1,21 +1,30 @@
 package varabe.icebreakercontroller.relaybutton;
 
-import android.os.Handler;
 import android.view.View;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
+import varabe.icebreakercontroller.BoardLink;
 import varabe.icebreakercontroller.RelayController;
-import varabe.icebreakercontroller.activity.MainActivity;
+import varabe.icebreakercontroller.Sequence;
+import varabe.icebreakercontroller.SequenceEngine;
+
+import static varabe.icebreakercontroller.RelayController.COMMAND_CLOSE;
+import static varabe.icebreakercontroller.RelayController.COMMAND_OPEN;
 
+/*
+ * Closes the channel for timeoutUntilInactive ms. The pulse is a Sequence timed by the
+ * SequenceEngine, so its length doesn't depend on the main thread; the button only follows it
+ */
 public class TimerButton extends SwitchButton {
-    private int timeoutUntilInactive;
+    private final Sequence pulse;
 
     public TimerButton(View view, String relayChannel, RelayController controller,
                       int timeoutUntilReenabled, int timeoutUntilInactive) {
         super(view, relayChannel, controller, timeoutUntilReenabled);
-        this.timeoutUntilInactive = timeoutUntilInactive;
+        pulse = new Sequence("TimerButton " + relayChannel)
+                .abortOnDisconnect()
+                .command(getRelayAddress(), COMMAND_CLOSE)
+                .waitMs(timeoutUntilInactive)
+                .command(getRelayAddress(), COMMAND_OPEN);
     }
     public TimerButton(View view, RelayController controller, int timeoutUntilReenabled, int timeoutUntilInactive) {
         this(view, getRelayChannelFromViewTag(view), controller, timeoutUntilReenabled, timeoutUntilInactive);
@@ -25,15 +34,29 @@ public class TimerButton extends SwitchButton {
     }
 
     @Override
-    void onActivate() {
-        super.onActivate();
+    boolean onActivate() {
+        if (!super.onActivate()) return false;
         setEnabled(false);
-        new Handler().postDelayed(new Runnable() {
-            @Override
-            public void run() {
-                onDeactivate();
-                setEnabled(true);
-            }
-        }, timeoutUntilInactive);
+        return true;
     }
+    // An interlock that refuses the pulse ends it at once, the listener then releases the button
+    @Override
+    int activate() {
+        getController().getSequenceEngine().start(pulse, pulseListener);
+        return BoardLink.STATUS_SEQUENCED;
+    }
+
+    // The channel is already open when the pulse ends, however it ended
+    private final SequenceEngine.Listener pulseListener = new SequenceEngine.Listener() {
+        @Override
+        public void onFinished(SequenceEngine.Run run, int result) {
+            getView().post(new Runnable() {
+                @Override
+                public void run() {
+                    onDeactivate();
+                    setEnabled(true);
+                }
+            });
+        }
+    };
 }
@@ -0,0 +1,225 @@
+package varabe.icebreakercontroller.relaybutton;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/*
+ * Every timeout of the relay buttons goes through this hashed timing wheel: a ring of SLOT_COUNT
+ * buckets, each tick of TICK_MS expires the bucket it points at. A timeout is put into the bucket
+ * of its deadline tick and unlinked from it when cancelled, both O(1). A timeout further away than
+ * one turn of the wheel just stays in its bucket for more turns.
+ *
+ * One thread turns the wheel and sleeps while nothing is scheduled. Tasks run on that thread or,
+ * with scheduleOnMain, on the main thread; cancelling those on the main thread is final, the task
+ * won't run even if its tick has already passed.
+ * Time comes from a Clock, so tests can drive the wheel without waiting. It counts nanoseconds:
+ * a clock of whole milliseconds would lose the part of the current one already gone, and
+ * deadlines computed from it would come up to a millisecond early
+ */
+public class TimingWheel {
+    static final long TICK_MS = 10;
+    private static final long TICK_NANOS = TICK_MS * 1000000L;
+    static final int SLOT_COUNT = 512;
+    private static final int SLOT_MASK = SLOT_COUNT - 1;
+
+    public interface Clock {
+        long nowNanos();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nowNanos() {
+            return System.nanoTime();
+        }
+    };
+
+    private static TimingWheel instance;
+
+    private final Clock clock;
+    private final Executor mainThread;
+    private final long startNanos;
+    // Buckets are lists of timeouts linked through Timeout.next and Timeout.previous. Guarded by this
+    private final Timeout[] buckets = new Timeout[SLOT_COUNT];
+    private long processedTick;
+    private int pendingCount;
+    private final boolean hasWorker;
+    private Thread worker;
+    // Reused by the worker for the timeouts of a tick, run outside the lock
+    private final ArrayList<Timeout> expiredBatch = new ArrayList<>();
+
+    public final class Timeout {
+        private final Runnable task;
+        private final boolean onMain;
+        private final long deadlineTick;
+        private Timeout next;
+        private Timeout previous;
+        private boolean linked;
+        private volatile boolean cancelled;
+        private volatile boolean expired;
+
+        private Timeout(Runnable task, boolean onMain, long deadlineTick) {
+            this.task = task;
+            this.onMain = onMain;
+            this.deadlineTick = deadlineTick;
+        }
+
+        // Returns false if the task has already run or been cancelled
+        public boolean cancel() {
+            synchronized (TimingWheel.this) {
+                if (cancelled || expired) return false;
+                cancelled = true;
+                if (linked) unlink(this);
+            }
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public boolean isExpired() {
+            return expired;
+        }
+
+        private void run() {
+            synchronized (TimingWheel.this) {
+                if (cancelled) return;
+                expired = true;
+            }
+            task.run();
+        }
+    }
+
+    public static synchronized TimingWheel getInstance() {
+        if (instance == null) {
+            instance = new TimingWheel(SYSTEM_CLOCK, new Executor() {
+                private final Handler handler = new Handler(Looper.getMainLooper());
+
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            }, true);
+        }
+        return instance;
+    }
+
+    // Without a worker nothing expires on its own, the owner calls expireTimeouts()
+    TimingWheel(Clock clock, Executor mainThread, boolean hasWorker) {
+        this.clock = clock;
+        this.mainThread = mainThread;
+        this.hasWorker = hasWorker;
+        this.startNanos = clock.nowNanos();
+    }
+
+    // Runs the task on the wheel thread after delayMs, give or take a tick
+    public Timeout schedule(Runnable task, long delayMs) {
+        return schedule(task, delayMs, false);
+    }
+
+    // Same, but the task runs on the main thread, for anything touching views
+    public Timeout scheduleOnMain(Runnable task, long delayMs) {
+        return schedule(task, delayMs, true);
+    }
+
+    public synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    private synchronized Timeout schedule(Runnable task, long delayMs, boolean onMain) {
+        long elapsedNanos = clock.nowNanos() - startNanos;
+        // The worker doesn't tick while the wheel is empty, idle ticks are skipped instead of walked
+        if (pendingCount == 0) processedTick = Math.max(processedTick, elapsedNanos / TICK_NANOS);
+        elapsedNanos += Math.max(delayMs, 0) * 1000000L;
+        // Rounded up: a timeout never expires early
+        long deadlineTick = Math.max((elapsedNanos + TICK_NANOS - 1) / TICK_NANOS, processedTick + 1);
+        Timeout timeout = new Timeout(task, onMain, deadlineTick);
+        int slot = (int) (deadlineTick & SLOT_MASK);
+        timeout.next = buckets[slot];
+        if (timeout.next != null) timeout.next.previous = timeout;
+        buckets[slot] = timeout;
+        timeout.linked = true;
+        pendingCount++;
+        if (hasWorker) {
+            if (worker == null) {
+                worker = new WorkerThread();
+                worker.start();
+            } else {
+                notify();
+            }
+        }
+        return timeout;
+    }
+
+    private void unlink(Timeout timeout) {
+        int slot = (int) (timeout.deadlineTick & SLOT_MASK);
+        if (timeout.previous != null) timeout.previous.next = timeout.next;
+        else buckets[slot] = timeout.next;
+        if (timeout.next != null) timeout.next.previous = timeout.previous;
+        timeout.next = null;
+        timeout.previous = null;
+        timeout.linked = false;
+        pendingCount--;
+    }
+
+    // Expires the buckets of every tick up to now and runs their tasks
+    void expireTimeouts() {
+        synchronized (this) {
+            long currentTick = (clock.nowNanos() - startNanos) / TICK_NANOS;
+            while (processedTick < currentTick && pendingCount > 0) {
+                processedTick++;
+                Timeout timeout = buckets[(int) (processedTick & SLOT_MASK)];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.deadlineTick <= processedTick) {
+                        unlink(timeout);
+                        expiredBatch.add(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+        }
+        for (int i = 0; i < expiredBatch.size(); i++) {
+            final Timeout timeout = expiredBatch.get(i);
+            if (timeout.onMain) {
+                mainThread.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        timeout.run();
+                    }
+                });
+            } else {
+                timeout.run();
+            }
+        }
+        expiredBatch.clear();
+    }
+
+    private class WorkerThread extends Thread {
+        WorkerThread() {
+            super("TimingWheel");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                synchronized (TimingWheel.this) {
+                    try {
+                        while (pendingCount == 0) TimingWheel.this.wait();
+                        long nextTickNanos = startNanos + (processedTick + 1) * TICK_NANOS;
+                        long sleepNanos = nextTickNanos - clock.nowNanos();
+                        // Rounded up, waking before the tick would only mean another wait
+                        if (sleepNanos > 0) TimingWheel.this.wait((sleepNanos + 999999) / 1000000);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                expireTimeouts();
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package varabe.icebreakercontroller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import varabe.icebreakercontroller.bluetooth.DeviceConnector;
+import varabe.icebreakercontroller.bluetooth.FlushPolicy;
+import varabe.icebreakercontroller.bluetooth.LinkMonitor;
+import varabe.icebreakercontroller.bluetooth.LoopbackTransport;
+
+import static org.junit.Assert.*;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_CLOSE;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_OPEN;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_SWITCH;
+
+/*
+ * Two boards on LoopbackTransports: board 0 echoes everything, board 1's link is stalled, so its
+ * writer gets stuck on the first write, like with a board that has gone out of range without the
+ * link noticing yet
+ */
+public class ConnectionPoolTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final long TIMEOUT_MS = 5000;
+
+    private final ConnectionPool pool = new ConnectionPool();
+    private final StringBuffer received = new StringBuffer();
+    private final CountDownLatch boardsConnected = new CountDownLatch(2);
+
+    @Before
+    public void setUp() throws Exception {
+        pool.connect(0, new DeviceConnector(LoopbackTransport.factory(new LoopbackTransport.Board() {
+            @Override
+            public void onConnected(LoopbackTransport transport) {
+                startEcho(transport);
+                boardsConnected.countDown();
+            }
+        }), "board 0", null));
+        pool.connect(1, new DeviceConnector(LoopbackTransport.factory(new LoopbackTransport.Board() {
+            @Override
+            public void onConnected(LoopbackTransport transport) {
+                transport.setStalled(true);
+                boardsConnected.countDown();
+            }
+        }), "board 1", null));
+        assertTrue(boardsConnected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (pool.getConnectedCount() < 2) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        pool.disconnectAll();
+    }
+
+    @Test
+    public void addresses_routeToTheirBoard() throws Exception {
+        assertEquals(RelayAddress.of(1, 2), RelayAddress.parse("1:C"));
+        assertEquals(2, RelayAddress.parse("C"));
+        assertEquals(-1, RelayAddress.parse("9:C"));
+        assertEquals(2, pool.getFreeBoardId());
+
+        long group = RelayAddress.toGroup(0, 0b110) | RelayAddress.toGroup(1, 0b1);
+        ConnectionPool.FanOutResult result = pool.sendCommandToGroup(group, COMMAND_CLOSE);
+        assertEquals(BoardLink.STATUS_SENT, result.getStatus(0));
+        assertEquals(BoardLink.STATUS_SENT, result.getStatus(1));
+        assertEquals(BoardLink.STATUS_NOT_ADDRESSED, result.getStatus(2));
+        assertEquals(0b110, pool.getBoard(0).getStateStore().getIntendedClosedMask());
+        assertEquals(0b1, pool.getBoard(1).getStateStore().getIntendedClosedMask());
+        awaitReceived("B4\r\nC4\r\n");
+
+        assertEquals(BoardLink.STATUS_NOT_CONNECTED, pool.sendCommand(RelayAddress.of(2, 0), COMMAND_CLOSE));
+    }
+
+    @Test
+    public void stalledBoard_doesNotHoldUpTheOthers() throws Exception {
+        int stalledA = RelayAddress.of(1, 0);
+        fillQueueOf(stalledA);
+
+        long start = System.nanoTime();
+        ConnectionPool.FanOutResult result = pool.sendCommandToGroup(RelayAddress.toGroup(0, 0b1000) | (1L << stalledA), COMMAND_SWITCH);
+        // Generous, the send only queues frames. A blocking send would hang until the test times out
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MS / 5));
+        assertEquals(BoardLink.STATUS_SENT, result.getStatus(0));
+        assertEquals(BoardLink.STATUS_QUEUE_FULL, result.getStatus(1));
+        assertFalse(result.isDelivered());
+        awaitReceived("D1\r\n");
+    }
+
+    @Test
+    public void emergencyStop_getsThroughAFullQueue() throws Exception {
+        fillQueueOf(RelayAddress.of(1, 0));
+        pool.sendCommand(RelayAddress.of(0, 2), COMMAND_CLOSE);
+
+        ConnectionPool.FanOutResult result = pool.emergencyStop();
+        assertEquals(BoardLink.STATUS_SENT, result.getStatus(0));
+        assertEquals(BoardLink.STATUS_SENT, result.getStatus(1));
+        assertEquals(BoardLink.STATUS_NOT_ADDRESSED, result.getStatus(2));
+        assertEquals(0, pool.getBoard(0).getStateStore().getIntendedClosedMask());
+        assertEquals(0, pool.getBoard(1).getStateStore().getIntendedClosedMask());
+        awaitReceived(new String(RelayProtocol.getMultiChannelFrame(RelayStateStore.ALL_CHANNELS_MASK, COMMAND_OPEN), ASCII));
+    }
+
+    @Test
+    public void emergencyStop_refusesClosingsDecidedBeforeIt() throws Exception {
+        int generation = pool.getStopGeneration();
+        pool.emergencyStop();
+        int light = RelayAddress.of(0, 2);
+
+        // A keepalive tick that read its channels before the stop doesn't get them blinking again
+        ConnectionPool.FanOutResult result = pool.sendCommandToGroup(RelayAddress.toGroup(0, 0b11),
+                RelayProtocol.COMMAND_ONE_SECOND_BLINK, generation);
+        assertEquals(BoardLink.STATUS_STOPPED, result.getStatus(0));
+        assertFalse(result.isDelivered());
+        assertEquals(0, pool.getBoard(0).getStateStore().getIntendedBlinkingMask());
+        assertEquals(BoardLink.STATUS_STOPPED, pool.sendCommand(light, COMMAND_CLOSE, generation));
+        assertEquals(0, pool.getBoard(0).getStateStore().getIntendedClosedMask());
+
+        // Opening agrees with the stop, and commands issued after it go through
+        assertNotEquals(BoardLink.STATUS_STOPPED, pool.sendCommand(light, COMMAND_OPEN, generation));
+        assertEquals(BoardLink.STATUS_SENT, pool.sendCommand(light, COMMAND_CLOSE, pool.getStopGeneration()));
+        assertEquals(BoardLink.STATUS_SENT, pool.sendCommand(RelayAddress.of(0, 3), COMMAND_CLOSE));
+        awaitReceived("C4\r\nD4\r\n");
+        assertFalse(received.toString().contains("A0"));
+    }
+
+    @Test
+    public void heartbeat_onOldFirmware_repeatsWhatIsIntended() throws Exception {
+        final StringBuffer oldBoard = new StringBuffer();
+        final CountDownLatch connected = new CountDownLatch(1);
+        pool.connect(2, new DeviceConnector(LoopbackTransport.factory(new LoopbackTransport.Board() {
+            @Override
+            public void onConnected(LoopbackTransport transport) {
+                startOldFirmwareEcho(transport, oldBoard);
+                connected.countDown();
+            }
+        }), "board 2", null));
+        assertTrue(connected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        final BoardLink board = pool.getBoard(2);
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return board.isConnected();
+            }
+        });
+
+        // Every channel closed still leaves a probe to send
+        pool.sendCommandToGroup(RelayAddress.toGroup(2, RelayStateStore.ALL_CHANNELS_MASK), COMMAND_CLOSE);
+        final LinkMonitor monitor = board.getConnector().getLinkMonitor();
+        monitor.setHeartbeatInterval(20);
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return monitor.getProbeCount() >= 2 && oldBoard.toString().endsWith("A4\r\n");
+            }
+        });
+        assertFalse(board.isSetMaskSupported());
+        assertFalse(oldBoard.toString().contains("A3"));
+        assertEquals(RelayStateStore.ALL_CHANNELS_MASK, board.getStateStore().getIntendedClosedMask());
+        assertEquals(0, board.getStateStore().getUnconfirmedMask());
+        assertEquals(0, board.getConnector().getAckTracker().getRetransmitCount());
+    }
+
+    // The restore after a reconnect, a press and an old firmware heartbeat all take the board's
+    // lock and the connector's monitor, in one order only
+    @Test
+    public void pressesDuringReconnect_doNotDeadlock() throws Exception {
+        final LoopbackTransport[] boardSide = new LoopbackTransport[1];
+        pool.connect(2, new DeviceConnector(LoopbackTransport.factory(new LoopbackTransport.Board() {
+            @Override
+            public void onConnected(LoopbackTransport transport) {
+                boardSide[0] = transport;
+                startOldFirmwareEcho(transport, new StringBuffer());
+            }
+        }), "board 2", null));
+        final BoardLink board = pool.getBoard(2);
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return board.isConnected();
+            }
+        });
+        final LinkMonitor monitor = board.getConnector().getLinkMonitor();
+        monitor.setHeartbeatInterval(5);
+        final int address = RelayAddress.of(2, 0);
+        final AtomicBoolean pressing = new AtomicBoolean(true);
+        final AtomicLong presses = new AtomicLong();
+        Thread presser = new Thread("Presser") {
+            @Override
+            public void run() {
+                while (pressing.get()) {
+                    pool.sendCommand(address, COMMAND_SWITCH);
+                    // Short idle gaps let the heartbeat in, echoes keep the link busy otherwise
+                    if (presses.incrementAndGet() % 64 == 0) {
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        presser.setDaemon(true);
+        presser.start();
+        try {
+            final DeviceConnector connector = board.getConnector();
+            for (int i = 1; i <= 5; i++) {
+                final long reconnects = i;
+                boardSide[0].close();
+                waitUntil(new Condition() {
+                    public boolean holds() {
+                        assertNull(ManagementFactory.getThreadMXBean().findDeadlockedThreads());
+                        return connector.getReconnectCount() == reconnects && board.isConnected();
+                    }
+                });
+            }
+            // Heartbeats go out while the presses go on
+            final long before = presses.get();
+            waitUntil(new Condition() {
+                public boolean holds() {
+                    assertNull(ManagementFactory.getThreadMXBean().findDeadlockedThreads());
+                    return monitor.getProbeCount() >= 3 && presses.get() > before;
+                }
+            });
+        } finally {
+            pressing.set(false);
+            presser.join(TIMEOUT_MS);
+        }
+        assertFalse(presser.isAlive());
+    }
+
+    // Waits until board 1's writer is stuck on its first write, the set mask probe sent on connect,
+    // then fills its queue, which nothing drains any more
+    private void fillQueueOf(int address) throws InterruptedException {
+        DeviceConnector connector = pool.getBoard(RelayAddress.getBoardId(address)).getConnector();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (connector.getQueuedCount(DeviceConnector.LANE_CONTROL) > 0) {
+            assertTrue("Board 1 writer never took the probe", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        // Longer than any flush delay, the writer is in the blocked write by now
+        Thread.sleep(4 * FlushPolicy.MAX_DELAY_MS);
+        while (pool.sendCommand(address, COMMAND_SWITCH) != BoardLink.STATUS_QUEUE_FULL) {
+            assertTrue("Board 1 queue never filled up", System.currentTimeMillis() < deadline);
+        }
+    }
+
+    private void awaitReceived(String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!received.toString().contains(expected)) {
+            assertTrue("Board 0 got " + received, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    // Firmware without set mask: the set mask lines are executed by nobody and not echoed
+    private void startOldFirmwareEcho(final LoopbackTransport transport, final StringBuffer log) {
+        Thread echo = new Thread("Old firmware echo") {
+            @Override
+            public void run() {
+                InputStream in = transport.getBoardInputStream();
+                OutputStream out = transport.getBoardOutputStream();
+                StringBuilder line = new StringBuilder();
+                try {
+                    int next;
+                    while ((next = in.read()) >= 0) {
+                        line.append((char) next);
+                        if (next != '\n') continue;
+                        log.append(line);
+                        if (line.charAt(0) != 'M') out.write(line.toString().getBytes(ASCII));
+                        line.setLength(0);
+                    }
+                } catch (IOException e) {
+                    // Transport closed
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitUntil(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.holds()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private void startEcho(final LoopbackTransport transport) {
+        Thread echo = new Thread("Echo") {
+            @Override
+            public void run() {
+                InputStream in = transport.getBoardInputStream();
+                OutputStream out = transport.getBoardOutputStream();
+                byte[] buffer = new byte[256];
+                try {
+                    int bytes;
+                    while ((bytes = in.read(buffer)) >= 0) {
+                        received.append(new String(buffer, 0, bytes, ASCII));
+                        out.write(buffer, 0, bytes);
+                    }
+                } catch (IOException e) {
+                    // Transport closed
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+    }
+}
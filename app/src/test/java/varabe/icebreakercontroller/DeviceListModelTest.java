@@ -0,0 +1,40 @@
+package varabe.icebreakercontroller;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static varabe.icebreakercontroller.DeviceRecord.RSSI_UNKNOWN;
+
+public class DeviceListModelTest {
+    private final DeviceListModel model = new DeviceListModel();
+
+    @Test
+    public void snapshot_ranksBySignal() {
+        model.update(new DeviceRecord("cached", "Board", RSSI_UNKNOWN, true, 2000));
+        model.update(new DeviceRecord("far", "Phone", -90, false, 0));
+        model.update(new DeviceRecord("near", "HC-05", -50, true, 0));
+        model.update(new DeviceRecord("older", "Board", RSSI_UNKNOWN, true, 1000));
+
+        List<DeviceRecord> records = model.snapshot();
+        assertEquals("near", records.get(0).address);
+        assertEquals("far", records.get(1).address);
+        // Without a signal the most recently connected board comes first
+        assertEquals("cached", records.get(2).address);
+        assertEquals("older", records.get(3).address);
+
+        model.setSppOnly(true);
+        assertEquals(3, model.snapshot().size());
+    }
+
+    @Test
+    public void update_reportsOnlyVisibleChanges() {
+        assertTrue(model.update(new DeviceRecord("a", "HC-05", -60, true, 0)));
+        assertFalse(model.update(new DeviceRecord("a", "HC-05", -60, true, 0)));
+        // Seen again without RSSI: the last reading stays
+        assertFalse(model.update(new DeviceRecord("a", "HC-05", RSSI_UNKNOWN, true, 0)));
+        assertEquals(-60, model.snapshot().get(0).rssi);
+        assertTrue(model.update(new DeviceRecord("a", "HC-05", -70, true, 0)));
+    }
+}
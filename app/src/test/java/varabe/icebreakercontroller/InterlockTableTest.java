@@ -0,0 +1,140 @@
+package varabe.icebreakercontroller;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_CLOSE;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_ONE_SECOND_BLINK;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_OPEN;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_SWITCH;
+
+/*
+ * No board is connected: the pool still records every command it lets through as intended state,
+ * which is all the interlock checks look at
+ */
+public class InterlockTableTest {
+    private static final int REVERSE = RelayAddress.of(0, 0);
+    private static final int WBI_SUPPLY = RelayAddress.of(0, 1);
+    private static final int LIGHT = RelayAddress.of(0, 2);
+    private static final int REMOTE = RelayAddress.of(1, 0);
+
+    private final ConnectionPool pool = new ConnectionPool();
+    private final InterlockTable interlocks = pool.getInterlocks();
+
+    @After
+    public void tearDown() {
+        pool.getSequenceEngine().cancelAll();
+    }
+
+    @Test
+    public void exclusion_rejectsWhileTheOtherIsClosed() {
+        interlocks.addExclusion((1L << REVERSE) | (1L << WBI_SUPPLY), 0, InterlockTable.POLICY_REJECT);
+        assertFalse(interlocks.isConstrained(LIGHT));
+
+        assertEquals(BoardLink.STATUS_NOT_CONNECTED, pool.sendCommand(REVERSE, COMMAND_CLOSE));
+        assertEquals(BoardLink.STATUS_INTERLOCKED, pool.sendCommand(WBI_SUPPLY, COMMAND_CLOSE));
+        assertEquals(BoardLink.STATUS_INTERLOCKED, pool.sendCommand(WBI_SUPPLY, COMMAND_SWITCH));
+        assertEquals(0b1, getClosedMask(0));
+        // The held channel's keepalive isn't a new closing
+        assertEquals(BoardLink.STATUS_NOT_CONNECTED, pool.sendCommand(REVERSE, COMMAND_ONE_SECOND_BLINK));
+        assertEquals(BoardLink.STATUS_NOT_CONNECTED, pool.sendCommand(REVERSE, COMMAND_ONE_SECOND_BLINK));
+
+        assertEquals(BoardLink.STATUS_NOT_CONNECTED, pool.sendCommand(REVERSE, COMMAND_OPEN));
+        assertEquals(BoardLink.STATUS_NOT_CONNECTED, pool.sendCommand(WBI_SUPPLY, COMMAND_CLOSE));
+        assertEquals(0b10, getClosedMask(0));
+    }
+
+    @Test
+    public void releaseTimeout_holdsBackTheOther() throws Exception {
+        interlocks.addExclusion((1L << REVERSE) | (1L << REMOTE), 100, InterlockTable.POLICY_REJECT);
+        pool.sendCommand(REVERSE, COMMAND_CLOSE);
+        pool.sendCommand(REVERSE, COMMAND_OPEN);
+        assertEquals(BoardLink.STATUS_INTERLOCKED, pool.sendCommand(REMOTE, COMMAND_CLOSE));
+        assertTrue(interlocks.getRemainingReleaseMs(REMOTE, System.nanoTime()) > 0);
+
+        Thread.sleep(120);
+        assertEquals(BoardLink.STATUS_NOT_CONNECTED, pool.sendCommand(REMOTE, COMMAND_CLOSE));
+        assertEquals(0b1, getClosedMask(1));
+    }
+
+    @Test
+    public void remainingRelease_roundsUp() {
+        interlocks.addExclusion((1L << REVERSE) | (1L << REMOTE), 100, InterlockTable.POLICY_REJECT);
+        long openedAt = 1000000000L;
+        interlocks.onOpened(1L << REVERSE, openedAt);
+
+        assertEquals(100, interlocks.getRemainingReleaseMs(REMOTE, openedAt));
+        // Less than a millisecond left still has to be waited for
+        assertEquals(1, interlocks.getRemainingReleaseMs(REMOTE, openedAt + 99999999L));
+        assertEquals(0, interlocks.getRemainingReleaseMs(REMOTE, openedAt + 100000000L));
+    }
+
+    @Test
+    public void groupCommand_leavesOutConflictingAddresses() {
+        interlocks.addExclusion((1L << REVERSE) | (1L << WBI_SUPPLY), 0, InterlockTable.POLICY_REJECT);
+        long group = (1L << REVERSE) | (1L << WBI_SUPPLY) | (1L << LIGHT) | (1L << REMOTE);
+        ConnectionPool.FanOutResult result = pool.sendCommandToGroup(group, COMMAND_CLOSE);
+
+        assertEquals(BoardLink.STATUS_INTERLOCKED, result.getStatus(0));
+        assertEquals(BoardLink.STATUS_NOT_CONNECTED, result.getStatus(1));
+        assertFalse(result.isDelivered());
+        assertEquals(0b100, getClosedMask(0));
+        assertEquals(0b1, getClosedMask(1));
+
+        pool.applyState(group, 1L << WBI_SUPPLY);
+        assertEquals(0b10, getClosedMask(0));
+    }
+
+    @Test
+    public void sequencePolicy_opensTheOtherAndWaits() throws Exception {
+        interlocks.addExclusion((1L << REVERSE) | (1L << WBI_SUPPLY), 50, InterlockTable.POLICY_SEQUENCE);
+        pool.sendCommand(WBI_SUPPLY, COMMAND_CLOSE);
+        long start = System.nanoTime();
+        assertEquals(BoardLink.STATUS_SEQUENCED, pool.sendCommand(REVERSE, COMMAND_CLOSE));
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (getClosedMask(0) != 0b1) {
+            assertTrue("Closed: " + getClosedMask(0), System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+        assertTrue(System.nanoTime() - start >= 50 * 1000000L);
+    }
+
+    @Test
+    public void sequencePolicy_laterCommandCancelsTheHeldBackOne() throws Exception {
+        interlocks.addExclusion((1L << REVERSE) | (1L << WBI_SUPPLY), 50, InterlockTable.POLICY_SEQUENCE);
+        pool.sendCommand(WBI_SUPPLY, COMMAND_CLOSE);
+        assertEquals(BoardLink.STATUS_SEQUENCED, pool.sendCommand(REVERSE, COMMAND_CLOSE));
+        assertEquals(BoardLink.STATUS_NOT_CONNECTED, pool.sendCommand(REVERSE, COMMAND_OPEN));
+
+        waitForSequences();
+        Thread.sleep(100);
+        assertEquals(0, getClosedMask(0) & 0b1);
+    }
+
+    @Test
+    public void sequencePolicy_laterCloseReplacesTheHeldBackOne() throws Exception {
+        interlocks.addExclusion((1L << REVERSE) | (1L << WBI_SUPPLY), 50, InterlockTable.POLICY_SEQUENCE);
+        pool.sendCommand(WBI_SUPPLY, COMMAND_CLOSE);
+        assertEquals(BoardLink.STATUS_SEQUENCED, pool.sendCommand(REVERSE, COMMAND_CLOSE));
+        assertEquals(BoardLink.STATUS_SEQUENCED, pool.sendCommand(REVERSE, COMMAND_CLOSE));
+
+        waitForSequences();
+        // The replaced sequence doesn't open what the one replacing it closed
+        assertEquals(0b1, getClosedMask(0));
+    }
+
+    private void waitForSequences() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pool.getSequenceEngine().getRunningCount() != 0) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private int getClosedMask(int boardId) {
+        RelayStateStore store = pool.getBoard(boardId).getStateStore();
+        return store.getIntendedClosedMask() | store.getIntendedBlinkingMask();
+    }
+}
@@ -0,0 +1,58 @@
+package varabe.icebreakercontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static varabe.icebreakercontroller.LatencyRecorder.NO_SPAN;
+import static varabe.icebreakercontroller.LatencyRecorder.STAGE_ACTIVATE;
+import static varabe.icebreakercontroller.LatencyRecorder.STAGE_REPLY;
+import static varabe.icebreakercontroller.LatencyRecorder.STAGE_WIRE_WRITE;
+
+public class LatencyRecorderTest {
+    private final LatencyRecorder recorder = new LatencyRecorder(4);
+
+    @Test
+    public void disabled_recordsNothing() {
+        assertEquals(NO_SPAN, recorder.begin());
+        recorder.mark(STAGE_ACTIVATE);
+        assertEquals(NO_SPAN, recorder.currentSpan());
+        assertEquals(0, recorder.getStageLatencies(STAGE_ACTIVATE).length);
+    }
+
+    @Test
+    public void span_collectsStagesFromOtherThreads() throws InterruptedException {
+        recorder.setEnabled(true);
+        final int span = recorder.begin();
+        recorder.mark(STAGE_ACTIVATE);
+        recorder.markEnqueued(recorder.currentSpan());
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                // Only the thread that began the span marks it implicitly
+                assertEquals(NO_SPAN, recorder.currentSpan());
+                recorder.markWritten(recorder.getLastEnqueuedSpan(), System.nanoTime());
+                recorder.mark(span, STAGE_REPLY, System.nanoTime());
+            }
+        };
+        writer.start();
+        writer.join();
+
+        assertEquals(1, recorder.getStageLatencies(STAGE_ACTIVATE).length);
+        long[] written = recorder.getStageLatencies(STAGE_WIRE_WRITE);
+        long[] replied = recorder.getStageLatencies(STAGE_REPLY);
+        assertEquals(1, replied.length);
+        assertTrue(replied[0] >= written[0]);
+        assertTrue(recorder.dump().contains("reply: n=1"));
+    }
+
+    @Test
+    public void overwrittenSpans_areIgnored() {
+        recorder.setEnabled(true);
+        int first = recorder.begin();
+        for (int i = 0; i < 4; i++) recorder.begin();
+        recorder.mark(first, STAGE_REPLY, System.nanoTime());
+        assertEquals(0, recorder.getStageLatencies(STAGE_REPLY).length);
+        recorder.markWritten(4, System.nanoTime());
+        assertEquals(4, recorder.getStageLatencies(STAGE_WIRE_WRITE).length);
+    }
+}
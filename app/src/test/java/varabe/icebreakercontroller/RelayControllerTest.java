@@ -0,0 +1,100 @@
+package varabe.icebreakercontroller;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+
+import varabe.icebreakercontroller.bluetooth.AckTracker;
+import varabe.icebreakercontroller.bluetooth.DeviceConnector;
+import varabe.icebreakercontroller.bluetooth.LoopbackTransport;
+
+import static org.junit.Assert.*;
+import static varabe.icebreakercontroller.RelayController.COMMAND_SWITCH;
+import static varabe.icebreakercontroller.RelayController.SUPPORTED_CHANNELS;
+
+/*
+ * Board 0 is connected over a LoopbackTransport that echoes every frame, so a send goes the whole
+ * way a button press does: state store, connector queue, ack tracking and the writer
+ */
+public class RelayControllerTest {
+    private static final int ITERATIONS = 20000;
+    private static final long TIMEOUT_MS = 5000;
+
+    private final RelayController controller = new RelayController(null);
+
+    @After
+    public void tearDown() {
+        controller.getPool().disconnectAll();
+    }
+
+    @Test
+    public void repeatedSends_doNotAllocate() throws Exception {
+        DeviceConnector connector = new DeviceConnector(LoopbackTransport.factory(new LoopbackTransport.Board() {
+            @Override
+            public void onConnected(LoopbackTransport transport) {
+                startEcho(transport);
+            }
+        }), "board 0", null);
+        controller.getPool().connect(0, connector);
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!controller.getPool().getBoard(0).isConnected()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+        AckTracker ackTracker = connector.getAckTracker();
+        // Warm up so that class initialization and JIT don't count
+        sendAll(ackTracker);
+
+        long before = allocatedBytes();
+        sendAll(ackTracker);
+        long allocated = allocatedBytes() - before;
+
+        // Less than a byte per send: the smallest object is 16, what is left is the measuring itself
+        assertTrue("Hot path allocated " + allocated + " bytes", allocated < ITERATIONS);
+        assertEquals(0, ackTracker.getLostCount());
+    }
+
+    // Every switch changes the channel, so every one is sent. The echo is waited for, a full
+    // queue or ack tracker isn't what is measured
+    private void sendAll(AckTracker ackTracker) {
+        for (int i = 0; i < ITERATIONS; i++) {
+            int channelIndex = i % SUPPORTED_CHANNELS.length;
+            assertEquals(BoardLink.STATUS_SENT, controller.sendCommand(channelIndex, COMMAND_SWITCH));
+            long deadline = System.nanoTime() + TIMEOUT_MS * 1000000L;
+            while (ackTracker.getPendingCount() != 0) {
+                assertTrue("Echo lost", System.nanoTime() - deadline < 0);
+                Thread.yield();
+            }
+        }
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void startEcho(final LoopbackTransport transport) {
+        Thread echo = new Thread("Echo") {
+            @Override
+            public void run() {
+                InputStream in = transport.getBoardInputStream();
+                OutputStream out = transport.getBoardOutputStream();
+                byte[] buffer = new byte[256];
+                try {
+                    int bytes;
+                    while ((bytes = in.read(buffer)) >= 0) {
+                        out.write(buffer, 0, bytes);
+                    }
+                } catch (IOException e) {
+                    // Transport closed
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+    }
+}
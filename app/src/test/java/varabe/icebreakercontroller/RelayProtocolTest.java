@@ -0,0 +1,59 @@
+package varabe.icebreakercontroller;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_CHARSET;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_CLOSE;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_ONE_SECOND_BLINK;
+import static varabe.icebreakercontroller.RelayProtocol.SUPPORTED_CHANNELS;
+
+public class RelayProtocolTest {
+    @Test
+    public void commandFrames_matchProtocol() {
+        for (int channelIndex = 0; channelIndex < SUPPORTED_CHANNELS.length; channelIndex++) {
+            for (int command = COMMAND_ONE_SECOND_BLINK; command <= COMMAND_CLOSE; command++) {
+                String expected = SUPPORTED_CHANNELS[channelIndex] + command + "\r\n";
+                byte[] frame = RelayProtocol.getCommandFrame(channelIndex, command);
+                assertEquals(expected, new String(frame, Charset.forName("US-ASCII")));
+            }
+        }
+    }
+
+    @Test
+    public void commandFrames_areShared() {
+        assertSame(RelayProtocol.getCommandFrame(2, COMMAND_CLOSE), RelayProtocol.getCommandFrame(2, COMMAND_CLOSE));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void commandFrames_rejectUnknownCommand() {
+        RelayProtocol.getCommandFrame(0, COMMAND_CLOSE + 1);
+    }
+
+    @Test
+    public void multiChannelFrame_concatenatesChannelsInOrder() {
+        byte[] frame = RelayProtocol.getMultiChannelFrame((1 << 0) | (1 << 3), COMMAND_ONE_SECOND_BLINK);
+        assertEquals("A0\r\nD0\r\n", new String(frame, Charset.forName("US-ASCII")));
+        assertSame(frame, RelayProtocol.getMultiChannelFrame((1 << 0) | (1 << 3), COMMAND_ONE_SECOND_BLINK));
+    }
+
+    @Test
+    public void setMaskFrame_roundTrips() {
+        byte[] frame = RelayProtocol.getSetMaskFrame(0xA5, 0x0F);
+        assertEquals("MA505\r\n", new String(frame, COMMAND_CHARSET));
+        assertEquals(0xA505, RelayProtocol.parseSetMask(frame, 0, RelayProtocol.SET_MASK_LINE_LENGTH));
+        assertEquals(-1, RelayProtocol.parseSetMask("A4".getBytes(COMMAND_CHARSET), 0, 2));
+        assertEquals(-1, RelayProtocol.parseSetMask("MX000".getBytes(COMMAND_CHARSET), 0, 5));
+    }
+
+    @Test
+    public void getChannelIndex_findsSupportedChannels() {
+        assertEquals(0, RelayProtocol.getChannelIndex("A"));
+        assertEquals(SUPPORTED_CHANNELS.length - 1, RelayProtocol.getChannelIndex(SUPPORTED_CHANNELS[SUPPORTED_CHANNELS.length - 1]));
+        assertEquals(-1, RelayProtocol.getChannelIndex("Z"));
+        assertEquals(1, RelayProtocol.getChannelIndex((byte) 'B'));
+        assertEquals(-1, RelayProtocol.getChannelIndex((byte) 'G'));
+    }
+}
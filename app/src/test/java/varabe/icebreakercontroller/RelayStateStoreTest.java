@@ -0,0 +1,79 @@
+package varabe.icebreakercontroller;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_CLOSE;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_INTERLOCK;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_ONE_SECOND_BLINK;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_OPEN;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_SWITCH;
+
+public class RelayStateStoreTest {
+    private final RelayStateStore store = new RelayStateStore();
+
+    @Test
+    public void commands_passUntilBoardConfirmsState() {
+        assertEquals(0b1, store.apply(0b1, COMMAND_OPEN));
+        // Not confirmed yet, the first OPEN may have been lost
+        assertEquals(0b1, store.apply(0b1, COMMAND_OPEN));
+        store.confirm(0, COMMAND_OPEN);
+        assertEquals(0, store.apply(0b1, COMMAND_OPEN));
+        assertEquals(1, store.getSuppressedCount());
+        assertEquals(0b1, store.apply(0b1, COMMAND_CLOSE));
+    }
+
+    @Test
+    public void multiChannelCommand_isSentOnlyWhereNeeded() {
+        store.apply(0b11, COMMAND_OPEN);
+        store.confirm(0, COMMAND_OPEN);
+        assertEquals(0b10, store.apply(0b11, COMMAND_OPEN));
+    }
+
+    @Test
+    public void keepalivesAndSwitches_alwaysPass() {
+        store.apply(0b1, COMMAND_ONE_SECOND_BLINK);
+        store.confirm(0, COMMAND_ONE_SECOND_BLINK);
+        assertEquals(0b1, store.apply(0b1, COMMAND_ONE_SECOND_BLINK));
+        assertEquals(0b1, store.apply(0b1, COMMAND_SWITCH));
+        assertEquals(0, store.getSuppressedCount());
+    }
+
+    @Test
+    public void interlock_tracksOtherChannels() {
+        store.apply(0b11, COMMAND_CLOSE);
+        store.apply(0b100, COMMAND_INTERLOCK);
+        assertEquals(0b100, store.getIntendedClosedMask());
+        store.confirm(2, COMMAND_INTERLOCK);
+        assertEquals(0, store.getUnconfirmedMask());
+        assertEquals(0, store.apply(0b100, COMMAND_INTERLOCK));
+    }
+
+    @Test
+    public void setMaskEcho_confirmsChannelsOfMask() {
+        store.apply(0b01, COMMAND_CLOSE);
+        store.apply(0b10, COMMAND_OPEN);
+        store.confirmState(0b11, 0b01);
+        assertEquals(0, store.getUnconfirmedMask() & 0b11);
+    }
+
+    @Test
+    public void invalidatedState_isUnconfirmed() {
+        store.apply(0b1, COMMAND_CLOSE);
+        store.confirm(0, COMMAND_CLOSE);
+        store.invalidateConfirmed();
+        assertEquals(RelayStateStore.ALL_CHANNELS_MASK, store.getUnconfirmedMask());
+        assertEquals(0b1, store.apply(0b1, COMMAND_CLOSE));
+    }
+
+    @Test
+    public void diff_reportsChangedChannels() {
+        long before = store.getSnapshot();
+        store.apply(0b1000, COMMAND_CLOSE);
+        store.confirm(5, COMMAND_OPEN);
+        long after = store.getSnapshot();
+        assertEquals(0b101000, RelayStateStore.diff(before, after));
+        assertEquals(0b1000, RelayStateStore.getIntendedClosedMask(after));
+        assertEquals(0, RelayStateStore.diff(after, store.getSnapshot()));
+    }
+}
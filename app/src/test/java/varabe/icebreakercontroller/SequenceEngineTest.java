@@ -0,0 +1,186 @@
+package varabe.icebreakercontroller;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import varabe.icebreakercontroller.bluetooth.DeviceConnector;
+import varabe.icebreakercontroller.bluetooth.LoopbackTransport;
+
+import static org.junit.Assert.*;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_CLOSE;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_OPEN;
+
+/*
+ * Board 0 echoes every command, board 1 is connected but never answers, board 2 isn't connected
+ */
+public class SequenceEngineTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final long TIMEOUT_MS = 5000;
+
+    private final ConnectionPool pool = new ConnectionPool();
+    private final SequenceEngine engine = new SequenceEngine(pool);
+    private final StringBuffer received = new StringBuffer();
+    private final CountDownLatch boardsConnected = new CountDownLatch(2);
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final SequenceEngine.Listener listener = new SequenceEngine.Listener() {
+        @Override
+        public void onFinished(SequenceEngine.Run run, int result) {
+            finished.countDown();
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        pool.connect(0, new DeviceConnector(LoopbackTransport.factory(new LoopbackTransport.Board() {
+            @Override
+            public void onConnected(LoopbackTransport transport) {
+                startEcho(transport);
+                boardsConnected.countDown();
+            }
+        }), "board 0", null));
+        pool.connect(1, new DeviceConnector(LoopbackTransport.factory(new LoopbackTransport.Board() {
+            @Override
+            public void onConnected(LoopbackTransport transport) {
+                boardsConnected.countDown();
+            }
+        }), "board 1", null));
+        assertTrue(boardsConnected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (pool.getConnectedCount() < 2) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        engine.cancelAll();
+        pool.disconnectAll();
+    }
+
+    @Test
+    public void pulse_keepsItsTimeline() throws Exception {
+        int starter = RelayAddress.of(0, 1);
+        Sequence sequence = new Sequence("starter")
+                .abortOnDisconnect()
+                .command(starter, COMMAND_CLOSE)
+                .waitForAck(starter, TIMEOUT_MS)
+                .waitMs(50)
+                .command(starter, COMMAND_OPEN)
+                .waitMs(20)
+                .repeat(1, 2);
+        long start = System.nanoTime();
+        SequenceEngine.Run run = engine.start(sequence, listener);
+        assertTrue(finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertEquals(SequenceEngine.RESULT_COMPLETED, run.getResult());
+        assertEquals(3, run.getFiredCount(1));
+        assertTrue("Took " + elapsedMs + " ms", elapsedMs >= 3 * 70);
+        assertTrue(run.getMaxLateNanos(4) < TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(0, pool.getBoard(0).getStateStore().getIntendedClosedMask());
+        awaitReceived("B4\r\nB3\r\nB4\r\n");
+        assertEquals(0, engine.getRunningCount());
+    }
+
+    @Test
+    public void cancel_opensWhatTheSequenceClosed() throws Exception {
+        int vibrator = RelayAddress.of(0, 2);
+        SequenceEngine.Run run = engine.start(new Sequence("vibrator")
+                .command(vibrator, COMMAND_CLOSE)
+                .waitMs(TIMEOUT_MS)
+                .command(vibrator, COMMAND_OPEN), listener);
+        awaitReceived("C4\r\n");
+        run.cancel();
+        assertTrue(finished.await(1000, TimeUnit.MILLISECONDS));
+
+        assertEquals(SequenceEngine.RESULT_CANCELLED, run.getResult());
+        assertEquals(0, pool.getBoard(0).getStateStore().getIntendedClosedMask());
+        awaitReceived("C3\r\n");
+    }
+
+    // This engine isn't the pool's, the stop doesn't cancel the run. Like a step that is already
+    // past the cancelled check when the stop comes, the run still tries to close the next channel
+    @Test
+    public void emergencyStop_refusesStepsDecidedBeforeIt() throws Exception {
+        SequenceEngine.Run run = engine.start(new Sequence("late step")
+                .command(RelayAddress.of(0, 1), COMMAND_CLOSE)
+                .waitMs(100)
+                .command(RelayAddress.of(0, 2), COMMAND_CLOSE)
+                .waitMs(TIMEOUT_MS), listener);
+        awaitReceived("B4\r\n");
+        pool.emergencyStop();
+        assertTrue(finished.await(1000, TimeUnit.MILLISECONDS));
+
+        assertEquals(SequenceEngine.RESULT_CANCELLED, run.getResult());
+        assertEquals(0, pool.getBoard(0).getStateStore().getIntendedClosedMask());
+        String stop = new String(RelayProtocol.getMultiChannelFrame(RelayStateStore.ALL_CHANNELS_MASK, COMMAND_OPEN), ASCII);
+        awaitReceived(stop);
+        Thread.sleep(20);
+        assertTrue("Board 0 got " + received, received.toString().endsWith(stop));
+    }
+
+    @Test
+    public void missingBoard_abortsTheSequence() throws Exception {
+        SequenceEngine.Run run = engine.start(new Sequence("two boards")
+                .command(RelayAddress.of(0, 3), COMMAND_CLOSE)
+                .abortOnDisconnect()
+                .command(RelayAddress.of(2, 0), COMMAND_CLOSE), listener);
+        assertTrue(finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(SequenceEngine.RESULT_DISCONNECTED, run.getResult());
+        assertEquals(0, pool.getBoard(0).getStateStore().getIntendedClosedMask());
+        assertEquals(0, pool.getBoard(2).getStateStore().getIntendedClosedMask());
+    }
+
+    @Test
+    public void silentBoard_failsTheAckWait() throws Exception {
+        int silent = RelayAddress.of(1, 0);
+        SequenceEngine.Run run = engine.start(new Sequence("silent")
+                .command(silent, COMMAND_CLOSE)
+                .waitForAck(silent, 100)
+                .waitMs(TIMEOUT_MS), listener);
+        assertTrue(finished.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+        assertEquals(SequenceEngine.RESULT_ACK_TIMEOUT, run.getResult());
+        assertEquals(0, pool.getBoard(1).getStateStore().getIntendedClosedMask());
+    }
+
+    private void awaitReceived(String expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!received.toString().contains(expected)) {
+            assertTrue("Board 0 got " + received, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    private void startEcho(final LoopbackTransport transport) {
+        Thread echo = new Thread("Echo") {
+            @Override
+            public void run() {
+                InputStream in = transport.getBoardInputStream();
+                OutputStream out = transport.getBoardOutputStream();
+                byte[] buffer = new byte[256];
+                try {
+                    int bytes;
+                    while ((bytes = in.read(buffer)) >= 0) {
+                        received.append(new String(buffer, 0, bytes, ASCII));
+                        out.write(buffer, 0, bytes);
+                    }
+                } catch (IOException e) {
+                    // Transport closed
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+    }
+}
@@ -0,0 +1,182 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import varabe.icebreakercontroller.LatencyRecorder;
+
+import static org.junit.Assert.*;
+
+public class AckTrackerTest {
+    private static final long MS = 1000000L;
+
+    private final List<String> retransmitted = new ArrayList<>();
+    private AckTracker tracker;
+    private ResponseFramer framer;
+    private long now;
+
+    @Before
+    public void setUp() {
+        tracker = new AckTracker(new AckTracker.Retransmitter() {
+            @Override
+            public void retransmit(byte[] frame, int offset, int length) {
+                retransmitted.add(new String(frame, offset, length, Charset.forName("US-ASCII")));
+            }
+        });
+        tracker.setAckTimeout(100);
+        framer = new ResponseFramer(new ResponseFramer.LineListener() {
+            @Override
+            public void onLine(ResponseFramer.Line line) {
+                tracker.onLine(line, now);
+            }
+        });
+    }
+
+    @Test
+    public void echo_acknowledgesCommandAndMeasuresRtt() {
+        send("A4\r\n");
+        now += 25 * MS;
+        receive("A4\r\n");
+        assertEquals(1, tracker.getAckedCount());
+        assertEquals(0, tracker.getPendingCount());
+        assertEquals(25 * MS, tracker.getLastRtt());
+        assertEquals(25 * MS, tracker.getSmoothedRtt());
+        assertEquals(25 * MS / 2, tracker.getRttVariation());
+    }
+
+    @Test
+    public void multiCommandFrame_isTrackedPerLine() {
+        send("A0\r\nB0\r\n");
+        assertEquals(2, tracker.getPendingCount());
+        receive("B0\r\n");
+        assertEquals(1, tracker.getPendingCount());
+    }
+
+    @Test
+    public void missingOpenEcho_isRetransmittedThenGivenUp() {
+        tracker.setMaxRetransmits(2);
+        send("C3\r\n");
+        for (int i = 0; i < 3; i++) {
+            now += 100 * MS;
+            tracker.checkDeadlines(now);
+        }
+        assertEquals(2, retransmitted.size());
+        assertEquals("C3\r\n", retransmitted.get(0));
+        assertEquals(1, tracker.getLostCount());
+        assertEquals(0, tracker.getPendingCount());
+    }
+
+    @Test
+    public void retransmittedCommand_isNotSampledForRtt() {
+        send("C3\r\n");
+        now += 100 * MS;
+        tracker.checkDeadlines(now);
+        receive("C3\r\n");
+        assertEquals(1, tracker.getAckedCount());
+        assertEquals(-1, tracker.getLastRtt());
+    }
+
+    @Test
+    public void missingCloseEcho_isNotRetransmitted() {
+        send("C4\r\n");
+        now += 100 * MS;
+        tracker.checkDeadlines(now);
+        assertTrue(retransmitted.isEmpty());
+        assertEquals(1, tracker.getLostCount());
+    }
+
+    @Test
+    public void setMaskEndingInThree_isNeverRetransmitted() {
+        send("M0303\r\n");
+        for (int i = 0; i < 5; i++) {
+            now += 100 * MS;
+            tracker.checkDeadlines(now);
+        }
+        assertTrue(retransmitted.isEmpty());
+        assertEquals(1, tracker.getLostCount());
+    }
+
+    @Test
+    public void setMask_supersedesPendingOpensOfItsChannels() {
+        send("A3\r\nC3\r\n");
+        send("M0101\r\n");
+        now += 100 * MS;
+        tracker.checkDeadlines(now);
+        assertEquals(1, retransmitted.size());
+        assertEquals("C3\r\n", retransmitted.get(0));
+    }
+
+    @Test
+    public void laterCommand_supersedesPendingOpen() {
+        send("C3\r\n");
+        send("C4\r\n");
+        for (int i = 0; i < 3; i++) {
+            now += 100 * MS;
+            tracker.checkDeadlines(now);
+        }
+        assertTrue(retransmitted.isEmpty());
+        assertEquals(1, tracker.getSupersededCount());
+        assertEquals(1, tracker.getLostCount());
+    }
+
+    @Test
+    public void otherChannel_doesNotSupersedeOpen() {
+        send("C3\r\n");
+        send("D4\r\n");
+        now += 100 * MS;
+        tracker.checkDeadlines(now);
+        assertEquals(1, retransmitted.size());
+        assertEquals("C3\r\n", retransmitted.get(0));
+    }
+
+    @Test
+    public void discardedFrame_isMatchedByContent() {
+        send("C3\r\n");
+        send("A3\r\nB4\r\n");
+        // The writer's queues hold copies, the discarded bytes aren't the array that was tracked
+        byte[] copy = "A3\r\nB4\r\n".getBytes(Charset.forName("US-ASCII"));
+        tracker.untrackDiscarded(copy, 0, copy.length);
+        assertEquals(1, tracker.getPendingCount());
+        now += 100 * MS;
+        tracker.checkDeadlines(now);
+        assertEquals(1, retransmitted.size());
+        assertEquals("C3\r\n", retransmitted.get(0));
+    }
+
+    @Test
+    public void droppedRetransmits_areGivenUpAtTheDeadline() {
+        send("C3\r\n");
+        tracker.dropRetransmits();
+        now += 100 * MS;
+        tracker.checkDeadlines(now);
+        assertTrue(retransmitted.isEmpty());
+        assertEquals(1, tracker.getLostCount());
+    }
+
+    @Test
+    public void probe_isNeitherResentNorSuperseding() {
+        send("C3\r\n");
+        byte[] probe = "C3\r\n".getBytes(Charset.forName("US-ASCII"));
+        tracker.track(probe, 0, probe.length, now, LatencyRecorder.NO_SPAN, true);
+        assertEquals(2, tracker.getPendingCount());
+        now += 100 * MS;
+        tracker.checkDeadlines(now);
+        assertEquals(1, retransmitted.size());
+        assertEquals(0, tracker.getSupersededCount());
+        assertEquals(1, tracker.getLostCount());
+    }
+
+    private void send(String frame) {
+        byte[] bytes = frame.getBytes(Charset.forName("US-ASCII"));
+        tracker.track(bytes, 0, bytes.length, now);
+    }
+
+    private void receive(String data) {
+        byte[] bytes = data.getBytes(Charset.forName("US-ASCII"));
+        framer.feed(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,84 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+import static varabe.icebreakercontroller.bluetooth.ConnectionEventBus.EVENT_DEVICE_NAME;
+import static varabe.icebreakercontroller.bluetooth.ConnectionEventBus.EVENT_READ;
+import static varabe.icebreakercontroller.bluetooth.ConnectionEventBus.EVENT_STATE_CHANGE;
+import static varabe.icebreakercontroller.bluetooth.ConnectionEventBus.EVENT_WRITE;
+import static varabe.icebreakercontroller.bluetooth.ConnectionEventBus.THREAD_BACKGROUND;
+import static varabe.icebreakercontroller.bluetooth.ConnectionEventBus.THREAD_MAIN;
+
+public class ConnectionEventBusTest {
+    // Stands in for the main looper: runnables wait until the test runs them
+    private final List<Runnable> mainQueue = new ArrayList<>();
+    private final ConnectionEventBus bus = new ConnectionEventBus(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mainQueue.add(command);
+        }
+    });
+    private final StringBuilder received = new StringBuilder();
+
+    private class Recorder extends ConnectionEventBus.Adapter {
+        @Override
+        public void onStateChanged(int state) {
+            received.append("state ").append(state).append(';');
+        }
+
+        @Override
+        public void onRead(String line) {
+            received.append("read ").append(line).append(';');
+        }
+
+        @Override
+        public void onWrite(int bytes, int frames) {
+            received.append("write ").append(bytes).append(';');
+        }
+    }
+
+    @Test
+    public void eventsWithoutSubscribers_areNotDispatched() {
+        bus.subscribe(new Recorder(), EVENT_STATE_CHANGE, THREAD_MAIN);
+        assertFalse(bus.hasSubscribers(EVENT_WRITE));
+        bus.postWrite(4, 1);
+        bus.postRead("A3");
+        assertTrue(mainQueue.isEmpty());
+        assertEquals("", received.toString());
+    }
+
+    @Test
+    public void subscribers_getEventsOnTheirThread() {
+        bus.subscribe(new Recorder(), EVENT_STATE_CHANGE, THREAD_MAIN);
+        bus.subscribe(new Recorder(), EVENT_READ | EVENT_WRITE, THREAD_BACKGROUND);
+
+        bus.postWrite(4, 1);
+        bus.postStateChange(DeviceConnector.STATE_CONNECTED);
+        bus.postRead("A3");
+        // Background deliveries happen right away, main ones once the looper runs them
+        assertEquals("write 4;read A3;", received.toString());
+        assertEquals(1, mainQueue.size());
+        mainQueue.get(0).run();
+        assertEquals("write 4;read A3;state " + DeviceConnector.STATE_CONNECTED + ";", received.toString());
+    }
+
+    @Test
+    public void unsubscribe_stopsDelivery() {
+        Recorder recorder = new Recorder();
+        bus.subscribe(recorder, EVENT_READ, THREAD_BACKGROUND);
+        // Subscribing again replaces the previous subscription
+        bus.subscribe(recorder, EVENT_READ | EVENT_DEVICE_NAME, THREAD_BACKGROUND);
+        bus.postRead("A3");
+        assertEquals("read A3;", received.toString());
+
+        bus.unsubscribe(recorder);
+        assertFalse(bus.hasSubscribers(EVENT_READ));
+        bus.postRead("B3");
+        assertEquals("read A3;", received.toString());
+    }
+}
@@ -0,0 +1,208 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import android.content.SharedPreferences;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DeviceCacheTest {
+    private static final String SPP = "00001101-0000-1000-8000-00805f9b34fb";
+    private static final int PHONE_CLASS = 0x020C;
+    private static final int UNCATEGORIZED_CLASS = 0x1F00;
+
+    @Test
+    public void entry_survivesEncoding() {
+        DeviceCache.Entry entry = new DeviceCache.Entry("00:11:22:33:44:55", "HC-05", 0x1F00,
+                new String[]{SPP, "8ce255c0-200a-11e0-ac64-0800200c9a66"}, 850, 4, 3, 1500000000000L);
+        DeviceCache.Entry decoded = DeviceCache.Entry.decode(entry.address, entry.encode());
+
+        assertEquals("HC-05", decoded.name);
+        assertEquals(0x1F00, decoded.deviceClass);
+        assertArrayEquals(entry.uuids, decoded.uuids);
+        assertEquals(850, decoded.connectTimeMs);
+        assertEquals(0.75f, decoded.getSuccessRate(), 0);
+        assertEquals(1500000000000L, decoded.lastSuccessAt);
+        assertTrue(decoded.hasService(ServiceUuids.SERIAL_PORT));
+        assertEquals(Arrays.asList("SerialPortService", "Unknown service UUID 0x55C0"), decoded.getServiceNames());
+
+        DeviceCache.Entry unnamed = DeviceCache.Entry.decode("a", new DeviceCache.Entry("a", null, 0, new String[0], 0, 0, 0, 0).encode());
+        assertNull(unnamed.name);
+        assertEquals(0, unnamed.uuids.length);
+        assertNull(DeviceCache.Entry.decode("a", "garbage"));
+    }
+
+    @Test
+    public void ranking_putsLastSuccessFirst() {
+        DeviceCache.Entry never = new DeviceCache.Entry("never", null, 0, new String[]{SPP}, 0, 2, 0, 0);
+        DeviceCache.Entry old = new DeviceCache.Entry("old", null, 0, new String[0], 0, 1, 1, 1000);
+        DeviceCache.Entry recent = new DeviceCache.Entry("recent", null, 0, new String[0], 0, 10, 1, 2000);
+        List<DeviceCache.Entry> entries = new ArrayList<>(Arrays.asList(never, old, recent));
+        Collections.sort(entries, DeviceCache.RANKING);
+        assertEquals(Arrays.asList(recent, old, never), entries);
+
+        assertTrue(never.isRelayBoard());
+        assertFalse(new DeviceCache.Entry("phone", null, 0, new String[0], 0, 0, 0, 0).isRelayBoard());
+    }
+
+    @Test
+    public void onSeen_writesOnlyChangedRelayCandidates() {
+        MemoryPreferences preferences = new MemoryPreferences();
+        DeviceCache cache = new DeviceCache(preferences);
+
+        DeviceCache.Entry phone = cache.onSeen("phone", "Phone", PHONE_CLASS, null);
+        assertFalse(phone.isRelayCandidate());
+        assertNull(cache.get("phone"));
+        assertEquals(0, preferences.applyCount);
+
+        cache.onSeen("board", "HC-05", UNCATEGORIZED_CLASS, null);
+        for (int i = 0; i < 10; i++) {
+            cache.onSeen("board", "HC-05", UNCATEGORIZED_CLASS, null);
+        }
+        assertEquals(1, preferences.applyCount);
+        cache.onSeen("board", "HC-05", UNCATEGORIZED_CLASS, new String[]{SPP});
+        assertEquals(2, preferences.applyCount);
+        assertTrue(cache.get("board").isRelayBoard());
+    }
+
+    @Test
+    public void cache_isBoundedAndKeepsTheBoardsThatConnected() {
+        MemoryPreferences preferences = new MemoryPreferences();
+        DeviceCache cache = new DeviceCache(preferences);
+        cache.onConnected("connected", 500);
+        for (int i = 0; i < 2 * DeviceCache.MAX_ENTRIES; i++) {
+            cache.onSeen("board " + i, null, 0, new String[]{SPP});
+        }
+        assertEquals(DeviceCache.MAX_ENTRIES, cache.size());
+        assertEquals(DeviceCache.MAX_ENTRIES, preferences.values.size());
+        assertNotNull(cache.get("connected"));
+        // The newest device is never the one evicted
+        assertNotNull(cache.get("board " + (2 * DeviceCache.MAX_ENTRIES - 1)));
+    }
+
+    // Just enough of SharedPreferences for the cache, applies count the writes
+    private static class MemoryPreferences implements SharedPreferences {
+        final Map<String, Object> values = new HashMap<>();
+        int applyCount;
+
+        @Override
+        public Map<String, ?> getAll() {
+            return new HashMap<>(values);
+        }
+
+        @Override
+        public String getString(String key, String defValue) {
+            return values.containsKey(key) ? (String) values.get(key) : defValue;
+        }
+
+        @Override
+        public Set<String> getStringSet(String key, Set<String> defValues) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getInt(String key, int defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long getLong(String key, long defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public float getFloat(String key, float defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean getBoolean(String key, boolean defValue) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean contains(String key) {
+            return values.containsKey(key);
+        }
+
+        @Override
+        public Editor edit() {
+            return new Editor() {
+                private final Map<String, Object> changes = new HashMap<>();
+
+                @Override
+                public Editor putString(String key, String value) {
+                    changes.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor putStringSet(String key, Set<String> values) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putInt(String key, int value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putLong(String key, long value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putFloat(String key, float value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor putBoolean(String key, boolean value) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    changes.put(key, null);
+                    return this;
+                }
+
+                @Override
+                public Editor clear() {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public boolean commit() {
+                    apply();
+                    return true;
+                }
+
+                @Override
+                public void apply() {
+                    applyCount++;
+                    for (Map.Entry<String, Object> change : changes.entrySet()) {
+                        if (change.getValue() == null) values.remove(change.getKey());
+                        else values.put(change.getKey(), change.getValue());
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+
+        @Override
+        public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/*
+ * Runs the whole command path (queue, writer thread, transport, response framer, ack tracking)
+ * against an echoing board on a LoopbackTransport
+ */
+public class DeviceConnectorTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final long TIMEOUT_MS = 5000;
+
+    private final CountDownLatch boardConnected = new CountDownLatch(1);
+    private final StringBuffer received = new StringBuffer();
+    private volatile LoopbackTransport boardSide;
+    private volatile boolean boardAvailable = true;
+    // A half-dead link: the board still takes data but nothing comes back
+    private volatile boolean boardAnswers = true;
+    private DeviceConnector connector;
+
+    @Before
+    public void setUp() throws Exception {
+        final Transport.Factory loopback = LoopbackTransport.factory(new LoopbackTransport.Board() {
+            @Override
+            public void onConnected(LoopbackTransport transport) {
+                boardSide = transport;
+                startEcho(transport);
+                boardConnected.countDown();
+            }
+        });
+        connector = new DeviceConnector(new Transport.Factory() {
+            @Override
+            public Transport create() throws IOException {
+                if (!boardAvailable) throw new IOException("Board is out of range");
+                return loopback.create();
+            }
+        }, "loopback", null);
+        connector.connect();
+        assertTrue(boardConnected.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return connector.getState() == DeviceConnector.STATE_CONNECTED;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        connector.stop();
+    }
+
+    @Test
+    public void commands_reachBoardAndAreAcknowledged() throws Exception {
+        assertTrue(connector.write("A4\r\n".getBytes(ASCII)));
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return connector.getAckTracker().getAckedCount() == 1;
+            }
+        });
+        assertTrue(connector.getAckTracker().getLastRtt() > 0);
+    }
+
+    @Test
+    public void closedTransport_dropsConnectionWithoutAutoReconnect() throws Exception {
+        connector.setAutoReconnect(false);
+        boardSide.close();
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return connector.getState() == DeviceConnector.STATE_NONE;
+            }
+        });
+        assertFalse(connector.write("A4\r\n".getBytes(ASCII)));
+    }
+
+    @Test
+    public void lostConnection_reconnectsAndSendsBufferedCommandsThenRestoresState() throws Exception {
+        connector.setConnectionListener(new DeviceConnector.ConnectionListener() {
+            @Override
+            public void onConnected(DeviceConnector connector, boolean reconnected) {
+                if (reconnected) connector.write("B3\r\n".getBytes(ASCII));
+            }
+        });
+        boardAvailable = false;
+        boardSide.close();
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return connector.isReconnecting();
+            }
+        });
+        assertEquals(DeviceConnector.STATE_CONNECTING, connector.getState());
+        assertTrue(connector.write("A4\r\n".getBytes(ASCII)));
+
+        received.setLength(0);
+        boardAvailable = true;
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return received.toString().equals("A4\r\nB3\r\n");
+            }
+        });
+        assertEquals(DeviceConnector.STATE_CONNECTED, connector.getState());
+        assertEquals(1, connector.getReconnectCount());
+    }
+
+    @Test
+    public void stop_cancelsReconnect() throws Exception {
+        boardAvailable = false;
+        boardSide.close();
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return connector.isReconnecting();
+            }
+        });
+        connector.stop();
+        boardAvailable = true;
+        Thread.sleep(3 * DeviceConnector.RECONNECT_BASE_DELAY_MS);
+        assertEquals(DeviceConnector.STATE_NONE, connector.getState());
+        assertFalse(connector.write("A4\r\n".getBytes(ASCII)));
+    }
+
+    @Test
+    public void backlog_goesOutInFewWrites() throws Exception {
+        final int commands = 50;
+        holdWriterOn("A0\r\n".getBytes(ASCII));
+        long writesBefore = connector.getWireWriteCount();
+        byte[] frame = "B0\r\n".getBytes(ASCII);
+        for (int i = 0; i < commands; i++) {
+            assertTrue(connector.write(frame));
+        }
+        boardSide.setStalled(false);
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return connector.getWrittenFrameCount() == commands + 1;
+            }
+        });
+        // The stuck write and at most a couple of batches for the rest
+        long writes = connector.getWireWriteCount() - writesBefore;
+        assertTrue(writes + " writes", writes <= 3);
+        assertTrue(connector.getMergedFrameCount() >= commands - 2);
+    }
+
+    @Test
+    public void flushPolicies_reportTheirFlushes() throws Exception {
+        final byte[] frame = "B0\r\n".getBytes(ASCII);
+        connector.setFlushPolicy(FlushPolicy.IMMEDIATE);
+        writeAndWait(frame, 1);
+        assertEquals(1, connector.getFlushCount(FlushPolicy.MODE_IMMEDIATE));
+        assertEquals(frame.length, connector.getBytesPerFlush(FlushPolicy.MODE_IMMEDIATE), 0);
+
+        // A burst well within the delay goes out in a write or two
+        connector.setFlushPolicy(FlushPolicy.boundedDelay(FlushPolicy.MAX_DELAY_MS, 512));
+        writeAndWait(frame, 20);
+        long flushes = connector.getFlushCount(FlushPolicy.MODE_BOUNDED_DELAY);
+        assertTrue(flushes >= 1 && flushes < 20);
+        assertEquals(20 * frame.length, connector.getFlushedByteCount(FlushPolicy.MODE_BOUNDED_DELAY));
+        assertTrue(connector.getBytesPerFlush(FlushPolicy.MODE_BOUNDED_DELAY) > frame.length);
+        assertEquals(1, connector.getFlushCount(FlushPolicy.MODE_IMMEDIATE));
+    }
+
+    @Test
+    public void defaultFlushPolicies_followTheLane() throws Exception {
+        final byte[] frame = "B0\r\n".getBytes(ASCII);
+        writeAndWait(frame, 1);
+        assertEquals(1, connector.getFlushCount(FlushPolicy.MODE_IMMEDIATE));
+
+        final long expected = connector.getWrittenFrameCount() + 20;
+        for (int i = 0; i < 20; i++) {
+            assertTrue(connector.write(frame, DeviceConnector.LANE_BULK));
+        }
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return connector.getWrittenFrameCount() == expected;
+            }
+        });
+        assertEquals(1, connector.getFlushCount(FlushPolicy.MODE_IMMEDIATE));
+        assertTrue(connector.getFlushCount(FlushPolicy.MODE_BOUNDED_DELAY) < 20);
+        assertEquals(20 * frame.length, connector.getFlushedByteCount(FlushPolicy.MODE_BOUNDED_DELAY));
+    }
+
+    @Test
+    public void lanes_higherLaneGoesFirst() throws Exception {
+        holdWriterOn("A0\r\n".getBytes(ASCII));
+        assertTrue(connector.write("B0\r\n".getBytes(ASCII), DeviceConnector.LANE_BULK));
+        assertTrue(connector.write("C0\r\n".getBytes(ASCII), DeviceConnector.LANE_KEEPALIVE));
+        assertTrue(connector.write("D3\r\n".getBytes(ASCII), DeviceConnector.LANE_CONTROL));
+        boardSide.setStalled(false);
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return received.toString().equals("A0\r\nD3\r\nC0\r\nB0\r\n");
+            }
+        });
+    }
+
+    @Test
+    public void emergencyStop_goesAheadAndNothingStaleFollows() throws Exception {
+        holdWriterOn("A0\r\n".getBytes(ASCII));
+        for (int i = 0; i < 3; i++) {
+            assertTrue(connector.write("B4\r\n".getBytes(ASCII), DeviceConnector.LANE_BULK));
+            assertTrue(connector.write("C4\r\n".getBytes(ASCII), DeviceConnector.LANE_CONTROL));
+        }
+        connector.discardQueued(DeviceConnector.LANE_CONTROL);
+        assertTrue(connector.write("B3\r\nC3\r\n".getBytes(ASCII), DeviceConnector.LANE_EMERGENCY));
+        boardSide.setStalled(false);
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return connector.getEmergencyWriteCount() == 1;
+            }
+        });
+        Thread.sleep(20);
+        assertEquals("A0\r\nB3\r\nC3\r\n", received.toString());
+        assertEquals(6, connector.getDiscardedFrameCount());
+        assertTrue(connector.getEmergencyLatency() > 0);
+        assertEquals(connector.getEmergencyLatency(), connector.getMaxEmergencyLatency());
+    }
+
+    @Test
+    public void discardedFrames_areNotAwaitedOrResent() throws Exception {
+        connector.getAckTracker().setAckTimeout(50);
+        holdWriterOn("A0\r\n".getBytes(ASCII));
+        assertTrue(connector.write("B3\r\n".getBytes(ASCII)));
+        assertTrue(connector.write("C4\r\n".getBytes(ASCII), DeviceConnector.LANE_BULK));
+        assertEquals(3, connector.getAckTracker().getPendingCount());
+        connector.discardQueued(DeviceConnector.LANE_CONTROL);
+        // Queued after the discard, it goes out
+        assertTrue(connector.write("D4\r\n".getBytes(ASCII)));
+        boardSide.setStalled(false);
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return connector.getAckTracker().getAckedCount() == 2;
+            }
+        });
+        assertEquals(2, connector.getDiscardedFrameCount());
+        assertEquals(0, connector.getAckTracker().getPendingCount());
+        assertEquals("A0\r\nD4\r\n", received.toString());
+        assertEquals(0, connector.getAckTracker().getRetransmitCount());
+    }
+
+    @Test
+    public void emergencyLatency_underBulkLoad() throws Exception {
+        connector.setFlushPolicy(FlushPolicy.boundedDelay(FlushPolicy.MAX_DELAY_MS, 512));
+        final byte[] bulk = "B0\r\n".getBytes(ASCII);
+        final byte[] stop = "B3\r\n".getBytes(ASCII);
+        final int stops = 20;
+        for (int i = 0; i < stops; i++) {
+            while (connector.write(bulk, DeviceConnector.LANE_BULK)) {
+                // Fill the bulk lane
+            }
+            assertTrue(connector.write(stop, DeviceConnector.LANE_EMERGENCY));
+            final long expected = i + 1;
+            waitUntil(new Condition() {
+                public boolean holds() {
+                    return connector.getEmergencyWriteCount() == expected;
+                }
+            });
+        }
+        long max = connector.getMaxEmergencyLatency();
+        assertTrue(TimeUnit.NANOSECONDS.toMicros(max) + " us", max < TimeUnit.MILLISECONDS.toNanos(5 * DeviceConnector.EMERGENCY_LATENCY_BUDGET_MS));
+    }
+
+    @Test
+    public void silentBoard_isDroppedWithoutWaitingForTheOs() throws Exception {
+        connector.setAutoReconnect(false);
+        connector.setHeartbeatSource(new DeviceConnector.HeartbeatSource() {
+            @Override
+            public boolean sendHeartbeat(DeviceConnector connector) {
+                return connector.writeProbe("M0000\r\n".getBytes(ASCII));
+            }
+        });
+        final LinkMonitor monitor = connector.getLinkMonitor();
+        monitor.setHeartbeatInterval(100);
+        monitor.setMaxMissed(2);
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return monitor.getProbeCount() >= 3;
+            }
+        });
+        assertEquals(DeviceConnector.STATE_CONNECTED, connector.getState());
+        assertEquals(LinkMonitor.QUALITY_GOOD, monitor.getQuality());
+
+        boardAnswers = false;
+        long start = System.nanoTime();
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return connector.getState() == DeviceConnector.STATE_NONE;
+            }
+        });
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Took " + elapsedMs + " ms", elapsedMs <= monitor.getDetectionBound() + 100);
+        assertEquals(LinkMonitor.QUALITY_DEAD, monitor.getQuality());
+        assertTrue(boardSide.isClosed());
+    }
+
+    // Stalls the link and gets the writer stuck writing frame, whatever is written next waits in the queues
+    private void holdWriterOn(byte[] frame) throws InterruptedException {
+        connector.setFlushPolicy(FlushPolicy.IMMEDIATE);
+        boardSide.setStalled(true);
+        assertTrue(connector.write(frame));
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return connector.getQueuedCount(DeviceConnector.LANE_CONTROL) == 0;
+            }
+        });
+    }
+
+    private void writeAndWait(byte[] frame, int count) throws InterruptedException {
+        final long expected = connector.getWrittenFrameCount() + count;
+        for (int i = 0; i < count; i++) {
+            assertTrue(connector.write(frame));
+        }
+        waitUntil(new Condition() {
+            public boolean holds() {
+                return connector.getWrittenFrameCount() == expected;
+            }
+        });
+    }
+
+    // Echoes every byte back, the way relay boards confirm commands, and records it
+    private void startEcho(final LoopbackTransport transport) {
+        Thread echo = new Thread("Echo") {
+            @Override
+            public void run() {
+                InputStream in = transport.getBoardInputStream();
+                OutputStream out = transport.getBoardOutputStream();
+                byte[] buffer = new byte[256];
+                try {
+                    int bytes;
+                    while ((bytes = in.read(buffer)) >= 0) {
+                        received.append(new String(buffer, 0, bytes, ASCII));
+                        if (boardAnswers) out.write(buffer, 0, bytes);
+                    }
+                } catch (IOException e) {
+                    // Transport closed
+                }
+            }
+        };
+        echo.setDaemon(true);
+        echo.start();
+    }
+
+    private interface Condition {
+        boolean holds();
+    }
+
+    private static void waitUntil(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.holds()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LinkMonitorTest {
+    private static final long MS = 1000000L;
+    private static final byte[] PROBE = "M0000\r\n".getBytes(Charset.forName("US-ASCII"));
+
+    private final AckTracker tracker = new AckTracker(new AckTracker.Retransmitter() {
+        @Override
+        public void retransmit(byte[] frame, int offset, int length) {
+        }
+    });
+    private final List<Integer> qualities = new ArrayList<>();
+    private LinkMonitor monitor;
+    private ResponseFramer framer;
+    private boolean probeAvailable = true;
+    private int probesSent;
+    private int deaths;
+    private long now;
+
+    @Before
+    public void setUp() {
+        monitor = new LinkMonitor(tracker, new LinkMonitor.Callback() {
+            @Override
+            public boolean sendProbe() {
+                if (!probeAvailable) return false;
+                probesSent++;
+                tracker.track(PROBE, 0, PROBE.length, now);
+                return true;
+            }
+
+            @Override
+            public void onQualityChanged(int quality) {
+                qualities.add(quality);
+            }
+
+            @Override
+            public void onLinkDead() {
+                deaths++;
+            }
+        });
+        monitor.setHeartbeatInterval(500);
+        monitor.setMaxMissed(3);
+        framer = new ResponseFramer(new ResponseFramer.LineListener() {
+            @Override
+            public void onLine(ResponseFramer.Line line) {
+                tracker.onLine(line, now);
+            }
+        });
+        monitor.reset(now);
+    }
+
+    @Test
+    public void quietLink_isProbedAndStaysAliveWhileItAnswers() {
+        advance(400);
+        assertEquals(0, probesSent);
+        advance(100);
+        assertEquals(1, probesSent);
+        // One probe at a time
+        advance(50);
+        assertEquals(1, probesSent);
+
+        answerProbe(20);
+        advance(499);
+        assertEquals(1, probesSent);
+        advance(1);
+        assertEquals(2, probesSent);
+        assertEquals(LinkMonitor.QUALITY_GOOD, monitor.getQuality());
+        assertEquals(0, deaths);
+    }
+
+    @Test
+    public void unansweredProbes_declareTheLinkDeadWithinTheBound() {
+        answerProbeAfterIdle(20);
+        long lastInbound = now;
+        while (deaths == 0) {
+            advance(LinkMonitor.MIN_PROBE_TIMEOUT_MS / 5);
+            assertTrue(now - lastInbound <= monitor.getDetectionBound() * MS + 50 * MS);
+        }
+        assertEquals(1 + 3, probesSent);
+        assertEquals(3, monitor.getMissedCount());
+        assertEquals(LinkMonitor.QUALITY_DEAD, monitor.getQuality());
+        assertEquals(LinkMonitor.QUALITY_DEGRADED, (int) qualities.get(0));
+        assertEquals(LinkMonitor.QUALITY_DEAD, (int) qualities.get(1));
+
+        // Reported once, the connector has moved on
+        advance(5000);
+        assertEquals(1, deaths);
+    }
+
+    @Test
+    public void answeredProbe_clearsTheMissedOnes() {
+        advance(500);
+        advance(LinkMonitor.MAX_PROBE_TIMEOUT_MS);
+        assertEquals(1, monitor.getMissedCount());
+        assertEquals(LinkMonitor.QUALITY_DEGRADED, monitor.getQuality());
+
+        answerProbe(10);
+        assertEquals(0, monitor.getMissedCount());
+        assertEquals(LinkMonitor.QUALITY_GOOD, monitor.getQuality());
+        assertEquals(1, monitor.getMissedTotal());
+    }
+
+    @Test
+    public void probeTimeout_followsTheRtt() {
+        assertEquals(LinkMonitor.MAX_PROBE_TIMEOUT_MS * MS, monitor.getProbeTimeout());
+        answerProbeAfterIdle(10);
+        assertEquals(LinkMonitor.MIN_PROBE_TIMEOUT_MS * MS, monitor.getProbeTimeout());
+        answerProbeAfterIdle(600);
+        long timeout = monitor.getProbeTimeout();
+        assertTrue(timeout > LinkMonitor.MIN_PROBE_TIMEOUT_MS * MS && timeout < LinkMonitor.MAX_PROBE_TIMEOUT_MS * MS);
+    }
+
+    @Test
+    public void slowLink_isDegraded() {
+        for (int i = 0; i < 20; i++) {
+            answerProbeAfterIdle(LinkMonitor.SLOW_RTT_MS + 100);
+        }
+        assertEquals(LinkMonitor.QUALITY_DEGRADED, monitor.getQuality());
+        assertEquals(0, deaths);
+    }
+
+    @Test
+    public void nothingToProbeWith_waitsAnInterval() {
+        probeAvailable = false;
+        advance(500);
+        probeAvailable = true;
+        advance(450);
+        assertEquals(0, probesSent);
+        advance(50);
+        assertEquals(1, probesSent);
+    }
+
+    // Waits for the next probe and answers it after rttMs
+    private void answerProbeAfterIdle(int rttMs) {
+        int sent = probesSent;
+        while (probesSent == sent) {
+            advance(50);
+        }
+        answerProbe(rttMs);
+    }
+
+    private void answerProbe(int rttMs) {
+        now += rttMs * MS;
+        monitor.onInbound(now);
+        framer.feed(PROBE, 0, PROBE.length);
+        monitor.check(now);
+    }
+
+    // Checks the tracker and the monitor every 50 ms, as the connector does
+    private void advance(int millis) {
+        long end = now + millis * MS;
+        while (now < end) {
+            now = Math.min(end, now + 50 * MS);
+            tracker.checkDeadlines(now);
+            monitor.check(now);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ReconnectBufferTest {
+    private static final long MS = 1000000L;
+
+    private final byte[] first = {'A', '4', '\r', '\n'};
+    private final byte[] second = {'B', '4', '\r', '\n'};
+    private final byte[] third = {'C', '4', '\r', '\n'};
+
+    @Test
+    public void frames_comeOutInOrder() {
+        ReconnectBuffer buffer = new ReconnectBuffer();
+        buffer.add(first, 0);
+        buffer.add(second, 0);
+        assertSame(first, buffer.poll(0));
+        assertSame(second, buffer.poll(0));
+        assertNull(buffer.poll(0));
+    }
+
+    @Test
+    public void expiredFrames_areSkipped() {
+        ReconnectBuffer buffer = new ReconnectBuffer();
+        buffer.setTtl(100);
+        buffer.add(first, 0);
+        buffer.add(second, 50 * MS);
+        assertSame(second, buffer.poll(120 * MS));
+        assertEquals(1, buffer.getExpiredCount());
+    }
+
+    @Test
+    public void fullBuffer_dropsOldestFrame() {
+        ReconnectBuffer buffer = new ReconnectBuffer(2);
+        buffer.add(first, 0);
+        buffer.add(second, 0);
+        buffer.add(third, 0);
+        assertEquals(2, buffer.size());
+        assertEquals(1, buffer.getOverflowCount());
+        assertSame(second, buffer.poll(0));
+        assertSame(third, buffer.poll(0));
+    }
+}
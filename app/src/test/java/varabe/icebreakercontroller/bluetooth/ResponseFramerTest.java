@@ -0,0 +1,90 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ResponseFramerTest {
+    private final List<String> lines = new ArrayList<>();
+    private ResponseFramer framer;
+
+    @Before
+    public void setUp() {
+        framer = new ResponseFramer(16, new ResponseFramer.LineListener() {
+            @Override
+            public void onLine(ResponseFramer.Line line) {
+                lines.add(line.toString());
+            }
+        });
+    }
+
+    @Test
+    public void splitRead_isJoinedIntoOneLine() {
+        feed("A");
+        feed("3\r");
+        assertTrue(lines.isEmpty());
+        feed("\n");
+        assertEquals(1, lines.size());
+        assertEquals("A3", lines.get(0));
+    }
+
+    @Test
+    public void severalLinesInOneRead_areEmittedSeparately() {
+        feed("A3\r\nB4\r\nC");
+        assertEquals(2, lines.size());
+        assertEquals("A3", lines.get(0));
+        assertEquals("B4", lines.get(1));
+        feed("0\r\n");
+        assertEquals("C0", lines.get(2));
+        assertEquals(3, framer.getLineCount());
+    }
+
+    @Test
+    public void emptyLines_areSkipped() {
+        feed("\r\n\nOK\n");
+        assertEquals(1, lines.size());
+        assertEquals("OK", lines.get(0));
+    }
+
+    @Test
+    public void linesWrappingAroundRing_areIntact() {
+        for (int i = 0; i < 20; i++) {
+            feed("ABCDEFG" + (i % 10) + "\r\n");
+            assertEquals("ABCDEFG" + (i % 10), lines.get(i));
+        }
+    }
+
+    @Test
+    public void oversizedLine_isDroppedUpToDelimiter() {
+        feed("0123456789");
+        feed("0123456789\r\nA1\r\n");
+        assertEquals(1, lines.size());
+        assertEquals("A1", lines.get(0));
+        assertEquals(1, framer.getOversizedLineCount());
+    }
+
+    @Test
+    public void lineView_comparesWithoutDecoding() {
+        final byte[] expected = "B3".getBytes(Charset.forName("US-ASCII"));
+        final boolean[] matched = new boolean[1];
+        ResponseFramer comparing = new ResponseFramer(new ResponseFramer.LineListener() {
+            @Override
+            public void onLine(ResponseFramer.Line line) {
+                matched[0] = line.contentEquals(expected, 0, expected.length) && line.byteAt(0) == 'B';
+            }
+        });
+        byte[] data = "B3\r\n".getBytes(Charset.forName("US-ASCII"));
+        comparing.feed(data, 0, data.length);
+        assertTrue(matched[0]);
+    }
+
+    private void feed(String data) {
+        byte[] bytes = data.getBytes(Charset.forName("US-ASCII"));
+        framer.feed(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,29 @@
+package varabe.icebreakercontroller.bluetooth;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ServiceUuidsTest {
+    @Test
+    public void shortUuid_isFoundInBothForms() {
+        String spp = "00001101-0000-1000-8000-00805f9b34fb";
+        assertEquals(ServiceUuids.SERIAL_PORT, ServiceUuids.getShortUuid(spp));
+        assertEquals(ServiceUuids.SERIAL_PORT, ServiceUuids.getShortUuid(spp.toUpperCase()));
+        assertEquals(ServiceUuids.SERIAL_PORT, ServiceUuids.getShortUuid(UUID.fromString(spp)));
+        assertEquals("SerialPortService", ServiceUuids.describe(spp));
+        assertEquals("Phonebook Access - PSE", ServiceUuids.describe(UUID.fromString("0000112f-0000-1000-8000-00805f9b34fb")));
+    }
+
+    @Test
+    public void otherUuids_areUnknown() {
+        String vendor = "8ce255c0-200a-11e0-ac64-0800200c9a66";
+        assertEquals(ServiceUuids.NOT_SHORT_UUID, ServiceUuids.getShortUuid(vendor));
+        assertEquals(ServiceUuids.NOT_SHORT_UUID, ServiceUuids.getShortUuid(UUID.fromString(vendor)));
+        assertEquals("Unknown service UUID 0x55C0", ServiceUuids.describe(vendor));
+        // A base UUID without a name
+        assertEquals("Unknown service UUID 0xABCD", ServiceUuids.describe("0000abcd-0000-1000-8000-00805f9b34fb"));
+    }
+}
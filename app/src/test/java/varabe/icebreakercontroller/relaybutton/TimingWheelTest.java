@@ -0,0 +1,142 @@
+package varabe.icebreakercontroller.relaybutton;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/*
+ * The wheel is driven by a fake clock; "main thread" tasks are queued and run when the test says so
+ */
+public class TimingWheelTest {
+    private long nowMs = 1000;
+    private long nowNanos = 1000000000L;
+    private final ArrayList<Runnable> mainQueue = new ArrayList<>();
+    private final ArrayList<String> fired = new ArrayList<>();
+    private final TimingWheel wheel = new TimingWheel(new TimingWheel.Clock() {
+        @Override
+        public long nowNanos() {
+            return TimeUnit.MILLISECONDS.toNanos(nowMs);
+        }
+    }, new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            mainQueue.add(command);
+        }
+    }, false);
+
+    @Test
+    public void timeouts_expireInOrderAndNeverEarly() {
+        wheel.schedule(record("a"), 25);
+        wheel.schedule(record("b"), 5);
+        // More than one turn of the wheel away
+        wheel.schedule(record("c"), TimingWheel.TICK_MS * TimingWheel.SLOT_COUNT + 15);
+        assertEquals(3, wheel.getPendingCount());
+
+        advance(20);
+        assertEquals("[b]", fired.toString());
+        advance(10);
+        assertEquals("[b, a]", fired.toString());
+        advance(TimingWheel.TICK_MS * TimingWheel.SLOT_COUNT - 20);
+        assertEquals("[b, a]", fired.toString());
+        advance(10);
+        assertEquals("[b, a, c]", fired.toString());
+        assertEquals(0, wheel.getPendingCount());
+    }
+
+    @Test
+    public void cancel_removesTheTimeout() {
+        TimingWheel.Timeout timeout = wheel.schedule(record("a"), 100);
+        wheel.schedule(record("b"), 100);
+        assertTrue(timeout.cancel());
+        assertFalse(timeout.cancel());
+        assertEquals(1, wheel.getPendingCount());
+
+        advance(200);
+        assertEquals("[b]", fired.toString());
+        assertTrue(timeout.isCancelled());
+        assertFalse(timeout.isExpired());
+    }
+
+    @Test
+    public void cancelOnMain_winsOverAnExpiredTimeout() {
+        TimingWheel.Timeout reenable = wheel.scheduleOnMain(record("reenable"), 50);
+        nowMs += 60;
+        wheel.expireTimeouts();
+        // Expired on the wheel, but the main thread hasn't run it yet: a new press cancels it
+        assertEquals(1, mainQueue.size());
+        assertTrue(reenable.cancel());
+        runMainQueue();
+        assertTrue(fired.isEmpty());
+    }
+
+    @Test
+    public void idleWheel_schedulesFromNow() {
+        advance(100000);
+        wheel.schedule(record("a"), 30);
+        advance(20);
+        assertTrue(fired.isEmpty());
+        advance(10);
+        assertEquals("[a]", fired.toString());
+    }
+
+    @Test
+    public void worker_expiresOnTheSystemClock() throws Exception {
+        TimingWheel realWheel = new TimingWheel(TimingWheel.SYSTEM_CLOCK, null, true);
+        final CountDownLatch expired = new CountDownLatch(1);
+        long start = System.nanoTime();
+        realWheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expired.countDown();
+            }
+        }, 50);
+        assertTrue(expired.await(5, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void partlyGoneMillisecond_doesNotShortenTheTimeout() {
+        TimingWheel wheel = new TimingWheel(new TimingWheel.Clock() {
+            @Override
+            public long nowNanos() {
+                return nowNanos;
+            }
+        }, null, false);
+        // Scheduled 0.9 ms into a tick: the next tick passes before the delay has
+        nowNanos += 900000;
+        wheel.schedule(record("a"), TimingWheel.TICK_MS);
+        nowNanos += TimeUnit.MILLISECONDS.toNanos(TimingWheel.TICK_MS) - 500000;
+        wheel.expireTimeouts();
+        assertTrue(fired.isEmpty());
+        nowNanos += TimeUnit.MILLISECONDS.toNanos(TimingWheel.TICK_MS);
+        wheel.expireTimeouts();
+        assertEquals("[a]", fired.toString());
+    }
+
+    private Runnable record(final String name) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                fired.add(name);
+            }
+        };
+    }
+
+    private void advance(long ms) {
+        nowMs += ms;
+        wheel.expireTimeouts();
+        runMainQueue();
+    }
+
+    private void runMainQueue() {
+        for (Runnable command : mainQueue) {
+            command.run();
+        }
+        mainQueue.clear();
+    }
+}
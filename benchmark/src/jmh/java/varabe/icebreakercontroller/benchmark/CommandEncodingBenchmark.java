@@ -0,0 +1,48 @@
+package varabe.icebreakercontroller.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import varabe.icebreakercontroller.RelayProtocol;
+import varabe.icebreakercontroller.bluetooth.FrameRingBuffer;
+
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_ONE_SECOND_BLINK;
+import static varabe.icebreakercontroller.RelayProtocol.SUPPORTED_CHANNELS;
+
+/*
+ * Encoding of a relay command as done by RelayController.sendCommand: the original string
+ * concatenation, the pre-encoded frame table and the table plus the connector's queue
+ */
+@State(Scope.Thread)
+public class CommandEncodingBenchmark {
+    private final FrameRingBuffer queue = new FrameRingBuffer();
+    private final byte[] wire = new byte[FrameRingBuffer.MAX_FRAME_LENGTH];
+    private int channelIndex;
+
+    private int nextChannel() {
+        channelIndex = (channelIndex + 1) % SUPPORTED_CHANNELS.length;
+        return channelIndex;
+    }
+
+    @Benchmark
+    public byte[] stringConcatenation() {
+        return (SUPPORTED_CHANNELS[nextChannel()] + COMMAND_ONE_SECOND_BLINK + "\r\n").getBytes();
+    }
+
+    @Benchmark
+    public byte[] preEncodedFrame() {
+        return RelayProtocol.getCommandFrame(nextChannel(), COMMAND_ONE_SECOND_BLINK);
+    }
+
+    @Benchmark
+    public byte[] multiChannelFrame() {
+        return RelayProtocol.getMultiChannelFrame(0xFF, COMMAND_ONE_SECOND_BLINK);
+    }
+
+    @Benchmark
+    public int preEncodedFrameThroughQueue() {
+        queue.offer(RelayProtocol.getCommandFrame(nextChannel(), COMMAND_ONE_SECOND_BLINK));
+        return queue.poll(wire, 0);
+    }
+}
@@ -0,0 +1,51 @@
+package varabe.icebreakercontroller.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import varabe.icebreakercontroller.InterlockTable;
+
+/*
+ * The interlock checks ConnectionPool.sendCommand makes for every command: the bit test that lets
+ * unconstrained addresses through, the exclusion group of a constrained one and the remaining
+ * release time, which walks the excluded addresses that have opened. Address 0 excludes
+ * excludedCount others, all of them just opened, the worst case for the walk
+ */
+@State(Scope.Thread)
+public class InterlockLookupBenchmark {
+    private static final int CONSTRAINED = 0;
+    private static final int UNCONSTRAINED = 63;
+    private static final int RELEASE_TIMEOUT_MS = 500;
+
+    @Param({"1", "4", "16", "62"})
+    public int excludedCount;
+
+    private final InterlockTable interlocks = new InterlockTable();
+    private long now;
+
+    @Setup
+    public void setUp() {
+        long excluded = ((1L << excludedCount) - 1) << 1;
+        interlocks.addExclusion(1L << CONSTRAINED, excluded, RELEASE_TIMEOUT_MS, InterlockTable.POLICY_REJECT);
+        now = System.nanoTime();
+        interlocks.onOpened(excluded, now);
+    }
+
+    @Benchmark
+    public boolean unconstrainedCheck() {
+        return interlocks.isConstrained(UNCONSTRAINED);
+    }
+
+    @Benchmark
+    public long exclusions() {
+        return interlocks.getExclusions(CONSTRAINED);
+    }
+
+    @Benchmark
+    public long remainingRelease() {
+        return interlocks.getRemainingReleaseMs(CONSTRAINED, now);
+    }
+}
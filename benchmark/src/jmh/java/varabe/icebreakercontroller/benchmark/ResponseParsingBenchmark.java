@@ -0,0 +1,72 @@
+package varabe.icebreakercontroller.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.charset.Charset;
+
+import varabe.icebreakercontroller.bluetooth.ResponseFramer;
+
+/*
+ * Parsing of board replies as done in DeviceConnector.ConnectedThread.run: the original
+ * String/StringBuilder accumulation against ResponseFramer. Every operation handles one read
+ * of linesPerRead replies
+ */
+@State(Scope.Thread)
+public class ResponseParsingBenchmark {
+    @Param({"1", "8"})
+    public int linesPerRead;
+
+    private byte[] read;
+    private final StringBuilder readMessage = new StringBuilder();
+    private ResponseFramer framer;
+    private ResponseFramer decodingFramer;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        StringBuilder replies = new StringBuilder();
+        for (int i = 0; i < linesPerRead; i++) {
+            replies.append((char) ('A' + i)).append("3\r\n");
+        }
+        read = replies.toString().getBytes(Charset.forName("US-ASCII"));
+        framer = new ResponseFramer(new ResponseFramer.LineListener() {
+            @Override
+            public void onLine(ResponseFramer.Line line) {
+                ResponseParsingBenchmark.this.blackhole.consume(line.length());
+            }
+        });
+        // What the UI handler gets today: every line decoded to a String
+        decodingFramer = new ResponseFramer(new ResponseFramer.LineListener() {
+            @Override
+            public void onLine(ResponseFramer.Line line) {
+                ResponseParsingBenchmark.this.blackhole.consume(line.toString());
+            }
+        });
+    }
+
+    @Benchmark
+    public void stringAccumulation(Blackhole blackhole) {
+        String readed = new String(read, 0, read.length);
+        readMessage.append(readed);
+        if (readed.contains("\n")) {
+            blackhole.consume(readMessage.toString());
+            readMessage.setLength(0);
+        }
+    }
+
+    @Benchmark
+    public void responseFramer() {
+        framer.feed(read, 0, read.length);
+    }
+
+    @Benchmark
+    public void responseFramerDecodingLines() {
+        decodingFramer.feed(read, 0, read.length);
+    }
+}
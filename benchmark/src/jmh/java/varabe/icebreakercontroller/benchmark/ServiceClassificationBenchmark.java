@@ -0,0 +1,47 @@
+package varabe.icebreakercontroller.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+
+import varabe.icebreakercontroller.bluetooth.ServiceUuids;
+
+/*
+ * UUID classification as done by BluetoothUtils.getDeviceServices for a typical relay board
+ * (SPP), a phone-like device and an unknown vendor UUID
+ */
+@State(Scope.Thread)
+public class ServiceClassificationBenchmark {
+    private final String[] uuids = {
+            "00001101-0000-1000-8000-00805f9b34fb", // SerialPortService
+            "0000110a-0000-1000-8000-00805f9b34fb", // AudioSourceService
+            "0000112f-0000-1000-8000-00805f9b34fb", // Phonebook Access - PSE
+            "00001200-0000-1000-8000-00805f9b34fb", // PnPInformationService
+            "8ce255c0-200a-11e0-ac64-0800200c9a66", // unknown
+    };
+    private final UUID[] parsedUuids = new UUID[uuids.length];
+
+    {
+        for (int i = 0; i < uuids.length; i++) {
+            parsedUuids[i] = UUID.fromString(uuids[i]);
+        }
+    }
+
+    @Benchmark
+    public void describeServices(Blackhole blackhole) {
+        for (String uuid : uuids) {
+            blackhole.consume(ServiceUuids.describe(uuid));
+        }
+    }
+
+    // The form BluetoothUtils.getDeviceServices uses: ParcelUuid.getUuid() needs no string parsing
+    @Benchmark
+    public void describeParsedServices(Blackhole blackhole) {
+        for (UUID uuid : parsedUuids) {
+            blackhole.consume(ServiceUuids.describe(uuid));
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package varabe.icebreakercontroller.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import varabe.icebreakercontroller.bluetooth.LoopbackTransport;
+import varabe.icebreakercontroller.bluetooth.ResponseFramer;
+
+/*
+ * Serves one client of a RelayBoard over a pair of streams: a TCP socket or the board side of a
+ * LoopbackTransport. Command lines from the client travel through the inbound LinkChannel to the
+ * board, echoes of executed commands through the outbound one back to the client. Both apply the
+ * same LinkConditions, drops are decided per command line
+ */
+public class BoardConnection implements Closeable {
+    private static final int READ_BUFFER_SIZE = 256;
+    private static final byte[] LINE_ENDING = {'\r', '\n'};
+
+    private final RelayBoard board;
+    private final InputStream input;
+    private final OutputStream output;
+    private final Closeable resource;
+    private final LinkChannel inbound;
+    private final LinkChannel outbound;
+    private final Thread readerThread;
+    private volatile boolean closed;
+
+    // Cuts what the client writes into command lines before they enter the link (reader thread)
+    private final ResponseFramer clientFramer = new ResponseFramer(new ResponseFramer.LineListener() {
+        @Override
+        public void onLine(ResponseFramer.Line line) {
+            inbound.send(withLineEnding(line), 0, line.length() + LINE_ENDING.length);
+        }
+    });
+
+    // Reassembles the lines the board receives, they may arrive split (inbound delivery thread)
+    private final ResponseFramer boardFramer = new ResponseFramer(new ResponseFramer.LineListener() {
+        @Override
+        public void onLine(ResponseFramer.Line line) {
+            byte[] command = withLineEnding(line);
+            if (board.execute(command, 0, line.length()) && board.isEchoEnabled())
+                outbound.send(command, 0, command.length);
+        }
+    });
+
+    // resource is closed together with the connection, may be null
+    public BoardConnection(RelayBoard board, LinkConditions conditions,
+                           InputStream input, OutputStream output, Closeable resource) {
+        this.board = board;
+        this.input = input;
+        this.output = output;
+        this.resource = resource;
+        Random random = new Random();
+        inbound = new LinkChannel("BoardInbound", conditions, random, new LinkChannel.Sink() {
+            @Override
+            public void deliver(byte[] data, int offset, int length) {
+                boardFramer.feed(data, offset, length);
+            }
+        }, this);
+        outbound = new LinkChannel("BoardOutbound", conditions, random, new LinkChannel.Sink() {
+            @Override
+            public void deliver(byte[] data, int offset, int length) throws IOException {
+                BoardConnection.this.output.write(data, offset, length);
+                BoardConnection.this.output.flush();
+            }
+        }, this);
+        readerThread = new Thread("BoardReader") {
+            @Override
+            public void run() {
+                read();
+            }
+        };
+        readerThread.setDaemon(true);
+    }
+
+    // In-process board: every LoopbackTransport created by LoopbackTransport.factory(board) is served
+    public static LoopbackTransport.Board loopbackBoard(final RelayBoard board, final LinkConditions conditions) {
+        return new LoopbackTransport.Board() {
+            @Override
+            public void onConnected(LoopbackTransport transport) {
+                new BoardConnection(board, conditions, transport.getBoardInputStream(),
+                        transport.getBoardOutputStream(), null).start();
+            }
+        };
+    }
+
+    public void start() {
+        inbound.start();
+        outbound.start();
+        readerThread.start();
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        inbound.close();
+        outbound.close();
+        try {
+            input.close();
+            output.close();
+            if (resource != null) resource.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Command lines received from the client and how many of them the link dropped
+    public long getReceivedCount() {
+        return inbound.getSentCount();
+    }
+
+    public long getDroppedCommandCount() {
+        return inbound.getDroppedCount();
+    }
+
+    public long getDroppedEchoCount() {
+        return outbound.getDroppedCount();
+    }
+
+    private void read() {
+        byte[] buffer = new byte[READ_BUFFER_SIZE];
+        try {
+            int bytes;
+            while (!closed && (bytes = input.read(buffer)) >= 0) {
+                clientFramer.feed(buffer, 0, bytes);
+            }
+        } catch (IOException e) {
+            // Client went away
+        }
+        close();
+    }
+
+    private static byte[] withLineEnding(ResponseFramer.Line line) {
+        byte[] bytes = new byte[line.length() + LINE_ENDING.length];
+        int length = line.copyTo(bytes, 0);
+        System.arraycopy(LINE_ENDING, 0, bytes, length, LINE_ENDING.length);
+        return bytes;
+    }
+}
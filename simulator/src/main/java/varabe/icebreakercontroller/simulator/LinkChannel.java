@@ -0,0 +1,132 @@
+package varabe.icebreakercontroller.simulator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * One direction of a simulated link. Every packet passed to send() may be dropped, then goes
+ * "on the wire" after the previous one (baud rate), is split into chunks and each chunk is
+ * delivered to the sink by the delivery thread once its latency has passed. Delivery times never
+ * decrease, so jitter doesn't reorder data, just like on a serial link
+ */
+class LinkChannel {
+    // Start, data and stop bits of a UART frame
+    private static final long BITS_PER_BYTE = 10;
+
+    interface Sink {
+        void deliver(byte[] data, int offset, int length) throws IOException;
+    }
+
+    private static class Packet {
+        final byte[] data;
+        final long dueAt;
+
+        Packet(byte[] data, long dueAt) {
+            this.data = data;
+            this.dueAt = dueAt;
+        }
+    }
+
+    private final LinkConditions conditions;
+    private final Random random;
+    private final Sink sink;
+    private final BoardConnection connection;
+    private final LinkedBlockingQueue<Packet> packets = new LinkedBlockingQueue<>();
+    private final Thread deliveryThread;
+    private volatile boolean closed;
+
+    // Guarded by this
+    private long wireFreeAt = System.nanoTime();
+    private long lastDueAt;
+    private long sentCount;
+    private long droppedCount;
+    private long chunkCount;
+
+    LinkChannel(String name, LinkConditions conditions, Random random, Sink sink, BoardConnection connection) {
+        this.conditions = conditions;
+        this.random = random;
+        this.sink = sink;
+        this.connection = connection;
+        deliveryThread = new Thread(name) {
+            @Override
+            public void run() {
+                deliver();
+            }
+        };
+        deliveryThread.setDaemon(true);
+    }
+
+    void start() {
+        deliveryThread.start();
+    }
+
+    // Returns false if the packet was dropped
+    synchronized boolean send(byte[] data, int offset, int length) {
+        if (closed) return false;
+        sentCount++;
+        if (random.nextDouble() < conditions.getDropRate()) {
+            droppedCount++;
+            return false;
+        }
+        long now = System.nanoTime();
+        int baudRate = conditions.getBaudRate();
+        long nanosPerByte = (baudRate == 0) ? 0 : BITS_PER_BYTE * 1000000000L / baudRate;
+        int chunkSize = (conditions.getMaxChunkSize() == 0) ? length : conditions.getMaxChunkSize();
+        if (now - wireFreeAt > 0) wireFreeAt = now;
+        for (int chunkStart = 0; chunkStart < length; chunkStart += chunkSize) {
+            int chunkLength = Math.min(chunkSize, length - chunkStart);
+            wireFreeAt += chunkLength * nanosPerByte;
+            long dueAt = wireFreeAt + sampleDelayNanos();
+            if (chunkCount > 0 && dueAt - lastDueAt < 0) dueAt = lastDueAt;
+            lastDueAt = dueAt;
+            chunkCount++;
+            int from = offset + chunkStart;
+            packets.add(new Packet(Arrays.copyOfRange(data, from, from + chunkLength), dueAt));
+        }
+        return true;
+    }
+
+    synchronized long getSentCount() {
+        return sentCount;
+    }
+
+    synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+
+    synchronized long getChunkCount() {
+        return chunkCount;
+    }
+
+    void close() {
+        closed = true;
+        deliveryThread.interrupt();
+    }
+
+    private long sampleDelayNanos() {
+        int jitterMs = conditions.getJitter();
+        double delayMs = conditions.getLatency() + ((jitterMs == 0) ? 0 : (random.nextDouble() * 2 - 1) * jitterMs);
+        return (long) (Math.max(0, delayMs) * 1000000);
+    }
+
+    private void deliver() {
+        try {
+            while (!closed) {
+                Packet packet = packets.take();
+                long remaining;
+                while ((remaining = packet.dueAt - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(this, remaining);
+                    if (closed) return;
+                }
+                sink.deliver(packet.data, 0, packet.data.length);
+            }
+        } catch (InterruptedException e) {
+            // Closed
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+}
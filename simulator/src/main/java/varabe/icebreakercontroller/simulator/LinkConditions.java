@@ -0,0 +1,70 @@
+package varabe.icebreakercontroller.simulator;
+
+/*
+ * How the simulated link between the app and the board behaves, applied in each direction.
+ * Values can be changed while connections are running, they apply to data sent afterwards.
+ * The defaults are a perfect link
+ */
+public class LinkConditions {
+    private volatile int baudRate;
+    private volatile int latencyMs;
+    private volatile int jitterMs;
+    private volatile int maxChunkSize;
+    private volatile double dropRate;
+
+    // Serial speed of the board's UART (10 bits per byte), 0 for no limit
+    public void setBaudRate(int baudRate) {
+        if (baudRate < 0) throw new IllegalArgumentException("Baud rate can't be negative: " + baudRate);
+        this.baudRate = baudRate;
+    }
+
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    // One-way delay added to every packet
+    public void setLatency(int latencyMs) {
+        if (latencyMs < 0) throw new IllegalArgumentException("Latency can't be negative: " + latencyMs);
+        this.latencyMs = latencyMs;
+    }
+
+    public int getLatency() {
+        return latencyMs;
+    }
+
+    // Latency varies uniformly by up to this much either way. Packets are never reordered
+    public void setJitter(int jitterMs) {
+        if (jitterMs < 0) throw new IllegalArgumentException("Jitter can't be negative: " + jitterMs);
+        this.jitterMs = jitterMs;
+    }
+
+    public int getJitter() {
+        return jitterMs;
+    }
+
+    // Data is delivered in pieces of at most this many bytes, 0 to keep packets whole
+    public void setMaxChunkSize(int maxChunkSize) {
+        if (maxChunkSize < 0) throw new IllegalArgumentException("Chunk size can't be negative: " + maxChunkSize);
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    // Probability that a command line (or its echo) is lost, from 0 to 1
+    public void setDropRate(double dropRate) {
+        if (dropRate < 0 || dropRate > 1) throw new IllegalArgumentException("Drop rate must be in [0, 1]: " + dropRate);
+        this.dropRate = dropRate;
+    }
+
+    public double getDropRate() {
+        return dropRate;
+    }
+
+    @Override
+    public String toString() {
+        return "baud " + ((baudRate == 0) ? "unlimited" : baudRate) + ", latency " + latencyMs + "+-" + jitterMs
+                + " ms, chunks " + ((maxChunkSize == 0) ? "whole" : maxChunkSize + " bytes") + ", drop rate " + dropRate;
+    }
+}
@@ -0,0 +1,206 @@
+package varabe.icebreakercontroller.simulator;
+
+import java.util.Timer;
+import java.util.TimerTask;
+
+import varabe.icebreakercontroller.RelayProtocol;
+
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_CLOSE;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_INTERLOCK;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_ONE_SECOND_BLINK;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_OPEN;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_SWITCH;
+import static varabe.icebreakercontroller.RelayProtocol.SUPPORTED_CHANNELS;
+
+/*
+ * Channel state machine of the relay board. A channel is either closed (relay active) or open:
+ * - COMMAND_CLOSE / COMMAND_OPEN set the state
+ * - COMMAND_SWITCH toggles it
+ * - COMMAND_ONE_SECOND_BLINK closes the channel and opens it again after the blink duration,
+ *   a new blink before that restarts the countdown (this is what keeps held BlinkingButtons on)
+ * - COMMAND_INTERLOCK closes the channel and opens every other one
+ * Any other command on a blinking channel cancels its auto-off. Firmware with the set mask
+ * command ("M<mask><values>", see RelayProtocol) is simulated with setSetMaskSupported(true).
+ *
+ * The board outlives connections, like the real one which stays powered when the link drops
+ */
+public class RelayBoard {
+    public static final int DEFAULT_BLINK_DURATION_MS = 1000;
+
+    public interface Listener {
+        // Called with the board locked, must not block
+        void onChannelChanged(int channelIndex, boolean closed);
+    }
+
+    private final int blinkDurationMs;
+    private final Timer blinkTimer = new Timer("RelayBoard", true);
+    private final TimerTask[] blinkTasks = new TimerTask[SUPPORTED_CHANNELS.length];
+    private volatile Listener listener;
+    private volatile boolean echoEnabled = true;
+    private volatile boolean setMaskSupported;
+
+    private int closedChannelMask;
+    private long executedCount;
+    private long rejectedCount;
+
+    public RelayBoard() {
+        this(DEFAULT_BLINK_DURATION_MS);
+    }
+
+    public RelayBoard(int blinkDurationMs) {
+        if (blinkDurationMs <= 0) throw new IllegalArgumentException("Blink duration must be positive: " + blinkDurationMs);
+        this.blinkDurationMs = blinkDurationMs;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Whether executed commands are echoed back, the app uses the echoes as acknowledgements
+    public void setEchoEnabled(boolean echoEnabled) {
+        this.echoEnabled = echoEnabled;
+    }
+
+    public boolean isEchoEnabled() {
+        return echoEnabled;
+    }
+
+    // Newer firmware: understands the set mask command, older firmware ignores it
+    public void setSetMaskSupported(boolean setMaskSupported) {
+        this.setMaskSupported = setMaskSupported;
+    }
+
+    // Executes one command line without "\r\n". Returns false if it isn't a valid command
+    public boolean execute(byte[] line, int offset, int length) {
+        int setMask = setMaskSupported ? RelayProtocol.parseSetMask(line, offset, length) : -1;
+        if (setMask >= 0) {
+            setChannels(setMask >>> 8, setMask & 0xFF);
+            return true;
+        }
+        int channelIndex = (length == 2) ? RelayProtocol.getChannelIndex(line[offset]) : -1;
+        int command = (length == 2) ? line[offset + 1] - '0' : -1;
+        if (channelIndex < 0 || command < COMMAND_ONE_SECOND_BLINK || command > COMMAND_CLOSE) {
+            synchronized (this) {
+                rejectedCount++;
+            }
+            return false;
+        }
+        execute(channelIndex, command);
+        return true;
+    }
+
+    public synchronized void execute(int channelIndex, int command) {
+        if (channelIndex < 0 || channelIndex >= SUPPORTED_CHANNELS.length)
+            throw new IllegalArgumentException("Unsupported channel index: " + channelIndex);
+        executedCount++;
+        cancelBlink(channelIndex);
+        switch (command) {
+            case COMMAND_ONE_SECOND_BLINK:
+                setClosed(channelIndex, true);
+                scheduleBlinkEnd(channelIndex);
+                break;
+            case COMMAND_SWITCH:
+                setClosed(channelIndex, !isClosed(channelIndex));
+                break;
+            case COMMAND_INTERLOCK:
+                for (int other = 0; other < SUPPORTED_CHANNELS.length; other++) {
+                    if (other != channelIndex) {
+                        cancelBlink(other);
+                        setClosed(other, false);
+                    }
+                }
+                setClosed(channelIndex, true);
+                break;
+            case COMMAND_OPEN:
+                setClosed(channelIndex, false);
+                break;
+            case COMMAND_CLOSE:
+                setClosed(channelIndex, true);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported command: " + command);
+        }
+    }
+
+    // Channels of the mask are closed if their bit in values is set and opened otherwise
+    public synchronized void setChannels(int channelMask, int values) {
+        executedCount++;
+        for (int channelIndex = 0; channelIndex < SUPPORTED_CHANNELS.length; channelIndex++) {
+            if ((channelMask & (1 << channelIndex)) != 0) {
+                cancelBlink(channelIndex);
+                setClosed(channelIndex, (values & (1 << channelIndex)) != 0);
+            }
+        }
+    }
+
+    public synchronized boolean isClosed(int channelIndex) {
+        return (closedChannelMask & (1 << channelIndex)) != 0;
+    }
+
+    // Bit i is set when channel SUPPORTED_CHANNELS[i] is closed
+    public synchronized int getClosedChannelMask() {
+        return closedChannelMask;
+    }
+
+    // Waits until exactly the channels of the mask are closed, returns false on timeout
+    public synchronized boolean awaitClosedChannelMask(int mask, long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (closedChannelMask != mask) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    public synchronized long getExecutedCount() {
+        return executedCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    // Opens every channel, as after a power cycle
+    public synchronized void reset() {
+        for (int channelIndex = 0; channelIndex < SUPPORTED_CHANNELS.length; channelIndex++) {
+            cancelBlink(channelIndex);
+            setClosed(channelIndex, false);
+        }
+    }
+
+    public void shutdown() {
+        blinkTimer.cancel();
+    }
+
+    private void setClosed(int channelIndex, boolean closed) {
+        if (isClosed(channelIndex) == closed) return;
+        closedChannelMask ^= 1 << channelIndex;
+        notifyAll();
+        Listener listener = this.listener;
+        if (listener != null) listener.onChannelChanged(channelIndex, closed);
+    }
+
+    private void scheduleBlinkEnd(final int channelIndex) {
+        TimerTask task = new TimerTask() {
+            @Override
+            public void run() {
+                synchronized (RelayBoard.this) {
+                    // A later command on the channel has replaced or cancelled this blink
+                    if (blinkTasks[channelIndex] != this) return;
+                    blinkTasks[channelIndex] = null;
+                    setClosed(channelIndex, false);
+                }
+            }
+        };
+        blinkTasks[channelIndex] = task;
+        blinkTimer.schedule(task, blinkDurationMs);
+    }
+
+    private void cancelBlink(int channelIndex) {
+        if (blinkTasks[channelIndex] != null) {
+            blinkTasks[channelIndex].cancel();
+            blinkTasks[channelIndex] = null;
+        }
+    }
+}
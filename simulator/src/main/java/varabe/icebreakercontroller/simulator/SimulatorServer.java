@@ -0,0 +1,118 @@
+package varabe.icebreakercontroller.simulator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static varabe.icebreakercontroller.RelayProtocol.SUPPORTED_CHANNELS;
+
+/*
+ * Serves a RelayBoard on a local TCP port, every accepted client gets its own BoardConnection.
+ * Run from the command line for manual testing and load runs:
+ *
+ *   ./gradlew :simulator:installDist
+ *   simulator/build/install/simulator/bin/simulator --port 7777 --baud 9600 --latency 20 --jitter 10 --chunk 3 --drop 0.01
+ */
+public class SimulatorServer implements Closeable {
+    public static final int DEFAULT_PORT = 7777;
+
+    private final RelayBoard board;
+    private final LinkConditions conditions;
+    private final ServerSocket serverSocket;
+    private final List<BoardConnection> connections = new CopyOnWriteArrayList<>();
+    private final Thread acceptThread;
+
+    // Port 0 picks a free port, see getPort()
+    public SimulatorServer(RelayBoard board, LinkConditions conditions, int port) throws IOException {
+        this.board = board;
+        this.conditions = conditions;
+        serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        acceptThread = new Thread("SimulatorAccept") {
+            @Override
+            public void run() {
+                accept();
+            }
+        };
+        acceptThread.setDaemon(true);
+    }
+
+    public void start() {
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public RelayBoard getBoard() {
+        return board;
+    }
+
+    public LinkConditions getConditions() {
+        return conditions;
+    }
+
+    public List<BoardConnection> getConnections() {
+        return connections;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (BoardConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                BoardConnection connection = new BoardConnection(board, conditions,
+                        socket.getInputStream(), socket.getOutputStream(), socket);
+                for (BoardConnection previous : connections) {
+                    if (previous.isClosed()) connections.remove(previous);
+                }
+                connections.add(connection);
+                connection.start();
+            }
+        } catch (IOException e) {
+            // Server socket closed
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = DEFAULT_PORT;
+        int blinkDurationMs = RelayBoard.DEFAULT_BLINK_DURATION_MS;
+        LinkConditions conditions = new LinkConditions();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--port": port = Integer.parseInt(value); break;
+                case "--blink": blinkDurationMs = Integer.parseInt(value); break;
+                case "--baud": conditions.setBaudRate(Integer.parseInt(value)); break;
+                case "--latency": conditions.setLatency(Integer.parseInt(value)); break;
+                case "--jitter": conditions.setJitter(Integer.parseInt(value)); break;
+                case "--chunk": conditions.setMaxChunkSize(Integer.parseInt(value)); break;
+                case "--drop": conditions.setDropRate(Double.parseDouble(value)); break;
+                default: throw new IllegalArgumentException("Unknown option: " + args[i]);
+            }
+        }
+        RelayBoard board = new RelayBoard(blinkDurationMs);
+        board.setListener(new RelayBoard.Listener() {
+            @Override
+            public void onChannelChanged(int channelIndex, boolean closed) {
+                System.out.println(SUPPORTED_CHANNELS[channelIndex] + (closed ? " closed" : " open"));
+            }
+        });
+        SimulatorServer server = new SimulatorServer(board, conditions, port);
+        server.start();
+        System.out.println("Relay board simulator on port " + server.getPort() + " (" + conditions + ")");
+        server.acceptThread.join();
+    }
+}
@@ -0,0 +1,120 @@
+package varabe.icebreakercontroller.simulator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import varabe.icebreakercontroller.bluetooth.LoopbackTransport;
+
+import static org.junit.Assert.*;
+
+public class BoardConnectionTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final long TIMEOUT_MS = 5000;
+
+    private final RelayBoard board = new RelayBoard();
+    private final LinkConditions conditions = new LinkConditions();
+    private LoopbackTransport transport;
+
+    @After
+    public void tearDown() {
+        if (transport != null) transport.close();
+        board.shutdown();
+    }
+
+    @Test
+    public void commands_areExecutedAndEchoed() throws Exception {
+        connectLoopback();
+        write("A4\r\nC4\r\n");
+        assertEquals("A4\r\nC4\r\n", read(transport.getInputStream(), 8));
+        assertEquals(0b101, board.getClosedChannelMask());
+    }
+
+    @Test
+    public void splitLink_deliversEchoInChunks() throws Exception {
+        // One byte every 8 ms
+        conditions.setMaxChunkSize(1);
+        conditions.setBaudRate(1200);
+        connectLoopback();
+        write("B4\r\n");
+        InputStream input = transport.getInputStream();
+        byte[] buffer = new byte[16];
+        int reads = 0;
+        int total = 0;
+        while (total < 4) {
+            total += input.read(buffer, total, buffer.length - total);
+            reads++;
+        }
+        assertTrue(reads > 1);
+        assertEquals("B4\r\n", new String(buffer, 0, total, ASCII));
+    }
+
+    @Test
+    public void droppedCommands_neverReachBoard() throws Exception {
+        conditions.setDropRate(1);
+        connectLoopback();
+        write("A4\r\n");
+        Thread.sleep(50);
+        assertEquals(0, board.getExecutedCount());
+        assertEquals(0, board.getClosedChannelMask());
+    }
+
+    @Test
+    public void baudRate_throttlesCommands() throws Exception {
+        // 4-byte lines at 4800 baud take about 8.3 ms each on the wire
+        conditions.setBaudRate(4800);
+        connectLoopback();
+        long start = System.nanoTime();
+        StringBuilder commands = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            commands.append("A4\r\n");
+        }
+        write(commands.toString());
+        read(transport.getInputStream(), commands.length());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 12 * 8);
+    }
+
+    @Test
+    public void tcpServer_servesBoard() throws Exception {
+        SimulatorServer server = new SimulatorServer(board, conditions, 0);
+        server.start();
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            socket.getOutputStream().write("D0\r\n".getBytes(ASCII));
+            assertEquals("D0\r\n", read(socket.getInputStream(), 4));
+            assertTrue(board.isClosed(3));
+        } finally {
+            server.close();
+        }
+    }
+
+    private void connectLoopback() throws IOException {
+        transport = (LoopbackTransport) LoopbackTransport.factory(BoardConnection.loopbackBoard(board, conditions)).create();
+        transport.connect();
+    }
+
+    private void write(String data) throws IOException {
+        OutputStream output = transport.getOutputStream();
+        output.write(data.getBytes(ASCII));
+        output.flush();
+    }
+
+    private static String read(InputStream input, int length) throws IOException {
+        byte[] buffer = new byte[length];
+        int total = 0;
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (total < length) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            int bytes = input.read(buffer, total, length - total);
+            if (bytes < 0) fail("Stream closed");
+            total += bytes;
+        }
+        return new String(buffer, 0, total, ASCII);
+    }
+}
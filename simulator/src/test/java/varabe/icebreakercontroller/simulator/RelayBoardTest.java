@@ -0,0 +1,93 @@
+package varabe.icebreakercontroller.simulator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_CLOSE;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_INTERLOCK;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_ONE_SECOND_BLINK;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_OPEN;
+import static varabe.icebreakercontroller.RelayProtocol.COMMAND_SWITCH;
+
+public class RelayBoardTest {
+    private static final int BLINK_MS = 50;
+
+    private final RelayBoard board = new RelayBoard(BLINK_MS);
+
+    @After
+    public void tearDown() {
+        board.shutdown();
+    }
+
+    @Test
+    public void closeOpenAndSwitch_setChannelState() {
+        board.execute(0, COMMAND_CLOSE);
+        assertTrue(board.isClosed(0));
+        board.execute(0, COMMAND_SWITCH);
+        assertFalse(board.isClosed(0));
+        board.execute(0, COMMAND_SWITCH);
+        board.execute(2, COMMAND_CLOSE);
+        assertEquals(0b101, board.getClosedChannelMask());
+        board.execute(0, COMMAND_OPEN);
+        assertEquals(0b100, board.getClosedChannelMask());
+    }
+
+    @Test
+    public void interlock_opensAllOtherChannels() {
+        board.execute(0, COMMAND_CLOSE);
+        board.execute(1, COMMAND_CLOSE);
+        board.execute(3, COMMAND_INTERLOCK);
+        assertEquals(0b1000, board.getClosedChannelMask());
+    }
+
+    @Test
+    public void blink_opensChannelAfterBlinkDuration() throws Exception {
+        board.execute(1, COMMAND_ONE_SECOND_BLINK);
+        assertTrue(board.isClosed(1));
+        assertTrue(board.awaitClosedChannelMask(0, BLINK_MS * 10));
+    }
+
+    @Test
+    public void repeatedBlinks_keepChannelClosed() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            board.execute(1, COMMAND_ONE_SECOND_BLINK);
+            Thread.sleep(BLINK_MS / 2);
+        }
+        assertTrue(board.isClosed(1));
+    }
+
+    @Test
+    public void closeAfterBlink_cancelsAutoOff() throws Exception {
+        board.execute(1, COMMAND_ONE_SECOND_BLINK);
+        board.execute(1, COMMAND_CLOSE);
+        Thread.sleep(BLINK_MS * 2);
+        assertTrue(board.isClosed(1));
+    }
+
+    @Test
+    public void commandLines_areParsedAndInvalidOnesRejected() {
+        assertTrue(board.execute(line("B4"), 0, 2));
+        assertTrue(board.isClosed(1));
+        assertFalse(board.execute(line("G4"), 0, 2));
+        assertFalse(board.execute(line("A9"), 0, 2));
+        assertFalse(board.execute(line("A44"), 0, 3));
+        assertEquals(1, board.getExecutedCount());
+        assertEquals(3, board.getRejectedCount());
+    }
+
+    @Test
+    public void setMask_isExecutedOnlyByNewerFirmware() {
+        board.execute(0, COMMAND_CLOSE);
+        assertFalse(board.execute(line("M0302"), 0, 5));
+        board.setSetMaskSupported(true);
+        assertTrue(board.execute(line("M0302"), 0, 5));
+        assertEquals(0b10, board.getClosedChannelMask());
+    }
+
+    private static byte[] line(String command) {
+        return command.getBytes(Charset.forName("US-ASCII"));
+    }
+}